@@ -0,0 +1,48 @@
+package Benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Runs the benchmarks like JMH's own main class and takes the same options, but unless a result file or
+ * format is given, writes the results as JSON to jmh-results/, one file per run, so runs can be compared.
+ */
+public class BenchmarkRunner {
+    private static final Path RESULT_DIRECTORY = Paths.get("jmh-results");
+    private static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        CommandLineOptions options;
+        try {
+            options = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("Error parsing command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams() || options.shouldListProfilers()
+                || options.shouldListResultFormats() || options.getResult().hasValue() || options.getResultFormat().hasValue()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        Files.createDirectories(RESULT_DIRECTORY);
+        Path result = RESULT_DIRECTORY.resolve("jmh-" + LocalDateTime.now().format(STAMP) + ".json");
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(options)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.toString());
+        new Runner(builder.build()).run();
+        System.out.println("Results written to " + result.toAbsolutePath());
+    }
+}
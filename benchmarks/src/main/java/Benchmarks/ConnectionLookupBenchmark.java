@@ -0,0 +1,46 @@
+package Benchmarks;
+
+import Server.Controller.ConnectionRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the connection of a message's receiver, which every private message and every group member
+ * costs. A quarter of the lookups are for users who are offline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ConnectionLookupBenchmark {
+    private static final int LOOKUPS = 4096;
+
+    @Param({"100", "1000", "10000"})
+    public int onlineUsers;
+
+    private final ConnectionRegistry registry = new ConnectionRegistry();
+    private final String[] receivers = new String[LOOKUPS];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < onlineUsers; i++) {
+            registry.add(new StubConnection("user" + i));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++) {
+            int user = random.nextInt(onlineUsers + onlineUsers / 3);
+            receivers[i] = user < onlineUsers ? "user" + user : "offline" + user;
+        }
+    }
+
+    @Benchmark
+    public Object lookUpReceiver() {
+        next = (next + 1) & (LOOKUPS - 1);
+        return registry.get(receivers[next]);
+    }
+}
@@ -0,0 +1,134 @@
+package Benchmarks;
+
+import Server.Controller.LogManager;
+import Server.Controller.ServerConfig;
+import Shared.Message;
+import Shared.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Writing the traffic log and querying it by time of day, each against a log in a temporary directory.
+ * Writes are measured per entry, from registering it to the writer having written it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class LogManagerBenchmark {
+    private static final int WRITES = 1000;
+    private static final int ENTRIES_PER_HOUR = 600;
+
+    @State(Scope.Benchmark)
+    public static class EmptyLog {
+        Path directory;
+        LogManager log;
+        Message[] messages;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("log-benchmark");
+            log = new LogManager(configFor(directory));
+            messages = new Message[WRITES];
+            for (int i = 0; i < WRITES; i++) {
+                messages[i] = new Message("Message number " + i + " of the benchmark.", null, new User("user" + (i % 50), null));
+                messages[i].setReceiver(new User("user" + ((i + 1) % 50), null));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            log.close();
+            BenchmarkFiles.deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * A log of the given number of days ending yesterday, written as a legacy traffic.log so the log
+     * manager imports it into segments. The trial starts once the imported segments are compressed and
+     * the rollups are built, so neither competes with the queries.
+     */
+    @State(Scope.Benchmark)
+    public static class FullLog {
+        @Param({"7", "30"})
+        public int days;
+
+        Path directory;
+        LogManager log;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, InterruptedException {
+            directory = Files.createTempDirectory("log-benchmark");
+            writeLegacyLog(directory.resolve("traffic.log"), LocalDate.now().minusDays(days), days);
+            log = new LogManager(configFor(directory));
+            while (!settled(directory)) {
+                Thread.sleep(100);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            log.close();
+            BenchmarkFiles.deleteRecursively(directory);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITES)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void write(EmptyLog state) {
+        for (Message message : state.messages) {
+            state.log.registerSentMessage(message);
+        }
+        state.log.flush();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<String> retrievePeriodicalLogs(FullLog state) {
+        return state.log.retrievePeriodicalLogs(LocalTime.of(9, 0), LocalTime.of(10, 0));
+    }
+
+    private static ServerConfig configFor(Path directory) {
+        ServerConfig config = new ServerConfig();
+        config.setLogDirectory(directory.toString());
+        return config;
+    }
+
+    private static void writeLegacyLog(Path file, LocalDate first, int days) throws IOException {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        long secondsApart = 3600 / ENTRIES_PER_HOUR;
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            LocalDateTime end = first.plusDays(days).atStartOfDay();
+            int i = 0;
+            for (LocalDateTime time = first.atStartOfDay(); time.isBefore(end); time = time.plusSeconds(secondsApart), i++) {
+                writer.write(time.format(formatter));
+                writer.write(" - user" + (i % 50) + " sent 'Message number " + i + "' to user" + ((i + 1) % 50) + ".");
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * @return True once at most the active segment is left uncompressed and the rollups are complete.
+     */
+    private static boolean settled(Path directory) throws IOException {
+        if (!Files.exists(directory.resolve("rollups").resolve("complete"))) {
+            return false;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".log")).count() <= 1;
+        }
+    }
+}
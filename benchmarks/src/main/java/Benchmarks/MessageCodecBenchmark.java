@@ -0,0 +1,68 @@
+package Benchmarks;
+
+import Shared.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a private message with each codec. With an attachment the message only carries
+ * the content hash, and the image itself travels as a separate {@link Blob}, so both are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class MessageCodecBenchmark {
+
+    @Param({"binary", "serialization"})
+    public String codec;
+
+    @Param({"text", "attachment"})
+    public String payload;
+
+    @Param({"65536"})
+    public int attachmentBytes;
+
+    private Codec encoder;
+    private Message message;
+    private Blob blob;
+    private byte[] encodedMessage;
+    private byte[] encodedBlob;
+
+    @Setup
+    public void setUp() throws IOException {
+        encoder = codec.equals("binary") ? new BinaryCodec() : new SerializationCodec();
+        message = new Message("Are we still on for lunch tomorrow? I can book a table for twelve.", null, new User("alice", null));
+        message.setReceiver(new User("bob", null));
+        if (payload.equals("attachment")) {
+            byte[] image = new byte[attachmentBytes];
+            new Random(42).nextBytes(image);
+            blob = new Blob(ContentHash.of(image), image);
+            message.setAttachmentHash(blob.getHash());
+            encodedBlob = encoder.encode(blob);
+        }
+        encodedMessage = encoder.encode(message);
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) throws IOException {
+        blackhole.consume(encoder.encode(message));
+        if (blob != null) {
+            blackhole.consume(encoder.encode(blob));
+        }
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws IOException {
+        blackhole.consume(encoder.decode(encodedMessage, 0, encodedMessage.length));
+        if (encodedBlob != null) {
+            blackhole.consume(encoder.decode(encodedBlob, 0, encodedBlob.length));
+        }
+    }
+}
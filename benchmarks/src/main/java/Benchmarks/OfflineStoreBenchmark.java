@@ -0,0 +1,76 @@
+package Benchmarks;
+
+import Server.Controller.OfflineStore;
+import Shared.Message;
+import Shared.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving messages for offline users and draining them again the way a login does: batch by batch, each
+ * acknowledged before the next is read. Scores are per message. The store lives in a temporary directory
+ * and is compacted after every iteration, so the journal does not grow without bound.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class OfflineStoreBenchmark {
+    private static final int MESSAGES = 100;
+    private static final int RECEIVERS = 10;
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    private Path directory;
+    private OfflineStore store;
+    private Message[] messages;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("offline-benchmark");
+        store = new OfflineStore(directory, 64L * 1024 * 1024, Long.MAX_VALUE, Long.MAX_VALUE, 0);
+        messages = new Message[MESSAGES];
+        User sender = new User("alice", null);
+        for (int i = 0; i < MESSAGES; i++) {
+            messages[i] = new Message("Saved message number " + i + " while you were away.", null, sender);
+            messages[i].setReceiver(new User("receiver" + (i % RECEIVERS), null));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void compact() throws IOException {
+        store.compact();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int saveAndDrain() throws IOException {
+        for (Message message : messages) {
+            store.append(message);
+        }
+        return drainAll();
+    }
+
+    private int drainAll() throws IOException {
+        int drained = 0;
+        for (int i = 0; i < RECEIVERS; i++) {
+            String receiver = "receiver" + i;
+            OfflineStore.Batch batch;
+            while ((batch = store.readBatch(receiver, BATCH_BYTES)) != null) {
+                drained += batch.getMessages().size();
+                store.acknowledge(receiver, batch);
+            }
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,80 @@
+package Benchmarks;
+
+import Server.Controller.Connection;
+import Server.Controller.ConnectionRegistry;
+import Shared.BinaryCodec;
+import Shared.OnlineUsersList;
+import Shared.PresenceUpdate;
+import Shared.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a login costs in presence work. The server no longer sends the whole online list to everyone
+ * (the old updateOnlineUsers); a login rebuilds the registry's snapshot, sends one small update to every
+ * other user and the full list, encoded, to the new user only. Each part is measured on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PresenceBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int onlineUsers;
+
+    private final ConnectionRegistry registry = new ConnectionRegistry();
+    private final BinaryCodec codec = new BinaryCodec();
+    private final StubConnection newcomer = new StubConnection("newcomer");
+    private long version;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < onlineUsers; i++) {
+            registry.add(new StubConnection("user" + i));
+        }
+    }
+
+    /**
+     * Registering and unregistering a user, each rebuilding the snapshot of the online users.
+     */
+    @Benchmark
+    public boolean loginAndLogout() {
+        registry.add(newcomer);
+        return registry.remove(newcomer);
+    }
+
+    /**
+     * Telling every online user that someone joined.
+     */
+    @Benchmark
+    public long broadcastUpdate() {
+        PresenceUpdate joined = new PresenceUpdate(++version, newcomer.getUser(), true);
+        long sent = 0;
+        for (Connection connection : registry.connections()) {
+            connection.sendMessage(joined);
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Encoding the full list of online users for the user who just logged in.
+     */
+    @Benchmark
+    public byte[] encodeOnlineUsers() throws IOException {
+        return codec.encode(new OnlineUsersList(registry.onlineUsers(), version));
+    }
+
+    /**
+     * Encoding one presence update, which every other user gets instead of the full list.
+     */
+    @Benchmark
+    public byte[] encodeUpdate() throws IOException {
+        return codec.encode(new PresenceUpdate(version, new User("newcomer", null), true));
+    }
+}
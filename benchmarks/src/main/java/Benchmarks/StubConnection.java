@@ -0,0 +1,38 @@
+package Benchmarks;
+
+import Server.Controller.Connection;
+import Server.Controller.OutboundQueue;
+import Shared.User;
+
+/**
+ * A logged in connection without a socket. It only counts what is sent to it, so benchmarks measure the
+ * server code around it rather than an engine.
+ */
+class StubConnection implements Connection {
+    private final User user;
+    private final OutboundQueue outbound = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DISCONNECT, 0);
+    long sent;
+
+    StubConnection(String userName) {
+        this.user = new User(userName, null);
+    }
+
+    @Override
+    public User getUser() {
+        return user;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    @Override
+    public void sendMessage(Object obj) {
+        sent++;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
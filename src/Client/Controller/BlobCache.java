@@ -0,0 +1,65 @@
+package Client.Controller;
+
+import Shared.ContentHash;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local cache of attachment blobs, kept on disk between sessions so an image that was seen once
+ * never has to be fetched from the server again.
+ */
+public class BlobCache {
+    private final Path directory;
+    private final Map<String, byte[]> loaded = new HashMap<>();
+
+    /**
+     * @param directory The directory cached blobs are stored in.
+     */
+    public BlobCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param hash The content hash of the blob.
+     * @return The cached blob, or null if it is not cached.
+     */
+    public synchronized byte[] get(String hash) {
+        if (!ContentHash.isValid(hash)) {
+            return null;
+        }
+        byte[] data = loaded.get(hash);
+        if (data == null) {
+            try {
+                data = Files.readAllBytes(directory.resolve(hash));
+                loaded.put(hash, data);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Caches a blob. A failure to write it to disk only costs a later fetch, so it is not reported.
+     *
+     * @param hash The content hash of the blob.
+     * @param data The blob content.
+     */
+    public synchronized void put(String hash, byte[] data) {
+        if (!ContentHash.isValid(hash) || loaded.put(hash, data) != null) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            Path path = directory.resolve(hash);
+            if (!Files.exists(path)) {
+                Files.write(path, data);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not cache attachment " + hash + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package Client.Controller;
 
 import Client.View.ChatUI;
+import Client.View.Images;
 import Client.View.LogInUI;
 import Client.View.MainUI;
 import Shared.*;
@@ -10,7 +11,9 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * Manages the client's functionalities including sending/receiving messages and managing the UI.
@@ -19,13 +22,18 @@ public class ClientManager{
     private String ipAddress;
     private int port;
     private Socket socket;
-    private ObjectOutputStream oos;
-    private ObjectInputStream ois;
+    private Transport transport;
     private Message message;
     private List<User> nonContacts;
     private List<User> contacts;
     private User user;
     private List<ChatUI> openChats;
+    private long presenceVersion;
+    private boolean awaitingResync;
+    private BlobCache blobCache;
+    private Set<String> uploadedBlobs;
+    private Map<String, ImageIcon> images;
+    private Map<String, List<Consumer<ImageIcon>>> imageWaiters;
 
     private LogInUI logInUI;
     private MainUI mainUI;
@@ -42,6 +50,10 @@ public class ClientManager{
         nonContacts = new ArrayList<>();
         contacts = new ArrayList<>();
         openChats = new ArrayList<>();
+        blobCache = new BlobCache(Paths.get("./blob-cache"));
+        uploadedBlobs = new HashSet<>();
+        images = new HashMap<>();
+        imageWaiters = new HashMap<>();
         connect();
     }
 
@@ -52,8 +64,26 @@ public class ClientManager{
      */
     public void sendPrivateMessage(Message message) {
         try {
-            oos.writeObject(message);
-            oos.flush();
+            transport.send(message);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Logs the current user in, uploading the avatar first so the server has it before anyone asks for it.
+     */
+    public void logIn() {
+        try {
+            byte[] png = user.getProfilePicture();
+            if (png != null) {
+                String hash = ContentHash.of(png);
+                blobCache.put(hash, png);
+                images.put(hash, Images.fromPng(png));
+                transport.send(new Blob(hash, png));
+                user.setAvatarHash(hash);
+            }
+            transport.send(new Message("", null, user));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -72,10 +102,10 @@ public class ClientManager{
             for (User user : nonContacts) {
                 if (user.getUserName().equals(receiver)) {
                     System.out.println("message sending is working");
-                    Message message = new Message(content, attachment, this.user);
+                    Message message = new Message(content, null, this.user);
                     message.setReceiver(user);
-                    oos.writeObject(message);
-                    oos.flush();
+                    attach(message, attachment);
+                    transport.send(message);
                     userFound = true;
                     break;
                 }
@@ -85,10 +115,10 @@ public class ClientManager{
             if(!userFound){
                 for (User user : contacts) {
                     if (user.getUserName().equals(receiver)) {
-                        Message message = new Message(content, attachment, this.user);
+                        Message message = new Message(content, null, this.user);
                         message.setReceiver(user);
-                        oos.writeObject(message);
-                        oos.flush();
+                        attach(message, attachment);
+                        transport.send(message);
                         break;
                     }
                 }
@@ -129,54 +159,71 @@ public class ClientManager{
             }
 
             ArrayList<User> usersList = new ArrayList<>(usersToSendTo);
-            Message message = new Message(content, attachment, user);
+            Message message = new Message(content, null, user);
             message.setGroupOfReceivers(usersList);
-            oos.writeObject(message);
-            oos.flush();
+            attach(message, attachment);
+            transport.send(message);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * Connects to the server using the provided IP address and port.
+     * Refers a message to its attachment by content hash, uploading the attachment first unless it was
+     * already uploaded during this session.
+     *
+     * @param message    The message about to be sent.
+     * @param attachment The attachment of the message, may be null.
+     */
+    private void attach(Message message, ImageIcon attachment) throws IOException {
+        if (attachment == null) {
+            return;
+        }
+        byte[] png = Images.toPng(attachment);
+        message.setAttachment(png);
+        String hash = ContentHash.of(png);
+        blobCache.put(hash, png);
+        if (uploadedBlobs.add(hash)) {
+            transport.send(new Blob(hash, png));
+        }
+        message.setAttachmentHash(hash);
+    }
+
+    /**
+     * Connects to the server using the provided IP address and port, performs the protocol handshake
+     * and then keeps reading incoming objects.
      */
     private void connect() {
         try {
             socket = new Socket(ipAddress, port);
+            transport = FramedTransport.connect(socket, Protocol.CODEC_BINARY);
             showLogInPage();
             try {
-                oos = new ObjectOutputStream(socket.getOutputStream());
-                ois = new ObjectInputStream(socket.getInputStream());
                 while (true) {
-                    Object obj = ois.readObject();
+                    Object obj = transport.receive();
                     if (obj instanceof Message) {
-                        message = (Message) obj;
-                        String sender = message.getSender().getUserName();
-                        boolean chatFound = false;
-                        for(ChatUI chat : openChats){
-                            if(chat.getUserToChatWith().equals(sender)){
-                                refreshChat(chat);
-                                chatFound = true;
-                                break;
-                            }
-                        }
-                        if(!chatFound){
-                            ChatUI popUpChat = new ChatUI(sender, this);
-                            refreshChat(popUpChat);
-                            addToOpenChats(popUpChat);
+                        showMessage((Message) obj);
+                    } else if (obj instanceof InboxBatch) {
+                        InboxBatch batch = (InboxBatch) obj;
+                        for (Message missed : batch.getMessages()) {
+                            showMessage(missed);
                         }
+                        transport.send(new InboxAck(batch.getCursor()));
                     } else if (obj instanceof OnlineUsersList) {
                         OnlineUsersList onlineUsersList = (OnlineUsersList) obj;
-                        this.nonContacts = onlineUsersList.getOnlineUsers();
-                        while (mainUI == null) {
-                            try {
-                                Thread.sleep(100);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
+                        this.nonContacts = new ArrayList<>(onlineUsersList.getOnlineUsers());
+                        for (User user : nonContacts) {
+                            showAvatar(user);
+                        }
+                        presenceVersion = onlineUsersList.getVersion();
+                        awaitingResync = false;
+                        refreshUserList();
+                    } else if (obj instanceof PresenceUpdate) {
+                        if (applyPresenceUpdate((PresenceUpdate) obj)) {
+                            refreshUserList();
                         }
-                        mainUI.refreshUserList(nonContacts, contacts);
+                    } else if (obj instanceof Blob) {
+                        receiveBlob((Blob) obj);
                     }
                 }
             } catch (IOException e) {
@@ -189,6 +236,138 @@ public class ClientManager{
 
     }
 
+    /**
+     * Shows a received message in the chat with its sender, opening the chat if needed.
+     *
+     * @param message The message received from the server.
+     */
+    private void showMessage(Message message) {
+        this.message = message;
+        String sender = message.getSender().getUserName();
+        boolean chatFound = false;
+        for(ChatUI chat : openChats){
+            if(chat.getUserToChatWith().equals(sender)){
+                refreshChat(chat);
+                chatFound = true;
+                break;
+            }
+        }
+        if(!chatFound){
+            ChatUI popUpChat = new ChatUI(sender, this);
+            refreshChat(popUpChat);
+            addToOpenChats(popUpChat);
+        }
+    }
+
+    /**
+     * Applies a presence update to the list of online users. Updates that are older than the current list are
+     * ignored; a gap in the sequence numbers means an update was missed, so a full snapshot is requested and
+     * further updates are ignored until it arrives.
+     *
+     * @param update The update received from the server.
+     * @return True if the list of online users changed.
+     */
+    private boolean applyPresenceUpdate(PresenceUpdate update) throws IOException {
+        if (awaitingResync || update.getVersion() <= presenceVersion) {
+            return false;
+        }
+        if (update.getVersion() != presenceVersion + 1) {
+            awaitingResync = true;
+            transport.send(new PresenceResync());
+            return false;
+        }
+        presenceVersion = update.getVersion();
+        String userName = update.getUser().getUserName();
+        nonContacts.removeIf(user -> user.getUserName().equals(userName));
+        if (update.isJoined()) {
+            nonContacts.add(update.getUser());
+            showAvatar(update.getUser());
+        }
+        return true;
+    }
+
+    /**
+     * Shows the avatar of a user that came online, from the local cache if possible. Contacts of the same name
+     * pick up the avatar too, so a changed avatar is fetched once and shown everywhere.
+     *
+     * @param user The user whose avatar hash is known.
+     */
+    private void showAvatar(User user) {
+        for (User contact : contacts) {
+            if (contact.getUserName().equals(user.getUserName()) && !Objects.equals(contact.getAvatarHash(), user.getAvatarHash())) {
+                contact.setAvatarHash(user.getAvatarHash());
+                loadAvatar(contact);
+            }
+        }
+        loadAvatar(user);
+    }
+
+    private void loadAvatar(User user) {
+        loadImage(user.getAvatarHash(), icon -> refreshUserList());
+    }
+
+    /**
+     * @param user The user to show.
+     * @return The user's avatar if it has been loaded, otherwise null.
+     */
+    public synchronized ImageIcon getAvatar(User user) {
+        return user.getAvatarHash() == null ? null : images.get(user.getAvatarHash());
+    }
+
+    /**
+     * Looks an image up by content hash, in memory, then on disk, and otherwise asks the server for it.
+     * Each hash is requested once, however many callers are waiting for it.
+     *
+     * @param hash     The content hash of the image, may be null.
+     * @param onLoaded Called with the image once it has been fetched, if it is not available right away.
+     * @return The image, or null if there is none or it still has to be fetched.
+     */
+    private synchronized ImageIcon loadImage(String hash, Consumer<ImageIcon> onLoaded) {
+        if (hash == null) {
+            return null;
+        }
+        ImageIcon image = images.get(hash);
+        if (image != null) {
+            return image;
+        }
+        byte[] png = blobCache.get(hash);
+        if (png != null) {
+            try {
+                image = Images.fromPng(png);
+                images.put(hash, image);
+                return image;
+            } catch (IOException e) {
+                System.err.println("Cached image " + hash + " is unreadable: " + e.getMessage());
+            }
+        }
+        List<Consumer<ImageIcon>> waiting = imageWaiters.get(hash);
+        if (waiting == null) {
+            waiting = new ArrayList<>();
+            imageWaiters.put(hash, waiting);
+            try {
+                transport.send(new BlobRequest(hash));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        waiting.add(onLoaded);
+        return null;
+    }
+
+    /**
+     * Shows the current online users and contacts, waiting for the main page if it is not open yet.
+     */
+    private void refreshUserList() {
+        while (mainUI == null) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        mainUI.refreshUserList(nonContacts, contacts);
+    }
+
     /**
      * Refreshes the chat UI with the latest message.
      *
@@ -196,7 +375,32 @@ public class ClientManager{
      */
     private void refreshChat(ChatUI chat) {
         chat.appendTxtAreaMessages(message.getSender().getUserName(), message.getContent());
-        chat.setImageIcon(message.getAttachment());
+        ImageIcon attachment = loadImage(message.getAttachmentHash(), chat::setImageIcon);
+        if (attachment != null) {
+            chat.setImageIcon(attachment);
+        }
+    }
+
+    /**
+     * Caches a fetched image and hands it to everything that was waiting for it.
+     *
+     * @param blob The blob the server answered a request with.
+     */
+    private void receiveBlob(Blob blob) throws IOException {
+        List<Consumer<ImageIcon>> waiting;
+        ImageIcon image;
+        synchronized (this) {
+            waiting = imageWaiters.remove(blob.getHash());
+            if (waiting == null || blob.getData() == null || !blob.getHash().equals(ContentHash.of(blob.getData()))) {
+                return;
+            }
+            blobCache.put(blob.getHash(), blob.getData());
+            image = Images.fromPng(blob.getData());
+            images.put(blob.getHash(), image);
+        }
+        for (Consumer<ImageIcon> onLoaded : waiting) {
+            onLoaded.accept(image);
+        }
     }
 
     /**
@@ -205,11 +409,8 @@ public class ClientManager{
     private void exit() {
         if(!socket.isClosed()) {
             try {
-                try (ObjectOutputStream contactsOOS = new ObjectOutputStream(new FileOutputStream("./"+user.getUserName()+"_contacts.secret"))) {
-                    contactsOOS.writeObject(contacts);
-                }
-                oos.close();
-                ois.close();
+                saveContacts();
+                transport.close();
                 socket.close();
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -235,7 +436,7 @@ public class ClientManager{
      * Displays the main chat page for the client.
      */
     public void showMainPage() {
-        mainUI = new MainUI(400,900, user.getUserName(), user.getProfilePicture(), nonContacts, contacts, this);
+        mainUI = new MainUI(400,900, user.getUserName(), getAvatar(user), nonContacts, contacts, this);
         mainUI.addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
                 exit();
@@ -275,24 +476,65 @@ public class ClientManager{
     }
 
     /**
-     * Retrieves the client's contact list from disk.
+     * Retrieves the client's contact list from disk. A list saved by the first version, which stored each
+     * contact's picture itself, is rewritten in the current format; the pictures come back from the server
+     * once the contacts are online. A file that cannot be read is renamed rather than overwritten on exit.
      */
     public void getContactsFromDisk() {
-        try (ObjectInputStream contactsOIS = new ObjectInputStream(new FileInputStream("./"+user.getUserName()+"_contacts.secret"))) {
+        File file = contactsFile();
+        boolean[] oldFormat = new boolean[1];
+        try (ObjectInputStream contactsOIS = new ObjectInputStream(new FileInputStream(file)) {
+            @Override
+            protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+                ObjectStreamClass descriptor = super.readClassDescriptor();
+                if (descriptor.getName().equals(User.class.getName()) && descriptor.getField("profilePicture") != null) {
+                    oldFormat[0] = true;
+                }
+                return descriptor;
+            }
+        }) {
             // Read the object from file
             Object obj = contactsOIS.readObject();
             if (obj instanceof List) {
                 contacts = (List<User>) obj;
+                for (User contact : contacts) {
+                    loadAvatar(contact);
+                }
             } else {
-                System.err.println("Error: Unexpected content in contacts file.");
+                throw new InvalidClassException("Unexpected content in contacts file.");
             }
-        } catch (IOException e) {
-            System.err.println("Error reading contacts from file: " + e.getMessage());
-        } catch (ClassNotFoundException e) {
-            System.err.println("Error: User class not found while reading from contacts file.");
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            contacts = new ArrayList<>();
+            File unreadable = new File(file.getPath() + ".unreadable");
+            System.err.println("Error reading contacts from " + file + ", moved it to " + unreadable + ": " + e);
+            if (!file.renameTo(unreadable)) {
+                System.err.println("Error: could not move " + file + ", it will be overwritten on exit.");
+            }
+            return;
+        }
+        if (oldFormat[0]) {
+            try {
+                saveContacts();
+                System.out.println("Converted " + file + " to the current format.");
+            } catch (IOException e) {
+                System.err.println("Error converting contacts file: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the client's contact list to disk.
+     */
+    private void saveContacts() throws IOException {
+        try (ObjectOutputStream contactsOOS = new ObjectOutputStream(new FileOutputStream(contactsFile()))) {
+            contactsOOS.writeObject(contacts);
         }
     }
 
+    private File contactsFile() {
+        return new File("./" + user.getUserName() + "_contacts.secret");
+    }
+
     /**
      * Adds a chat to the list of open chat windows.
      *
@@ -0,0 +1,64 @@
+package Client.View;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Converts the ImageIcons used by the UI to and from the PNG bytes stored in blobs. Encoded bytes
+ * are cached per icon instance, since the same picture is hashed every time it is attached.
+ */
+public final class Images {
+    private static final Map<ImageIcon, byte[]> encoded = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private Images() {
+    }
+
+    /**
+     * @param icon The icon to encode, may be null.
+     * @return The icon as PNG bytes, or null for a null icon.
+     */
+    public static byte[] toPng(ImageIcon icon) throws IOException {
+        if (icon == null) {
+            return null;
+        }
+        byte[] png = encoded.get(icon);
+        if (png == null) {
+            int width = Math.max(1, icon.getIconWidth());
+            int height = Math.max(1, icon.getIconHeight());
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = image.createGraphics();
+            graphics.drawImage(icon.getImage(), 0, 0, null);
+            graphics.dispose();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", bos);
+            png = bos.toByteArray();
+            encoded.put(icon, png);
+        }
+        return png;
+    }
+
+    /**
+     * @param png PNG bytes, may be null.
+     * @return An icon showing the image, or null for null bytes.
+     */
+    public static ImageIcon fromPng(byte[] png) throws IOException {
+        if (png == null) {
+            return null;
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if (image == null) {
+            throw new IOException("Attachment is not a readable image.");
+        }
+        ImageIcon icon = new ImageIcon(image);
+        encoded.put(icon, png);
+        return icon;
+    }
+}
@@ -1,7 +1,6 @@
 package Client.View;
 
 import Client.Controller.ClientManager;
-import Shared.Message;
 import Shared.User;
 
 import javax.swing.*;
@@ -11,6 +10,7 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
 
 public class LogInUI extends JFrame {
 
@@ -92,14 +92,19 @@ public class LogInUI extends JFrame {
 	}
 
 	private void requestLogin() {
-		User user = new User(TFUserName.getText(), avatar);
+		User user;
+		try {
+			user = new User(TFUserName.getText(), Images.toPng(avatar));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 		clientManager.setUser(user);
 
 		File contactsFile = new File("./"+user.getUserName()+"_contacts.secret");
 		if (contactsFile.exists()) {
 			clientManager.getContactsFromDisk();
 		}
-		clientManager.sendPrivateMessage(new Message("", null, user));
+		clientManager.logIn();
 		clientManager.closeLoginPage();
 		clientManager.showMainPage();
 	}
@@ -257,7 +257,7 @@ public class MainUI extends JFrame {
 			for (User user : onlineUsers) {
 				String userName = user.getUserName();
 				if (!userName.equals(this.username)) {
-					ImageIcon imageIcon = new ImageIcon(user.getProfilePicture().getImage().getScaledInstance(50, 40, Image.SCALE_DEFAULT));
+					ImageIcon imageIcon = new ImageIcon(avatarOf(user).getImage().getScaledInstance(50, 40, Image.SCALE_DEFAULT));
 					JLabel jLabel = new JLabel(userName, imageIcon, JLabel.LEFT);
 					JPanel jPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
 					jPanel.add(jLabel);
@@ -274,7 +274,7 @@ public class MainUI extends JFrame {
 			for (User user : contacts) {
 				String userName = user.getUserName();
 				if (!userName.equals(this.username)) {
-					ImageIcon imageIcon = new ImageIcon(user.getProfilePicture().getImage().getScaledInstance(50, 40, Image.SCALE_DEFAULT));
+					ImageIcon imageIcon = new ImageIcon(avatarOf(user).getImage().getScaledInstance(50, 40, Image.SCALE_DEFAULT));
 					JLabel jLabel = new JLabel(userName, imageIcon, JLabel.LEFT);
 					JPanel jPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
 					jPanel.add(jLabel);
@@ -287,6 +287,18 @@ public class MainUI extends JFrame {
 		contactsList.setListData(jPanels);
 	}
 
+	/**
+	 * @param user The user to show.
+	 * @return The user's avatar, or a placeholder while it is still being fetched.
+	 */
+	private ImageIcon avatarOf(User user) {
+		ImageIcon avatar = clientManager.getAvatar(user);
+		if (avatar != null) {
+			return avatar;
+		}
+		return new ImageIcon("./src/Images/imageIcon.png");
+	}
+
 	/**
 	 * Sets up the "Add Contact" button on the main UI.
 	 *
@@ -1,7 +1,8 @@
+import Server.Controller.ServerConfig;
 import Server.Controller.ServerManager;
 
 public class MainServer {
     public static void main(String[] args) {
-        ServerManager sm = new ServerManager();
+        ServerManager sm = new ServerManager(ServerConfig.fromArgs(args));
     }
-}
\ No newline at end of file
+}
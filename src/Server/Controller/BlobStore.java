@@ -0,0 +1,106 @@
+package Server.Controller;
+
+import Shared.ContentHash;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Content-addressed store for attachment and avatar blobs. Every blob is kept once on disk under its
+ * SHA-256, no matter how many messages and users refer to it, and the most recently used blobs are
+ * also kept in a small in-memory cache so a forwarded image is not read from disk for every receiver.
+ */
+public class BlobStore {
+    private static final long CACHE_BYTES = 16L * 1024 * 1024;
+
+    private final Path directory;
+    private final Map<String, byte[]> recent = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock cacheLock = new ReentrantLock();
+    private long cachedBytes;
+
+    /**
+     * @param directory The directory blobs are stored in; created if missing.
+     */
+    public BlobStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * Stores a blob unless it is already present. Blobs whose content does not match their hash are refused.
+     *
+     * @param hash The content hash the uploader claims.
+     * @param data The blob content.
+     * @return True if the blob is stored, false if it was refused.
+     */
+    public boolean put(String hash, byte[] data) throws IOException {
+        if (data == null || !ContentHash.isValid(hash) || !hash.equals(ContentHash.of(data))) {
+            return false;
+        }
+        Path path = pathFor(hash);
+        if (!Files.exists(path)) {
+            Files.createDirectories(path.getParent());
+            Path temporary = Files.createTempFile(path.getParent(), hash, ".tmp");
+            Files.write(temporary, data);
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        remember(hash, data);
+        return true;
+    }
+
+    /**
+     * @param hash The content hash of the blob.
+     * @return The blob content, or null if the store does not have it.
+     */
+    public byte[] get(String hash) throws IOException {
+        if (!ContentHash.isValid(hash)) {
+            return null;
+        }
+        cacheLock.lock();
+        try {
+            byte[] data = recent.get(hash);
+            if (data != null) {
+                return data;
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+        try {
+            byte[] data = Files.readAllBytes(pathFor(hash));
+            remember(hash, data);
+            return data;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private Path pathFor(String hash) {
+        return directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private void remember(String hash, byte[] data) {
+        if (data.length > CACHE_BYTES / 4) {
+            return;
+        }
+        cacheLock.lock();
+        try {
+            if (recent.put(hash, data) == null) {
+                cachedBytes += data.length;
+            }
+            Iterator<byte[]> eldest = recent.values().iterator();
+            while (cachedBytes > CACHE_BYTES && eldest.hasNext()) {
+                cachedBytes -= eldest.next().length;
+                eldest.remove();
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+}
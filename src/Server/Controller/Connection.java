@@ -0,0 +1,46 @@
+package Server.Controller;
+
+import Shared.User;
+
+/**
+ * A logged in client as seen by the routing code in ServerManager, independent of the engine
+ * that serves its socket.
+ */
+public interface Connection {
+
+    /**
+     * @return The user that logged in on this connection, or null before the login message arrived.
+     */
+    User getUser();
+
+    /**
+     * @return The queue of objects waiting to be written to the client.
+     */
+    OutboundQueue getOutboundQueue();
+
+    /**
+     * Queues an object for the client. Implementations must be safe to call from any thread and must not wait
+     * on the client's socket.
+     *
+     * @param obj The object to send.
+     */
+    void sendMessage(Object obj);
+
+    /**
+     * Queues an object for the client only if that needs no waiting, whatever the overflow policy. Lets
+     * callers that hold a lock queue without waiting, and retry with {@link #sendMessage(Object)} once they
+     * released it. The default suits connections whose sendMessage never waits.
+     *
+     * @param obj The object to send.
+     * @return False if the queue had no room, in which case nothing was queued.
+     */
+    default boolean sendMessageWithoutWaiting(Object obj) {
+        sendMessage(obj);
+        return true;
+    }
+
+    /**
+     * Closes the connection and removes it from the server.
+     */
+    void shutdown();
+}
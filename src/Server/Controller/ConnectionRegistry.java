@@ -0,0 +1,96 @@
+package Server.Controller;
+
+import Shared.User;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The logged in connections, keyed by username.
+ *
+ * Lookups and iteration never lock: they read a ConcurrentHashMap, whose iterators are weakly
+ * consistent and never throw ConcurrentModificationException. Logins and logouts are rare compared
+ * to routing, so they are serialized by a lock that also rebuilds an immutable list of the online
+ * users, giving presence broadcasts a consistent snapshot without copying on every read.
+ */
+public class ConnectionRegistry {
+    private final ConcurrentMap<String, Connection> connections = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile List<User> onlineUsers = Collections.emptyList();
+
+    /**
+     * Registers a logged in connection. A newer login with the same username takes over routing
+     * from the older connection.
+     *
+     * @param connection The connection to add.
+     * @return The connection previously registered for the username, or null.
+     */
+    public Connection add(Connection connection) {
+        writeLock.lock();
+        try {
+            Connection previous = connections.put(connection.getUser().getUserName(), connection);
+            refreshSnapshot();
+            return previous;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Unregisters a connection, unless its username has since been taken over by another connection.
+     *
+     * @param connection The connection to remove.
+     * @return True if the connection was registered and has been removed.
+     */
+    public boolean remove(Connection connection) {
+        writeLock.lock();
+        try {
+            boolean removed = connections.remove(connection.getUser().getUserName(), connection);
+            if (removed) {
+                refreshSnapshot();
+            }
+            return removed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @param userName The username to look up.
+     * @return The connection the user is logged in on, or null if the user is offline.
+     */
+    public Connection get(String userName) {
+        return connections.get(userName);
+    }
+
+    /**
+     * @return A live, weakly consistent view of all connections that is safe to iterate concurrently.
+     */
+    public Collection<Connection> connections() {
+        return connections.values();
+    }
+
+    /**
+     * @return An immutable list of the users online after the latest login or logout.
+     */
+    public List<User> onlineUsers() {
+        return onlineUsers;
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    private void refreshSnapshot() {
+        List<User> users = new ArrayList<>(connections.size());
+        for (Connection connection : connections.values()) {
+            users.add(connection.getUser());
+        }
+        onlineUsers = Collections.unmodifiableList(users);
+    }
+}
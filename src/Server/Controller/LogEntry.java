@@ -0,0 +1,168 @@
+package Server.Controller;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * One line of the traffic log, split into the time it was logged and the text after it. What kind of
+ * event the text describes, and who and what it is about, is worked out only when asked for.
+ */
+public class LogEntry {
+
+    /**
+     * The kinds of events the server logs.
+     */
+    public enum Type {
+        SERVER_START_UP, LOGIN, LOGOUT, SENT, SAVED, OTHER
+    }
+
+    private static final String SEPARATOR = " - ";
+    private static final int PREFIX_LENGTH = "yyyy-MM-dd HH:mm:ss".length() + SEPARATOR.length();
+
+    private final LocalDateTime time;
+    private final String text;
+    private final String line;
+    private Type type;
+    private String user;
+    private String otherUser;
+    private String content;
+
+    private LogEntry(LocalDateTime time, String text, String line) {
+        this.time = time;
+        this.text = text;
+        this.line = line;
+    }
+
+    /**
+     * Parses a log line of the form {@code yyyy-MM-dd HH:mm:ss - text}. The fixed-width timestamp is read
+     * digit by digit, which is much cheaper than a regular expression and a formatter per line.
+     *
+     * @param line A line of the traffic log.
+     * @return The entry, or null if the line does not start with a timestamp.
+     */
+    public static LogEntry parse(String line) {
+        if (line.length() < PREFIX_LENGTH || line.charAt(4) != '-' || line.charAt(7) != '-' || line.charAt(10) != ' '
+                || line.charAt(13) != ':' || line.charAt(16) != ':' || !line.startsWith(SEPARATOR, 19)) {
+            return null;
+        }
+        int year = digits(line, 0, 4);
+        int month = digits(line, 5, 2);
+        int day = digits(line, 8, 2);
+        int hour = digits(line, 11, 2);
+        int minute = digits(line, 14, 2);
+        int second = digits(line, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return null;
+        }
+        try {
+            return new LogEntry(LocalDateTime.of(year, month, day, hour, minute, second), line.substring(PREFIX_LENGTH), line);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The value of a run of decimal digits, or -1 if it contains anything else.
+     */
+    private static int digits(String line, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Works out the type of the event and the users and content it mentions, from the texts LogManager
+     * writes. A user name containing the quote and separator sequences used in those texts can make the
+     * split ambiguous; it is then split at the last separator.
+     */
+    private void classify() {
+        if (type != null) {
+            return;
+        }
+        type = Type.OTHER;
+        if (text.equals("Server has started.")) {
+            type = Type.SERVER_START_UP;
+        } else if (text.startsWith("Username: ") && text.endsWith(" has logged in.")) {
+            type = Type.LOGIN;
+            user = text.substring("Username: ".length(), text.length() - " has logged in.".length());
+        } else if (text.startsWith("Username: ") && text.endsWith(" has logged out.")) {
+            type = Type.LOGOUT;
+            user = text.substring("Username: ".length(), text.length() - " has logged out.".length());
+        } else if (text.startsWith("Message from '") && text.endsWith("'.")) {
+            int to = text.indexOf("' to '");
+            int saved = text.indexOf("' was saved because the receiver was offline. Content: '", Math.max(0, to));
+            if (to > 0 && saved > to) {
+                type = Type.SAVED;
+                user = text.substring("Message from '".length(), to);
+                otherUser = text.substring(to + "' to '".length(), saved);
+                content = text.substring(saved + "' was saved because the receiver was offline. Content: '".length(), text.length() - 2);
+            }
+        } else if (text.endsWith(".")) {
+            int sent = text.indexOf(" sent '");
+            int to = text.lastIndexOf("' to ");
+            if (sent > 0 && to >= sent + " sent '".length()) {
+                type = Type.SENT;
+                user = text.substring(0, sent);
+                content = text.substring(sent + " sent '".length(), to);
+                otherUser = text.substring(to + "' to ".length(), text.length() - 1);
+            }
+        }
+    }
+
+    /**
+     * @return The time as seconds, counting the local time of the log as if it were UTC. Used to compare
+     *         entries with the sparse indexes of the log segments, which use the same scale.
+     */
+    long timeKey() {
+        return time.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    public LocalDateTime getTime() {
+        return time;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    public Type getType() {
+        classify();
+        return type;
+    }
+
+    /**
+     * @return The user who logged in or out, or the sender of a message; null for other events.
+     */
+    public String getUser() {
+        classify();
+        return user;
+    }
+
+    /**
+     * @return The receiver of a message; null for other events.
+     */
+    public String getOtherUser() {
+        classify();
+        return otherUser;
+    }
+
+    /**
+     * @return The content of a message; null for other events.
+     */
+    public String getContent() {
+        classify();
+        return content;
+    }
+}
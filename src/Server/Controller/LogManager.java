@@ -1,158 +1,392 @@
 package Server.Controller;
 
-import Server.View.LogUI;
 import Shared.Message;
 import Shared.User;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Writes the traffic log. The register methods only stamp the event with the current time and publish
+ * it to a {@link LogRingBuffer}; a single writer thread formats whatever has been published, writes it
+ * to the {@link LogSegments} in one go (group commit) and forces it to disk according to the
+ * {@link FsyncPolicy}. Segments rotate by hour and size and are compressed in the background; queries read
+ * only the segments of the hours they ask for, compressed or not. The writer also keeps the
+ * {@link TrafficRollups} up to date, so traffic charts and rankings need no scan at all.
+ * Routing threads therefore never wait for the disk. When the writer falls so far behind that the
+ * buffer is full, events are dropped and the number of dropped events is logged instead.
+ */
 public class LogManager {
-    private final String logFilePath = "src/Server/Logs/traffic.log";
+
+    /**
+     * When the writer forces the log file to disk.
+     */
+    public enum FsyncPolicy {
+        /** Leave it to the operating system. */
+        NEVER,
+        /** After every batch written, so a line is durable shortly after it is written. */
+        BATCH,
+        /** At most once per configured interval. */
+        INTERVAL
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final String legacyLogFile = "traffic.log";
+    private final String rollupDirectory = "rollups";
+    private final LogRingBuffer<Event> events;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final AtomicBoolean writerParked = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private volatile boolean running = true;
+    private volatile long committed;
+    private volatile long lagMillis;
+    private final ForkJoinPool searchPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private LogSegments segments;
+    private TrafficRollups rollups;
 
     public LogManager() {
-        Path path = Paths.get(logFilePath);
-
-        if (Files.exists(path)) {
-            System.out.println("The file exists.");
-        } else {
-            System.out.println("The file does not exist.");
-            try {
-                Files.createFile(path);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        LogUI log = new LogUI(this);
+        this(new ServerConfig());
     }
 
-    public void registerServerStartUp() {
-        String formattedDateTime = getCurrentLocalDateTime();
+    /**
+     * @param config The startup settings, including the log directory, buffer size and fsync policy.
+     */
+    public LogManager(ServerConfig config) {
+        Path directory = Paths.get(config.getLogDirectory());
         try {
-            FileWriter fw = new FileWriter(logFilePath, true);
-            BufferedWriter bw = new BufferedWriter(fw);
-            bw.write(formattedDateTime + " - Server has started.");
-            bw.newLine();
-            bw.close();
+            segments = new LogSegments(directory, config.getLogSegmentMegabytes() * 1024L * 1024L);
+            if (Files.exists(directory.resolve(legacyLogFile))) {
+                System.out.println("Moving " + legacyLogFile + " into hourly log segments.");
+                segments.importLegacy(directory.resolve(legacyLogFile));
+            }
+            rollups = new TrafficRollups(directory.resolve(rollupDirectory));
+            rollups.rebuildIfIncomplete(segments::readAll, LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS));
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException(e);
         }
+        events = new LogRingBuffer<>(config.getLogBufferEvents());
+        fsyncPolicy = config.getLogFsyncPolicy();
+        fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getLogFsyncIntervalMillis());
+        writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-writer-shutdown"));
+    }
+
+    public void registerServerStartUp() {
+        publish(new Event(LogEntry.Type.SERVER_START_UP, null, null, null));
     }
 
     public void registerUserLogIn(User user) {
-        String formattedDateTime = getCurrentLocalDateTime();
+        publish(new Event(LogEntry.Type.LOGIN, user.getUserName(), null, null));
+    }
+
+    public void registerUserLogOut(User user) {
+        publish(new Event(LogEntry.Type.LOGOUT, user.getUserName(), null, null));
+    }
+
+    public void registerSentMessage(Message message) {
+        publish(new Event(LogEntry.Type.SENT, message.getSender().getUserName(), message.getReceiver().getUserName(), message.getContent()));
+    }
+
+    public void registerSavedMessage(Message message) {
+        publish(new Event(LogEntry.Type.SAVED, message.getSender().getUserName(), message.getReceiver().getUserName(), message.getContent()));
+    }
+
+    /**
+     * Waits until everything registered before the call is written to the log file, or a short timeout passes.
+     */
+    public void flush() {
+        long target = events.published();
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+        while (committed < target && System.nanoTime() < deadline) {
+            wakeWriter();
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Writes what is still buffered, forces it to disk and stops the writer.
+     */
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
         try {
-            FileWriter fw = new FileWriter(logFilePath, true);
-            BufferedWriter bw = new BufferedWriter(fw);
-            bw.write(formattedDateTime + " - Username: " + user.getUserName() + " has logged in.");
-            bw.newLine();
-            bw.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            writer.join(TimeUnit.NANOSECONDS.toMillis(FLUSH_TIMEOUT_NANOS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    public void registerUserLogOut(User user) {
-        String formattedDateTime = getCurrentLocalDateTime();
+    /**
+     * @return The number of events dropped because the buffer was full.
+     */
+    public long getDroppedEvents() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of events registered but not written to the log yet.
+     */
+    public long getPendingEvents() {
+        return events.published() - committed;
+    }
+
+    /**
+     * @return How long the oldest event of the latest batch waited to be written, in milliseconds.
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    private void publish(Event event) {
+        if (!events.offer(event)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        wakeWriter();
+    }
+
+    private void wakeWriter() {
+        if (writerParked.get() && writerParked.getAndSet(false)) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Body of the writer thread: drains the buffer into the log segments batch by batch and parks when it
+     * is empty. The park is bounded, so a wake-up that races with parking costs at most a millisecond.
+     */
+    private void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        Timestamp timestamp = new Timestamp();
+        long reportedDrops = 0;
+        long lastForce = System.nanoTime();
+        boolean unforced = false;
+        while (true) {
+            long batch = 0;
+            long oldest = 0;
+            boolean wrote = false;
+            Event event;
+            while ((event = events.poll()) != null) {
+                if (batch == 0) {
+                    oldest = event.time;
+                }
+                timestamp.set(event.time);
+                line.setLength(0);
+                format(event, timestamp.text, line);
+                append(timestamp.time, line);
+                rollups.record(event.kind, timestamp.time, event.first, event.second, event.content);
+                batch++;
+                wrote = true;
+            }
+            long drops = dropped.get();
+            if (drops > reportedDrops) {
+                timestamp.set(System.currentTimeMillis());
+                line.setLength(0);
+                line.append(timestamp.text).append(" - ")
+                        .append(drops - reportedDrops).append(" log entries were dropped because the log writer fell behind.");
+                append(timestamp.time, line);
+                reportedDrops = drops;
+                wrote = true;
+            }
+            if (wrote) {
+                try {
+                    segments.commit();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                unforced = true;
+                rollups.flushUsersIfDue();
+            }
+            committed += batch;
+            if (batch > 0) {
+                lagMillis = System.currentTimeMillis() - oldest;
+            }
+            if (unforced && (fsyncPolicy == FsyncPolicy.BATCH
+                    || (fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastForce >= fsyncIntervalNanos)
+                    || !running)) {
+                force();
+                lastForce = System.nanoTime();
+                unforced = false;
+            }
+            if (batch > 0) {
+                continue;
+            }
+            if (!running) {
+                break;
+            }
+            writerParked.set(true);
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+            writerParked.set(false);
+        }
+        rollups.close();
         try {
-            FileWriter fw = new FileWriter(logFilePath, true);
-            BufferedWriter bw = new BufferedWriter(fw);
-            bw.write(formattedDateTime + " - Username: " + user.getUserName() + " has logged out.");
-            bw.newLine();
-            bw.close();
+            segments.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public void registerSentMessage(Message message) {
-        String formattedDateTime = getCurrentLocalDateTime();
+    private void append(LocalDateTime time, StringBuilder line) {
         try {
-            FileWriter fw = new FileWriter(logFilePath, true);
-            BufferedWriter bw = new BufferedWriter(fw);
-            bw.write(formattedDateTime + " - " + message.getSender().getUserName() + " sent '" + message.getContent() + "' to " + message.getReceiver().getUserName() + ".");
-            bw.newLine();
-            bw.close();
+            segments.append(time, line.append(System.lineSeparator()).toString().getBytes(StandardCharsets.UTF_8));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public void registerSavedMessage(Message message) {
-        String formattedDateTime = getCurrentLocalDateTime();
+    private void force() {
         try {
-            FileWriter fw = new FileWriter(logFilePath, true);
-            BufferedWriter bw = new BufferedWriter(fw);
-            bw.write(formattedDateTime + " - Message from '" + message.getSender().getUserName() + "' to '" + message.getReceiver().getUserName() + "' was saved because the receiver was offline. Content: '" + message.getContent() + "'.");
-            bw.newLine();
-            bw.close();
+            segments.force();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void format(Event event, String timestamp, StringBuilder line) {
+        line.append(timestamp).append(" - ");
+        switch (event.kind) {
+            case SERVER_START_UP:
+                line.append("Server has started.");
+                break;
+            case LOGIN:
+                line.append("Username: ").append(event.first).append(" has logged in.");
+                break;
+            case LOGOUT:
+                line.append("Username: ").append(event.first).append(" has logged out.");
+                break;
+            case SENT:
+                line.append(event.first).append(" sent '").append(event.content).append("' to ").append(event.second).append(".");
+                break;
+            case SAVED:
+                line.append("Message from '").append(event.first).append("' to '").append(event.second)
+                        .append("' was saved because the receiver was offline. Content: '").append(event.content).append("'.");
+                break;
+            default:
+                break;
+        }
+    }
 
-    private String getCurrentLocalDateTime() {
-        LocalDateTime currentDateTime = LocalDateTime.now();
-
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        String formattedDateTime = currentDateTime.format(formatter);
+    /**
+     * A log entry as published by a routing thread. Only references and the time are captured, the line is
+     * formatted by the writer.
+     */
+    private static final class Event {
+        final LogEntry.Type kind;
+        final long time = System.currentTimeMillis();
+        final String first;
+        final String second;
+        final String content;
 
-        return formattedDateTime;
+        Event(LogEntry.Type kind, String first, String second, String content) {
+            this.kind = kind;
+            this.first = first;
+            this.second = second;
+            this.content = content;
+        }
     }
 
-    public List<String> readLogs() {
-        List<String> tmpLogData = new ArrayList<>();
-        try (FileInputStream fis = new FileInputStream(logFilePath);
-             InputStreamReader isr = new InputStreamReader(fis);
-             BufferedReader br = new BufferedReader(isr)
-        ) {
-            String logLine;
-            while ((logLine = br.readLine()) != null) { // This will advance to the next line
-                tmpLogData.add(logLine);
+    /**
+     * The local time of the entry being written, to the second, and its formatted form. Both are reused
+     * while consecutive entries share the same second, which they mostly do.
+     */
+    private final class Timestamp {
+        private long second = Long.MIN_VALUE;
+        LocalDateTime time;
+        String text;
+
+        void set(long millis) {
+            long current = Math.floorDiv(millis, 1000);
+            if (current != second) {
+                second = current;
+                time = LocalDateTime.ofInstant(Instant.ofEpochSecond(current), ZoneId.systemDefault());
+                text = time.format(formatter);
             }
+        }
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    public List<String> readLogs() {
+        flush();
+        try (Stream<String> lines = segments.readAll()) {
+            return lines.collect(Collectors.toList());
         }
-        return tmpLogData;
     }
 
+    /**
+     * Streams the entries logged in a time range, reading only the log segments of the hours it covers.
+     * The stream must be closed if it is not consumed to the end.
+     *
+     * @param from The start of the range, inclusive.
+     * @param to   The end of the range, exclusive.
+     * @return The entries in the order they were logged.
+     */
+    public Stream<LogEntry> streamLogs(LocalDateTime from, LocalDateTime to) {
+        flush();
+        return segments.read(from, to);
+    }
 
+    /**
+     * Searches the log by date-time range, user, event type and message text, scanning the segments of the
+     * range in parallel. The stream must be closed if it is not consumed to the end.
+     *
+     * @param query The search.
+     * @return The matching entries in the order they were logged.
+     */
+    public Stream<LogEntry> search(LogQuery query) {
+        flush();
+        return segments.search(query, searchPool);
+    }
+
+    /**
+     * Collects the lines logged strictly between two times of day, on every day the log covers.
+     */
     public List<String> retrievePeriodicalLogs(LocalTime from, LocalTime to) {
         List<String> output = new ArrayList<>();
-        for (String line : readLogs()) {
-
-            String regex = "(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}) - (.*)";
-
-            Pattern pattern = Pattern.compile(regex);
-
-            Matcher matcher = pattern.matcher(line);
-
-            if (matcher.find()) {
-                String dateTimeString = matcher.group(1);
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-                LocalDateTime dateTime = LocalDateTime.parse(dateTimeString, formatter);
-                LocalTime time = dateTime.toLocalTime();
-                if (time.isAfter(from) && time.isBefore(to)) {
-                    output.add(line);
-                }
-                String text = matcher.group(2);
-
-
-            } else {
-                System.out.println("Could not parse the date and time from the logs.");
+        if (!from.isBefore(to)) {
+            return output;
+        }
+        flush();
+        for (LocalDate day : segments.days()) {
+            try (Stream<LogEntry> entries = segments.read(day.atTime(from).plusSeconds(1), day.atTime(to))) {
+                entries.forEach(entry -> output.add(entry.getLine()));
             }
         }
         return output;
     }
+
+    /**
+     * @return The per-minute, per-hour and per-user traffic counters kept by the writer.
+     */
+    public TrafficRollups getTrafficRollups() {
+        flush();
+        return rollups;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+package Server.Controller;
+
+import java.time.LocalDateTime;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A search of the traffic log: a date-time range, optionally narrowed down to the events of one user,
+ * to some event types and to messages containing a piece of text. Filters that are not set match
+ * everything. Run it with {@link LogManager#search(LogQuery)}.
+ */
+public class LogQuery {
+    private final LocalDateTime from;
+    private final LocalDateTime to;
+    private String user;
+    private Set<LogEntry.Type> types = EnumSet.allOf(LogEntry.Type.class);
+    private String text;
+    private Pattern textPattern;
+
+    /**
+     * @param from The start of the range, inclusive.
+     * @param to   The end of the range, exclusive.
+     */
+    public LogQuery(LocalDateTime from, LocalDateTime to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Keeps only the events of a user: their logins and logouts and the messages they sent or received.
+     *
+     * @param user The exact user name, or null for everyone.
+     * @return This query.
+     */
+    public LogQuery user(String user) {
+        this.user = user == null || user.isEmpty() ? null : user;
+        return this;
+    }
+
+    /**
+     * @param types The event types to keep; all of them if empty.
+     * @return This query.
+     */
+    public LogQuery types(Set<LogEntry.Type> types) {
+        this.types = types.isEmpty() ? EnumSet.allOf(LogEntry.Type.class) : EnumSet.copyOf(types);
+        return this;
+    }
+
+    /**
+     * Keeps only messages whose content contains the text, ignoring case.
+     *
+     * @param text The text to look for, or null for any.
+     * @return This query.
+     */
+    public LogQuery text(String text) {
+        this.text = text == null || text.isEmpty() ? null : text;
+        textPattern = this.text == null ? null : Pattern.compile(Pattern.quote(this.text), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        return this;
+    }
+
+    public LocalDateTime getFrom() {
+        return from;
+    }
+
+    public LocalDateTime getTo() {
+        return to;
+    }
+
+    /**
+     * A cheap check on the raw line that rules out most lines before they are parsed.
+     *
+     * @return False if the line cannot match.
+     */
+    boolean mightMatch(String line) {
+        return user == null || line.contains(user);
+    }
+
+    /**
+     * @return True if the entry passes the user, type and text filters. The time range is checked by the scan.
+     */
+    boolean matches(LogEntry entry) {
+        if (!types.contains(entry.getType())) {
+            return false;
+        }
+        if (user != null && !user.equals(entry.getUser()) && !user.equals(entry.getOtherUser())) {
+            return false;
+        }
+        return textPattern == null || (entry.getContent() != null && textPattern.matcher(entry.getContent()).find());
+    }
+}
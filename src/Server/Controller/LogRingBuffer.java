@@ -0,0 +1,91 @@
+package Server.Controller;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue with any number of producers and a single consumer. Producers claim a slot
+ * with one compare-and-set on the shared tail and publish it by advancing the slot's sequence number,
+ * so neither side ever takes a lock or waits for the other. A full buffer refuses the offer instead
+ * of blocking the producer.
+ *
+ * @param <T> The type of the queued events.
+ */
+public class LogRingBuffer<T> {
+    private final Object[] events;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    /**
+     * @param capacity The number of slots, rounded up to a power of two.
+     */
+    public LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        events = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Queues an event. Safe to call from any thread.
+     *
+     * @param event The event to queue.
+     * @return False if the buffer is full and the event was not queued.
+     */
+    public boolean offer(T event) {
+        long position = tail.get();
+        while (true) {
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    events[slot] = event;
+                    sequences.lazySet(slot, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest published event. Must only be called by the consumer thread.
+     *
+     * @return The event, or null if none is published yet.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        int slot = (int) head & mask;
+        if (sequences.get(slot) != head + 1) {
+            return null;
+        }
+        T event = (T) events[slot];
+        events[slot] = null;
+        sequences.lazySet(slot, head + events.length);
+        head++;
+        return event;
+    }
+
+    /**
+     * @return The number of events offered successfully so far.
+     */
+    public long published() {
+        return tail.get();
+    }
+
+    /**
+     * @return The number of slots.
+     */
+    public int capacity() {
+        return events.length;
+    }
+}
@@ -0,0 +1,645 @@
+package Server.Controller;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The traffic log, split into segment files per hour. A segment that grows past the configured size is
+ * continued in another part for the same hour, so an hour of heavy traffic becomes
+ * {@code traffic-2024-05-01-13.log}, {@code traffic-2024-05-01-13.1.log} and so on.
+ *
+ * Next to every segment lies a sparse index of [long time][long offset] pairs, named after the segment
+ * with {@code .idx} appended, where the time counts the local time of the log in seconds as if it were
+ * UTC. A query opens only the segments of the hours it covers, seeks to the last indexed line before its
+ * start and streams parsed entries from there until it has passed its end.
+ *
+ * Once the writer moves on from a segment, a background thread compresses it into a {@code .log.gz} made
+ * of one gzip member per {@link #ARCHIVE_BLOCK_BYTES} of log. The archive's index points at the members,
+ * so queries seek into archives just like into live segments, and the archive as a whole still reads as
+ * a single gzip file with the usual tools.
+ *
+ * Writing is done by a single thread: {@link #append} buffers a line, {@link #commit} writes the buffered
+ * lines and then their index entries, so an index never points past the log it describes. Reading is safe
+ * from any thread at any time.
+ */
+public class LogSegments {
+    private static final String PREFIX = "traffic-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String ARCHIVE_SUFFIX = ".log.gz";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final DateTimeFormatter HOUR = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH");
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int INDEX_ENTRY = 16;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+    private static final int ARCHIVE_BLOCK_BYTES = 64 * 1024;
+    /** The most matches a search task collects before it waits for the consumer to catch up. */
+    private static final int SCAN_CHUNK_ENTRIES = 4096;
+    /**
+     * Lines are logged in the order they reach the writer, which can differ from the order of their
+     * timestamps by a little. Seeks start and scans stop this many seconds beyond the queried range.
+     */
+    private static final long SLACK_SECONDS = 5;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final ConcurrentSkipListMap<SegmentId, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "log-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+    private final ByteBuffer pendingIndex = ByteBuffer.allocate(WRITE_BUFFER_BYTES / INDEX_INTERVAL_BYTES * INDEX_ENTRY * 2);
+    private Segment active;
+    private Segment resumable;
+    private FileChannel activeLog;
+    private FileChannel activeIndex;
+    private long activeSize;
+    private long lastIndexed;
+
+    /**
+     * Finds the existing segments, cleans up after a compression that was cut short and queues the live
+     * segments of earlier runs for compression. The newest one is left alone, since the writer continues it
+     * if the hour has not changed.
+     *
+     * @param directory    The directory holding the segments; created if missing.
+     * @param segmentBytes The size after which a segment is continued in a new part.
+     */
+    public LogSegments(Path directory, long segmentBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMPORARY_SUFFIX)) {
+                    Files.delete(file);
+                    continue;
+                }
+                if (name.endsWith(INDEX_SUFFIX)) {
+                    continue;
+                }
+                SegmentId id = SegmentId.parse(name);
+                if (id == null) {
+                    System.out.println("Ignoring unexpected file in the log directory: " + name);
+                    continue;
+                }
+                Segment known = segments.get(id);
+                if (known == null) {
+                    segments.put(id, new Segment(id, file));
+                    continue;
+                }
+                // Both the live segment and its archive exist: the compression did not finish, start it over.
+                Path live = name.endsWith(ARCHIVE_SUFFIX) ? known.file : file;
+                Path archive = live == file ? known.file : file;
+                Files.delete(archive);
+                Files.deleteIfExists(indexFor(archive));
+                known.file = live;
+            }
+        }
+        for (Segment segment : segments.values()) {
+            if (!segment.isArchived()) {
+                if (resumable != null) {
+                    compressLater(resumable);
+                }
+                resumable = segment;
+            }
+        }
+    }
+
+    /**
+     * Buffers a line for the segment of its hour. Lines that arrive after a later hour was started are
+     * kept in the later segment rather than reopening an old one.
+     *
+     * @param time The time the line was logged, in the local time of the log.
+     * @param line The encoded line, including its line separator.
+     */
+    public void append(LocalDateTime time, byte[] line) throws IOException {
+        LocalDateTime hour = time.truncatedTo(ChronoUnit.HOURS);
+        if (active == null || hour.isAfter(active.id.hour)) {
+            roll(new SegmentId(hour, 0));
+        } else if (activeSize + buffer.position() > 0 && activeSize + buffer.position() + line.length > segmentBytes) {
+            roll(new SegmentId(active.id.hour, active.id.part + 1));
+        }
+        if (line.length > buffer.remaining() || pendingIndex.remaining() < INDEX_ENTRY) {
+            commit();
+        }
+        long offset = activeSize + buffer.position();
+        if (offset - lastIndexed >= INDEX_INTERVAL_BYTES) {
+            pendingIndex.putLong(time.toEpochSecond(ZoneOffset.UTC)).putLong(offset);
+            lastIndexed = offset;
+        }
+        if (line.length > buffer.capacity()) {
+            writeFully(activeLog, ByteBuffer.wrap(line));
+            activeSize += line.length;
+        } else {
+            buffer.put(line);
+        }
+    }
+
+    /**
+     * Writes the buffered lines, then the index entries pointing into them.
+     */
+    public void commit() throws IOException {
+        if (activeLog == null) {
+            return;
+        }
+        buffer.flip();
+        activeSize += writeFully(activeLog, buffer);
+        buffer.clear();
+        pendingIndex.flip();
+        writeFully(activeIndex, pendingIndex);
+        pendingIndex.clear();
+    }
+
+    /**
+     * Forces the active segment to disk. Its index is not forced, since it only speeds up queries.
+     */
+    public void force() throws IOException {
+        if (activeLog != null) {
+            activeLog.force(false);
+        }
+    }
+
+    /**
+     * Commits what is buffered and closes the active segment. Segments still waiting for compression are
+     * compressed on the next start.
+     */
+    public void close() throws IOException {
+        commit();
+        closeActive();
+        compressor.shutdown();
+    }
+
+    /**
+     * Streams the entries logged in a time range, opening segment files only as the stream reaches them.
+     * The stream must be closed if it is not consumed to the end.
+     *
+     * @param from The start of the range, inclusive.
+     * @param to   The end of the range, exclusive.
+     * @return The entries in the order they were logged.
+     */
+    public Stream<LogEntry> read(LocalDateTime from, LocalDateTime to) {
+        long fromKey = from.toEpochSecond(ZoneOffset.UTC);
+        long toKey = to.toEpochSecond(ZoneOffset.UTC);
+        if (fromKey >= toKey) {
+            return Stream.empty();
+        }
+        return segmentsBetween(from, to).stream().flatMap(segment -> readSegment(segment, fromKey, toKey));
+    }
+
+    /**
+     * Runs a search with fork/join tasks per segment of its range and streams the matches in the order they
+     * were logged. A task collects at most {@link #SCAN_CHUNK_ENTRIES} matches; the rest of its segment is
+     * scanned by another task once the consumer reached that chunk. At most twice the pool's parallelism
+     * chunks are scanned ahead of the consumer, so a search over months of log neither waits for all of it
+     * nor holds more than a bounded number of matches in memory. Closing the stream cancels the scans that
+     * have not started and closes the segments left open.
+     *
+     * @param query The search.
+     * @param pool  The pool the segments are scanned on.
+     * @return The matching entries.
+     */
+    public Stream<LogEntry> search(LogQuery query, ForkJoinPool pool) {
+        long fromKey = query.getFrom().toEpochSecond(ZoneOffset.UTC);
+        long toKey = query.getTo().toEpochSecond(ZoneOffset.UTC);
+        if (fromKey >= toKey) {
+            return Stream.empty();
+        }
+        Iterator<Segment> remaining = new ArrayList<>(segmentsBetween(query.getFrom(), query.getTo())).iterator();
+        int lookahead = pool.getParallelism() * 2;
+        Deque<ForkJoinTask<ScanChunk>> pending = new ArrayDeque<>();
+        Set<Stream<LogEntry>> open = ConcurrentHashMap.newKeySet();
+        Iterator<List<LogEntry>> results = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                scanAhead();
+                return !pending.isEmpty();
+            }
+
+            @Override
+            public List<LogEntry> next() {
+                scanAhead();
+                if (pending.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                ScanChunk chunk = pending.poll().join();
+                if (chunk.rest != null) {
+                    pending.addFirst(pool.submit(() -> chunk.next(open)));
+                }
+                return chunk.entries;
+            }
+
+            private void scanAhead() {
+                while (pending.size() < lookahead && remaining.hasNext()) {
+                    Segment segment = remaining.next();
+                    pending.add(pool.submit(() -> scan(segment, query, fromKey, toKey, open)));
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .flatMap(List::stream)
+                .onClose(() -> {
+                    pending.forEach(task -> task.cancel(false));
+                    open.forEach(Stream::close);
+                });
+    }
+
+    /**
+     * Streams every line of the log.
+     */
+    public Stream<String> readAll() {
+        return segments.values().stream().flatMap(segment -> lines(segment, Long.MIN_VALUE));
+    }
+
+    /**
+     * @return The days for which the log has segments.
+     */
+    public SortedSet<LocalDate> days() {
+        SortedSet<LocalDate> days = new TreeSet<>();
+        for (SegmentId id : segments.keySet()) {
+            days.add(id.hour.toLocalDate());
+        }
+        return days;
+    }
+
+    /**
+     * Moves the lines of a single-file log from before segments existed into segments, then renames the file
+     * so it is not imported again. Lines without a timestamp go with the line before them.
+     *
+     * @param legacy The old log file.
+     */
+    public void importLegacy(Path legacy) throws IOException {
+        if (!Files.exists(legacy)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(legacy)) {
+            LocalDateTime time = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                LogEntry entry = LogEntry.parse(line);
+                if (entry != null) {
+                    time = entry.getTime();
+                }
+                if (time != null) {
+                    append(time, (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        commit();
+        force();
+        Files.move(legacy, legacy.resolveSibling(legacy.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return The segments that can hold entries of the range, allowing for the slack.
+     */
+    private Collection<Segment> segmentsBetween(LocalDateTime from, LocalDateTime to) {
+        SegmentId first = new SegmentId(from.minusSeconds(SLACK_SECONDS).truncatedTo(ChronoUnit.HOURS), 0);
+        SegmentId last = new SegmentId(to.plusSeconds(SLACK_SECONDS).minusNanos(1).truncatedTo(ChronoUnit.HOURS), Integer.MAX_VALUE);
+        return segments.subMap(first, true, last, true).values();
+    }
+
+    /**
+     * Collects the first entries of one segment that match a search. Lines are only parsed beyond their
+     * timestamp if a cheap check on the raw line lets them through.
+     *
+     * @param open The segments being scanned, which a closed search closes.
+     */
+    private static ScanChunk scan(Segment segment, LogQuery query, long fromKey, long toKey, Set<Stream<LogEntry>> open) {
+        Stream<LogEntry> matches = readSegment(segment, fromKey, toKey)
+                .filter(entry -> query.mightMatch(entry.getLine()) && query.matches(entry));
+        open.add(matches);
+        return ScanChunk.collect(matches, matches.iterator(), open);
+    }
+
+    private static Stream<LogEntry> readSegment(Segment segment, long fromKey, long toKey) {
+        return lines(segment, fromKey - SLACK_SECONDS)
+                .map(LogEntry::parse)
+                .filter(Objects::nonNull)
+                .takeWhile(entry -> entry.timeKey() < toKey + SLACK_SECONDS)
+                .filter(entry -> entry.timeKey() >= fromKey && entry.timeKey() < toKey);
+    }
+
+    /**
+     * Reads the lines of a segment lazily, starting at the last indexed line logged before the key.
+     * Malformed bytes are replaced rather than failing the query. A segment that is archived while it is
+     * being opened is read from the archive.
+     */
+    private static Stream<String> lines(Segment segment, long key) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Path file = segment.file;
+            try {
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                long offset;
+                try {
+                    offset = seek(indexFor(file), key, channel.size());
+                } catch (IOException e) {
+                    offset = 0;
+                }
+                InputStream in = Channels.newInputStream(channel.position(offset));
+                if (file.getFileName().toString().endsWith(ARCHIVE_SUFFIX)) {
+                    in = new GZIPInputStream(in, ARCHIVE_BLOCK_BYTES);
+                }
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE)), WRITE_BUFFER_BYTES);
+                return reader.lines().onClose(() -> {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (NoSuchFileException e) {
+                // Archived in the meantime, try again with the archive.
+            } catch (IOException e) {
+                e.printStackTrace();
+                return Stream.empty();
+            }
+        }
+        return Stream.empty();
+    }
+
+    /**
+     * @return The offset of the last indexed line logged before the key, or 0 if there is none.
+     */
+    private static long seek(Path index, long key, long size) throws IOException {
+        if (key == Long.MIN_VALUE || !Files.exists(index)) {
+            return 0;
+        }
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(index));
+        int low = 0;
+        int high = entries.capacity() / INDEX_ENTRY - 1;
+        long offset = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (entries.getLong(middle * INDEX_ENTRY) < key) {
+                offset = entries.getLong(middle * INDEX_ENTRY + 8);
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return offset <= size ? offset : 0;
+    }
+
+    /**
+     * Makes the segment with the given id the active one and queues the one being left for compression. A
+     * live segment left by an earlier run is continued if it belongs to the same hour; an id taken by an
+     * earlier run is moved on to the next free part of its hour.
+     */
+    private void roll(SegmentId id) throws IOException {
+        commit();
+        closeActive();
+        if (active != null) {
+            compressLater(active);
+        }
+        if (resumable != null && resumable.id.hour.equals(id.hour)) {
+            active = resumable;
+        } else {
+            if (resumable != null) {
+                compressLater(resumable);
+            }
+            SegmentId taken = segments.floorKey(new SegmentId(id.hour, Integer.MAX_VALUE));
+            if (taken != null && taken.hour.equals(id.hour) && taken.part >= id.part) {
+                id = new SegmentId(id.hour, taken.part + 1);
+            }
+            active = new Segment(id, directory.resolve(id.fileName(LOG_SUFFIX)));
+        }
+        resumable = null;
+        activeLog = FileChannel.open(active.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeIndex = FileChannel.open(indexFor(active.file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeSize = activeLog.size();
+        lastIndexed = activeSize - INDEX_INTERVAL_BYTES;
+        segments.put(active.id, active);
+    }
+
+    private void closeActive() throws IOException {
+        if (activeLog != null) {
+            activeLog.close();
+            activeIndex.close();
+            activeLog = null;
+            activeIndex = null;
+        }
+    }
+
+    private void compressLater(Segment segment) {
+        compressor.execute(() -> {
+            try {
+                compress(segment);
+            } catch (IOException e) {
+                System.out.println("Could not compress log segment " + segment.file + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Compresses a segment the writer is done with into an archive of independent gzip members, each holding
+     * whole lines, indexes the members by the time of their first line and then replaces the live segment
+     * with the archive.
+     */
+    private void compress(Segment segment) throws IOException {
+        Path live = segment.file;
+        if (segment.isArchived() || !Files.exists(live)) {
+            return;
+        }
+        Path archive = directory.resolve(segment.id.fileName(ARCHIVE_SUFFIX));
+        Path archiveTemporary = archive.resolveSibling(archive.getFileName() + TEMPORARY_SUFFIX);
+        Path index = indexFor(archive);
+        Path indexTemporary = index.resolveSibling(index.getFileName() + TEMPORARY_SUFFIX);
+        try (InputStream in = Files.newInputStream(live);
+             FileChannel out = FileChannel.open(archiveTemporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexTemporary)))) {
+            byte[] block = new byte[ARCHIVE_BLOCK_BYTES];
+            ByteArrayOutputStream member = new ByteArrayOutputStream(ARCHIVE_BLOCK_BYTES);
+            long time = Long.MIN_VALUE;
+            int filled = 0;
+            boolean ended = false;
+            while (!ended || filled > 0) {
+                while (!ended && filled < block.length) {
+                    int read = in.read(block, filled, block.length - filled);
+                    if (read < 0) {
+                        ended = true;
+                    } else {
+                        filled += read;
+                    }
+                }
+                int cut = filled;
+                if (!ended) {
+                    while (cut > 0 && block[cut - 1] != '\n') {
+                        cut--;
+                    }
+                    if (cut == 0) {
+                        cut = filled; // A single line longer than a block.
+                    }
+                }
+                LogEntry first = LogEntry.parse(new String(block, 0, Math.min(cut, 32), StandardCharsets.UTF_8));
+                if (first != null) {
+                    time = first.timeKey();
+                }
+                indexOut.writeLong(time);
+                indexOut.writeLong(out.position());
+                member.reset();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(member)) {
+                    gzip.write(block, 0, cut);
+                }
+                writeFully(out, ByteBuffer.wrap(member.toByteArray()));
+                System.arraycopy(block, cut, block, 0, filled - cut);
+                filled -= cut;
+            }
+            out.force(false);
+        }
+        Files.move(indexTemporary, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(archiveTemporary, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        segment.file = archive;
+        Files.delete(live);
+        Files.deleteIfExists(indexFor(live));
+    }
+
+    private static Path indexFor(Path file) {
+        return file.resolveSibling(file.getFileName() + INDEX_SUFFIX);
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+    /**
+     * The hour a segment belongs to and which of the hour's parts it is.
+     */
+    private static final class SegmentId implements Comparable<SegmentId> {
+        final LocalDateTime hour;
+        final int part;
+
+        SegmentId(LocalDateTime hour, int part) {
+            this.hour = hour;
+            this.part = part;
+        }
+
+        /**
+         * @return The id in a segment or archive file name, or null if the name is not one.
+         */
+        static SegmentId parse(String name) {
+            String suffix = name.endsWith(ARCHIVE_SUFFIX) ? ARCHIVE_SUFFIX : name.endsWith(LOG_SUFFIX) ? LOG_SUFFIX : null;
+            if (suffix == null) {
+                return null;
+            }
+            String id = name.substring(PREFIX.length(), name.length() - suffix.length());
+            int dot = id.indexOf('.');
+            try {
+                return new SegmentId(LocalDateTime.parse(dot < 0 ? id : id.substring(0, dot), HOUR),
+                        dot < 0 ? 0 : Integer.parseInt(id.substring(dot + 1)));
+            } catch (DateTimeParseException | NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String fileName(String suffix) {
+            return PREFIX + hour.format(HOUR) + (part == 0 ? "" : "." + part) + suffix;
+        }
+
+        @Override
+        public int compareTo(SegmentId other) {
+            int byHour = hour.compareTo(other.hour);
+            return byHour != 0 ? byHour : Integer.compare(part, other.part);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof SegmentId && compareTo((SegmentId) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return hour.hashCode() * 31 + part;
+        }
+    }
+
+    /**
+     * Up to {@link #SCAN_CHUNK_ENTRIES} matches of a search in one segment, and where to continue if there
+     * are more.
+     */
+    private static final class ScanChunk {
+        private final List<LogEntry> entries;
+        private final Stream<LogEntry> matches;
+        /** The matches still to be collected, or null if the segment is done and closed. */
+        private final Iterator<LogEntry> rest;
+
+        private ScanChunk(List<LogEntry> entries, Stream<LogEntry> matches, Iterator<LogEntry> rest) {
+            this.entries = entries;
+            this.matches = matches;
+            this.rest = rest;
+        }
+
+        /**
+         * Collects the next chunk of matches, closing the segment once they are all collected.
+         *
+         * @param open The segments being scanned, which a closed search closes.
+         */
+        static ScanChunk collect(Stream<LogEntry> matches, Iterator<LogEntry> rest, Set<Stream<LogEntry>> open) {
+            List<LogEntry> entries = new ArrayList<>();
+            boolean more = false;
+            try {
+                while (entries.size() < SCAN_CHUNK_ENTRIES && rest.hasNext()) {
+                    entries.add(rest.next());
+                }
+                more = rest.hasNext();
+            } finally {
+                if (!more) {
+                    open.remove(matches);
+                    matches.close();
+                }
+            }
+            return new ScanChunk(entries, matches, more ? rest : null);
+        }
+
+        ScanChunk next(Set<Stream<LogEntry>> open) {
+            return collect(matches, rest, open);
+        }
+    }
+
+    /**
+     * A segment and the file it currently lives in, which changes once when it is archived.
+     */
+    private static final class Segment {
+        final SegmentId id;
+        volatile Path file;
+
+        Segment(SegmentId id, Path file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        boolean isArchived() {
+            return file.getFileName().toString().endsWith(ARCHIVE_SUFFIX);
+        }
+    }
+}
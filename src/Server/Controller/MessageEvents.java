@@ -0,0 +1,127 @@
+package Server.Controller;
+
+import Shared.Envelope;
+import Shared.Message;
+import jdk.jfr.*;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Java Flight Recorder events for each stage of a message's life on the server, so a recording shows
+ * per-message timelines next to the JVM's own GC, lock and socket events. Every event carries the
+ * sender, the number of receivers and a size in bytes. Stack traces are left out to keep the events
+ * cheap; while no recording is running they cost next to nothing.
+ *
+ * Record with, for example, {@code java -XX:StartFlightRecording=filename=server.jfr,settings=profile MainServer}
+ * and open the file in JDK Mission Control, where the events are listed under ChatApp.
+ */
+public final class MessageEvents {
+
+    private MessageEvents() {
+    }
+
+    /**
+     * The fields every lifecycle event has.
+     */
+    @Category({"ChatApp", "Server"})
+    @StackTrace(false)
+    public abstract static class LifecycleEvent extends Event {
+        @Label("Sender")
+        @Description("The user who sent the message, or the user the event is about")
+        String sender;
+
+        @Label("Receivers")
+        @Description("The number of users the message or update is for")
+        int receivers;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        /**
+         * Fills in the sender and receiver count of a message or a shared group envelope. Any other object
+         * counts as having one receiver and no sender.
+         */
+        void describe(Object obj) {
+            Message message = obj instanceof Envelope ? ((Envelope) obj).getBody().getMessage()
+                    : obj instanceof Message ? (Message) obj : null;
+            receivers = 1;
+            if (message != null) {
+                sender = message.getSender() == null ? null : message.getSender().getUserName();
+                if (message.getGroupOfReceivers() != null) {
+                    receivers = message.getGroupOfReceivers().size();
+                }
+            }
+        }
+
+        /**
+         * @return The size of the content of a message in UTF-8, for stages that handle messages as objects.
+         */
+        static long contentBytes(Message message) {
+            return message.getContent() == null ? 0 : message.getContent().getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+
+    @Name("chatapp.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Description("A client connection was accepted")
+    public static final class ConnectionAccepted extends LifecycleEvent {
+        @Label("Remote Address")
+        String remoteAddress;
+    }
+
+    @Name("chatapp.Login")
+    @Label("Login Handled")
+    @Description("A login was registered, the other users told and delivery of saved messages started")
+    public static final class Login extends LifecycleEvent {
+    }
+
+    /**
+     * On the NIO engine its duration covers decoding the complete frame. The blocking engine reads and
+     * decodes inside its transport, so there the event only marks the moment the object was decoded;
+     * long socket reads show as the JVM's own jdk.SocketRead events.
+     */
+    @Name("chatapp.MessageRead")
+    @Label("Message Read")
+    @Description("An object was read and decoded from a client")
+    public static final class MessageRead extends LifecycleEvent {
+    }
+
+    @Name("chatapp.MessageRouted")
+    @Label("Message Routed")
+    @Description("A message was handed to the queues of its online receivers and saved for the offline ones")
+    public static final class MessageRouted extends LifecycleEvent {
+    }
+
+    @Name("chatapp.MessageQueuedOffline")
+    @Label("Message Queued Offline")
+    @Description("A message was saved for a receiver who is offline")
+    public static final class MessageQueuedOffline extends LifecycleEvent {
+        @Label("Receiver")
+        String receiver;
+
+        @Label("Accepted")
+        @Description("False if a quota refused the message")
+        boolean accepted;
+    }
+
+    @Name("chatapp.MessageWritten")
+    @Label("Message Written")
+    @Description("Encoded objects were written to a client's socket")
+    public static final class MessageWritten extends LifecycleEvent {
+        @Label("Receiver")
+        String receiver;
+
+        @Label("Objects")
+        @Description("The number of objects written at once")
+        int objects;
+    }
+
+    @Name("chatapp.PresenceBroadcast")
+    @Label("Presence Broadcast")
+    @Description("The online users were told that a user joined or left")
+    public static final class PresenceBroadcast extends LifecycleEvent {
+        @Label("Joined")
+        boolean joined;
+    }
+}
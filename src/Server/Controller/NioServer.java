@@ -0,0 +1,602 @@
+package Server.Controller;
+
+import Shared.Codec;
+import Shared.Envelope;
+import Shared.Message;
+import Shared.Protocol;
+import Shared.User;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server engine built on a Selector per event loop. The calling thread accepts
+ * connections and hands them round-robin to a fixed pool of event loops. Each loop owns its
+ * channels and does their handshake, frame parsing and socket writes, so no thread is tied to a
+ * connection and an idle client costs a channel plus one small state object.
+ *
+ * Decoded objects are routed on a shared pool of worker threads, one object of a connection at a
+ * time and in the order they were read, so writing to the offline store or the blob store, or fanning
+ * out to a large group, never holds up the other connections of a loop. A loop stops reading from a
+ * client that has {@link #MAX_INBOUND_OBJECTS} objects waiting to be routed until the workers catch up.
+ *
+ * Only framed clients are supported; a legacy object stream client is disconnected during the
+ * handshake and has to use the blocking engine.
+ */
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_PARTIAL_SIZE = 4 * 1024;
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final int MAX_GATHER = 16;
+    private static final int MAX_INBOUND_OBJECTS = 64;
+    /** Marks the end of a connection in its inbound queue, so logging out is routed after everything it read. */
+    private static final Object CLOSED = new Object();
+
+    private final ServerManager server;
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+
+    /**
+     * @param server The server that routes the messages read by the event loops.
+     * @param config Provides the port and the number of event loops.
+     */
+    NioServer(ServerManager server, ServerConfig config) throws IOException {
+        this.server = server;
+        this.config = config;
+        loops = new EventLoop[config.getIoThreads()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(config.getWorkerThreads(), task -> {
+            Thread thread = new Thread(task, "nio-worker-" + workerCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the calling thread until the process exits.
+     */
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+        }
+        try (ServerSocketChannel acceptor = ServerSocketChannel.open()) {
+            acceptor.bind(new InetSocketAddress(config.getPort()), ACCEPT_BACKLOG);
+            System.out.println("NIO engine listening with " + loops.length + " event loops and "
+                    + config.getWorkerThreads() + " worker threads.");
+            int next = 0;
+            while (true) {
+                SocketChannel channel = acceptor.accept();
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    loops[next].register(channel);
+                    server.getMetrics().connectionAccepted();
+                    MessageEvents.ConnectionAccepted accepted = new MessageEvents.ConnectionAccepted();
+                    if (accepted.shouldCommit()) {
+                        accepted.remoteAddress = String.valueOf(channel.getRemoteAddress());
+                        accepted.commit();
+                    }
+                    next = (next + 1) % loops.length;
+                } catch (IOException e) {
+                    channel.close();
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A selector thread. Other threads only talk to it through its queues and a wakeup.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingResumes = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        void scheduleWrite(NioConnection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        void scheduleResume(NioConnection connection) {
+            pendingResumes.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs the loop until the process exits. Nothing may end it: every connection it owns would hang.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    runOnce();
+                } catch (Throwable e) {
+                    System.out.println(Thread.currentThread().getName() + " recovered from " + e);
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void runOnce() {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            SocketChannel channel;
+            while ((channel = registrations.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(this, channel, key));
+                } catch (ClosedChannelException e) {
+                    // The client went away before we got to it.
+                    server.getMetrics().connectionClosed();
+                }
+            }
+            NioConnection pending;
+            while ((pending = pendingResumes.poll()) != null) {
+                try {
+                    pending.resumeReading();
+                } catch (IOException e) {
+                    pending.shutdown();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    pending.shutdown();
+                }
+            }
+            while ((pending = pendingWrites.poll()) != null) {
+                handle(pending, false);
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    handle(connection, true);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    handle(connection, false);
+                }
+            }
+        }
+
+        private void handle(NioConnection connection, boolean read) {
+            try {
+                if (read) {
+                    connection.read(readBuffer);
+                } else {
+                    connection.flush();
+                }
+            } catch (IOException e) {
+                connection.shutdown();
+            } catch (RuntimeException | Error e) {
+                e.printStackTrace();
+                connection.shutdown();
+            }
+        }
+    }
+
+    /**
+     * State of one client channel. Reads and writes happen on the owning event loop, objects read are
+     * routed on a worker, and {@link #sendMessage(Object)} may be called from any thread that routes a
+     * message here. Queued objects are only encoded once the socket has room for them, so the outbound
+     * queue depth is the real backlog of the client.
+     */
+    private class NioConnection implements Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final OutboundQueue outbound = server.newOutboundQueue();
+        private final ArrayDeque<ByteBuffer> pendingFrames = new ArrayDeque<>();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Queue<Object> inbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inboundCount = new AtomicInteger();
+        private final AtomicBoolean routing = new AtomicBoolean();
+        private final AtomicBoolean readPaused = new AtomicBoolean();
+        private ByteBuffer partial;
+        private boolean loginRead;
+        private volatile Codec codec;
+        private volatile User user;
+        private volatile boolean closeRequested;
+
+        NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /**
+         * Reads what is available and processes every complete hello or frame. Bytes of an incomplete
+         * frame are kept in a buffer of their own that grows as they arrive, whatever length the frame
+         * claims; idle connections hold no buffer at all.
+         */
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                shutdown();
+                return;
+            }
+            buffer.flip();
+            ByteBuffer input = buffer;
+            if (partial != null) {
+                partial = ensureCapacity(partial, buffer.remaining());
+                partial.put(buffer);
+                partial.flip();
+                input = partial;
+            }
+            consume(input);
+        }
+
+        /**
+         * Reads from the client again once the workers caught up, starting with the frames it already sent.
+         */
+        void resumeReading() throws IOException {
+            if (closed.get() || !key.isValid()) {
+                return;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            if (partial != null) {
+                partial.flip();
+                consume(partial);
+            }
+        }
+
+        /**
+         * Processes the input and keeps what is left of it for the next read.
+         */
+        private void consume(ByteBuffer input) throws IOException {
+            process(input);
+            if (!input.hasRemaining()) {
+                partial = null;
+            } else if (input == partial) {
+                partial.compact();
+            } else {
+                partial = ByteBuffer.allocate(Math.max(input.remaining(), Math.min(requiredBytes(input), INITIAL_PARTIAL_SIZE)));
+                partial.put(input);
+            }
+        }
+
+        private void process(ByteBuffer input) throws IOException {
+            while (!closed.get() && !readPaused.get()) {
+                if (codec == null) {
+                    if (input.remaining() < Protocol.HELLO_LENGTH) {
+                        return;
+                    }
+                    byte[] hello = new byte[Protocol.HELLO_LENGTH];
+                    input.get(hello);
+                    byte accepted = Protocol.negotiate(hello);
+                    codec = Protocol.serverCodecFor(accepted);
+                    pendingFrames.add(ByteBuffer.wrap(new byte[]{accepted}));
+                    requestFlush();
+                    continue;
+                }
+                if (input.remaining() < Protocol.FRAME_HEADER_LENGTH) {
+                    return;
+                }
+                int length = frameLength(input);
+                if (input.remaining() < Protocol.FRAME_HEADER_LENGTH + length) {
+                    return;
+                }
+                int start = input.position() + Protocol.FRAME_HEADER_LENGTH;
+                MessageEvents.MessageRead event = new MessageEvents.MessageRead();
+                event.begin();
+                long decoding = System.nanoTime();
+                Object obj = codec.decode(input.array(), input.arrayOffset() + start, length);
+                server.getMetrics().record(ServerMetrics.Stage.READ, System.nanoTime() - decoding);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.describe(obj);
+                    event.bytes = Protocol.FRAME_HEADER_LENGTH + length;
+                    event.commit();
+                }
+                input.position(start + length);
+                loginRead |= obj instanceof Message;
+                route(obj);
+                if (inboundCount.get() >= MAX_INBOUND_OBJECTS) {
+                    pauseReading();
+                }
+            }
+        }
+
+        /**
+         * Stops reading until the workers routed what this client sent. The count is checked again after
+         * the flag is set, so a worker that finished in between is not missed.
+         */
+        private void pauseReading() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            readPaused.set(true);
+            if (inboundCount.get() < MAX_INBOUND_OBJECTS && readPaused.compareAndSet(true, false)) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Queues an object for routing and makes sure a worker is routing this connection's objects.
+         */
+        private void route(Object obj) {
+            inbound.add(obj);
+            inboundCount.incrementAndGet();
+            if (routing.compareAndSet(false, true)) {
+                workers.execute(this::routeQueued);
+            }
+        }
+
+        /**
+         * Routes queued objects in order until the queue is empty. Only one worker at a time runs this for a
+         * connection; an object queued just as it finishes is picked up by it or by the next one.
+         */
+        private void routeQueued() {
+            while (true) {
+                Object obj;
+                while ((obj = inbound.poll()) != null) {
+                    if (inboundCount.decrementAndGet() < MAX_INBOUND_OBJECTS / 2 && readPaused.compareAndSet(true, false)) {
+                        loop.scheduleResume(this);
+                    }
+                    try {
+                        if (obj == CLOSED) {
+                            loggedOut();
+                        } else if (!closed.get()) {
+                            dispatch(obj);
+                        }
+                    } catch (IOException e) {
+                        shutdown();
+                    } catch (RuntimeException | Error e) {
+                        e.printStackTrace();
+                        shutdown();
+                    }
+                }
+                routing.set(false);
+                if (inbound.isEmpty() || !routing.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return The length of the frame at the start of the input. Until the login message was read, only
+         *         frames of up to {@link Protocol#MAX_LOGIN_FRAME_LENGTH} are accepted.
+         */
+        private int frameLength(ByteBuffer input) throws IOException {
+            int length = input.getInt(input.position());
+            if (length < 0 || length > (loginRead ? Protocol.MAX_FRAME_LENGTH : Protocol.MAX_LOGIN_FRAME_LENGTH)) {
+                throw new StreamCorruptedException("Invalid frame length " + length + ".");
+            }
+            return length;
+        }
+
+        private int requiredBytes(ByteBuffer input) throws IOException {
+            if (codec == null) {
+                return Protocol.HELLO_LENGTH;
+            }
+            if (input.remaining() < Protocol.FRAME_HEADER_LENGTH) {
+                return Protocol.FRAME_HEADER_LENGTH;
+            }
+            return Protocol.FRAME_HEADER_LENGTH + frameLength(input);
+        }
+
+        private ByteBuffer ensureCapacity(ByteBuffer buffer, int extra) {
+            if (buffer.remaining() >= extra) {
+                return buffer;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+            buffer.flip();
+            grown.put(buffer);
+            return grown;
+        }
+
+        private void dispatch(Object obj) throws IOException {
+            if (user == null && obj instanceof Message) {
+                user = ServerManager.loginUser((Message) obj);
+                server.clientLoggedIn(this);
+            } else {
+                server.handleClientObject(this, obj);
+            }
+        }
+
+        /**
+         * Writes queued frames until the queue is empty or the socket buffer is full, in which case
+         * the loop is asked to call again once the channel becomes writable. One MessageWritten event
+         * covers the whole call; its sender is that of the first object encoded.
+         */
+        void flush() throws IOException {
+            writeScheduled.set(false);
+            if (closeRequested) {
+                shutdown();
+                return;
+            }
+            MessageEvents.MessageWritten event = new MessageEvents.MessageWritten();
+            event.begin();
+            Object first = null;
+            int objects = 0;
+            long written = 0;
+            ByteBuffer[] gather = loop.gather;
+            try {
+                while (true) {
+                    Object obj;
+                    while (pendingFrames.size() < MAX_GATHER && (obj = outbound.poll()) != null) {
+                        addFrame(obj);
+                        if (first == null) {
+                            first = obj;
+                        }
+                        objects++;
+                    }
+                    if (pendingFrames.isEmpty()) {
+                        break;
+                    }
+                    int count = 0;
+                    for (ByteBuffer frame : pendingFrames) {
+                        gather[count++] = frame;
+                        if (count == MAX_GATHER) {
+                            break;
+                        }
+                    }
+                    long writing = System.nanoTime();
+                    written += channel.write(gather, 0, count);
+                    server.getMetrics().record(ServerMetrics.Stage.WRITE, System.nanoTime() - writing);
+                    boolean socketFull = false;
+                    for (int i = 0; i < count; i++) {
+                        if (gather[i].hasRemaining()) {
+                            socketFull = true;
+                            break;
+                        }
+                        pendingFrames.poll();
+                    }
+                    Arrays.fill(gather, 0, count, null);
+                    if (socketFull) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            } finally {
+                event.end();
+                if (written > 0 && event.shouldCommit()) {
+                    event.describe(first);
+                    event.receivers = 1;
+                    event.receiver = user == null ? null : user.getUserName();
+                    event.objects = objects;
+                    event.bytes = written;
+                    event.commit();
+                }
+            }
+        }
+
+        /**
+         * Encodes an object into pending frame buffers. An envelope becomes its own small header buffer followed
+         * by a read-only view of the shared body, so the body bytes are written without being copied.
+         */
+        private void addFrame(Object obj) throws IOException {
+            long encoding = System.nanoTime();
+            byte[] payload;
+            byte[] body = null;
+            if (obj instanceof Envelope) {
+                Envelope envelope = (Envelope) obj;
+                payload = codec.encodeEnvelope(envelope.getReceiver());
+                body = envelope.getBody().encoded(codec);
+            } else {
+                payload = codec.encode(obj);
+            }
+            int length = payload.length + (body == null ? 0 : body.length);
+            ByteBuffer frame = ByteBuffer.allocate(Protocol.FRAME_HEADER_LENGTH + payload.length);
+            frame.putInt(length).put(payload).flip();
+            pendingFrames.add(frame);
+            if (body != null) {
+                pendingFrames.add(ByteBuffer.wrap(body).asReadOnlyBuffer());
+            }
+            server.getMetrics().record(ServerMetrics.Stage.SERIALIZE, System.nanoTime() - encoding);
+        }
+
+        private void requestFlush() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.scheduleWrite(this);
+            }
+        }
+
+        @Override
+        public User getUser() {
+            return user;
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outbound;
+        }
+
+        /**
+         * Queues an object for the event loop to encode and write. This is called from event loops, which
+         * must never wait, so a full queue the overflow policy cannot make room in disconnects the client
+         * at once, whatever the overflow timeout.
+         *
+         * @param obj The object to send.
+         */
+        @Override
+        public void sendMessage(Object obj) {
+            if (closed.get()) {
+                return;
+            }
+            if (outbound.offerWithoutWaiting(obj)) {
+                requestFlush();
+            } else {
+                outbound.close();
+                System.out.println(ServerManager.nameOf(this) + " is not keeping up, disconnecting.");
+                closeRequested = true;
+                loop.scheduleWrite(this);
+            }
+        }
+
+        @Override
+        public boolean sendMessageWithoutWaiting(Object obj) {
+            if (closed.get()) {
+                return true;
+            }
+            if (!outbound.offerWithoutWaiting(obj)) {
+                return false;
+            }
+            requestFlush();
+            return true;
+        }
+
+        @Override
+        public void shutdown() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            server.getMetrics().connectionClosed();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            outbound.close();
+            route(CLOSED);
+        }
+
+        /**
+         * Routed after everything the client sent, so a login still waiting for a worker is not undone
+         * before it happened.
+         */
+        private void loggedOut() {
+            if (user != null) {
+                System.out.println(user.getUserName() + " has logged out.");
+                server.clientLoggedOut(this);
+            }
+        }
+    }
+}
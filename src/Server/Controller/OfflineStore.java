@@ -0,0 +1,868 @@
+package Server.Controller;
+
+import Shared.BinaryCodec;
+import Shared.Codec;
+import Shared.Message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable store for messages waiting for offline users: an append-only journal split into segment
+ * files, plus a memory-mapped index holding, per user, the position of their oldest and newest queued
+ * record. The records of one user are linked from oldest to newest, so reading a backlog reads only
+ * that user's records and the heap holds nothing but the segment handles, whatever the backlog.
+ * Backlogs are read in batches and only removed once the receiver acknowledged them.
+ *
+ * A record is [int payload length][int CRC32 of the payload][long position of the user's next record,
+ * -1 if none][long time queued, bit 62 marking a copy made by compaction][payload], where the payload
+ * is the receiver's name in modified UTF-8 followed by the message encoded with the {@link BinaryCodec}.
+ * A position holds the segment number in its high 32 bits and the offset within the segment in its
+ * low 32 bits.
+ *
+ * The index remembers up to which position it reflects the journal. On startup only the records after
+ * that point are read back and linked, and a record torn by a crash is cut off, so recovery time does
+ * not depend on how many messages are queued. Deleting the index rebuilds it from the whole journal,
+ * which brings back messages that were delivered but not compacted yet, and puts messages moved by
+ * compaction after the ones that were not.
+ *
+ * Neither the journal nor the index is forced to disk: both are left to the operating system, which
+ * writes them back even if the server process crashes. A crash of the machine itself can lose the last
+ * messages queued, or leave an index that points at records that never reached the disk.
+ *
+ * Appends beyond a per-user or a global quota of queued bytes are rejected, and messages older than
+ * the TTL are dropped. {@link #compact()} reclaims the space of delivered and expired messages in the
+ * background by deleting segments nobody refers to any more. The index slot of a user whose queue
+ * runs empty is marked free and reused by the next user probing past it; once free and used slots
+ * fill the index, it is rehashed without the free ones, and only grows if the users with queued
+ * messages need the room.
+ */
+public class OfflineStore {
+    private static final long NONE = -1;
+
+    private static final int RECORD_HEADER = 24;
+    private static final int RECORD_NEXT = 8;
+    private static final int RECORD_TIME = 16;
+    private static final long FLAG_MOVED = 1L << 62;
+    private static final long TIME_MASK = FLAG_MOVED - 1;
+
+    private static final int INDEX_MAGIC = 0x4F464958;
+    private static final int INDEX_VERSION = 3;
+    private static final int INDEX_HEADER = 64;
+    private static final int HEADER_SLOT_COUNT = 8;
+    private static final int HEADER_USED_SLOTS = 12;
+    private static final int HEADER_INDEXED_UP_TO = 16;
+    private static final int HEADER_QUEUED_BYTES = 24;
+    private static final int HEADER_QUEUED_MESSAGES = 32;
+    private static final int HEADER_FREED_SLOTS = 40;
+    private static final int INITIAL_SLOTS = 1024;
+
+    private static final int SLOT_SIZE = 128;
+    private static final int KEY_BYTES = 84;
+    private static final int KEY_PREFIX_BYTES = KEY_BYTES - 32;
+    private static final int SLOT_KEY_LENGTH = 0;
+    private static final int SLOT_KEY = 4;
+    private static final int SLOT_HEAD = 88;
+    private static final int SLOT_TAIL = 96;
+    private static final int SLOT_BYTES = 104;
+    private static final int SLOT_COUNT = 112;
+    private static final int FREED_SLOT = -1;
+
+    private static final double COMPACT_LIVE_RATIO = 0.5;
+    private static final int EXPIRE_CHUNK = 1024;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long userQuotaBytes;
+    private final long totalQuotaBytes;
+    private final long ttlMillis;
+    private final Codec codec = new BinaryCodec();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ConcurrentSkipListMap<Integer, FileChannel> segments = new ConcurrentSkipListMap<>();
+    private final AtomicLong expiredMessages = new AtomicLong();
+    private final AtomicLong rejectedMessages = new AtomicLong();
+    private final AtomicLong compactedMessages = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int slotCount;
+    private int indexGeneration;
+    private int activeSegment;
+    private long activeSize;
+
+    /**
+     * Opens the store, creating it if the directory is empty, and brings the index up to date with the journal.
+     *
+     * @param directory       The directory holding the segments and the index.
+     * @param segmentBytes    The size after which appends move on to a new segment.
+     * @param userQuotaBytes  The most bytes that may be queued for one user.
+     * @param totalQuotaBytes The most bytes that may be queued for all users together.
+     * @param ttlMillis       How long a message stays queued, or 0 to keep messages until they are delivered.
+     */
+    public OfflineStore(Path directory, long segmentBytes, long userQuotaBytes, long totalQuotaBytes, long ttlMillis)
+            throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = Math.min(segmentBytes, Integer.MAX_VALUE);
+        this.userQuotaBytes = userQuotaBytes;
+        this.totalQuotaBytes = totalQuotaBytes;
+        this.ttlMillis = ttlMillis;
+        openSegments();
+        boolean rebuilding = openIndex();
+        long started = System.nanoTime();
+        int recovered = recover(rebuilding);
+        activeSegment = segments.lastKey();
+        activeSize = segments.get(activeSegment).size();
+        if (recovered > 0) {
+            System.out.printf("Recovered %d offline messages in %d ms.%n", recovered, (System.nanoTime() - started) / 1_000_000);
+        }
+    }
+
+    /**
+     * Queues a message for its receiver, unless that would exceed the receiver's or the global quota.
+     *
+     * @param message A message whose receiver is offline.
+     * @return True if the message was queued, false if a quota rejected it.
+     */
+    public boolean append(Message message) throws IOException {
+        String receiver = message.getReceiver().getUserName();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeUTF(receiver);
+        out.write(codec.encode(message));
+        byte[] payload = bos.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).putLong(NONE).putLong(System.currentTimeMillis()).put(payload).flip();
+
+        byte[] key = keyFor(receiver);
+        int size = record.capacity();
+        lock.lock();
+        try {
+            int slot = findSlot(key);
+            long queued = slot < 0 ? 0 : index.getLong(slot + SLOT_BYTES);
+            if (queued + size > userQuotaBytes || index.getLong(HEADER_QUEUED_BYTES) + size > totalQuotaBytes) {
+                rejectedMessages.incrementAndGet();
+                return false;
+            }
+            link(key, appendRecord(record), size);
+            markIndexed();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the oldest messages queued for a user without removing them. Expired messages are skipped.
+     *
+     * @param userName The receiver whose queued messages are wanted.
+     * @param maxBytes The journal bytes after which the batch is cut; a batch covers at least one message.
+     * @return The oldest queued messages, or null if nothing is queued for the user. The batch may be
+     *         empty if every message it covers has expired.
+     */
+    public Batch readBatch(String userName, int maxBytes) throws IOException {
+        lock.lock();
+        try {
+            int slot = findSlot(keyFor(userName));
+            long position = slot < 0 ? NONE : index.getLong(slot + SLOT_HEAD);
+            if (position == NONE) {
+                return null;
+            }
+            List<Message> messages = new ArrayList<>();
+            long cutoff = expiryCutoff();
+            long last = NONE;
+            ByteBuffer lastHeader = null;
+            long bytes = 0;
+            while (position != NONE && (last == NONE || bytes < maxBytes)) {
+                FileChannel segment = segments.get(segmentOf(position));
+                ByteBuffer header = read(segment, offsetOf(position), RECORD_HEADER);
+                int length = header.getInt(0);
+                if ((header.getLong(RECORD_TIME) & TIME_MASK) >= cutoff) {
+                    messages.add(decode(read(segment, offsetOf(position) + RECORD_HEADER, length).array()));
+                }
+                bytes += RECORD_HEADER + length;
+                last = position;
+                lastHeader = header;
+                position = header.getLong(RECORD_NEXT);
+            }
+            return new Batch(messages, last, lastHeader.getInt(4), lastHeader.getLong(RECORD_TIME) & TIME_MASK);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the messages of a delivered batch from the front of a user's queue. If compaction moved the
+     * batch since it was read, its last message is recognized by the checksum and time its copy kept.
+     * Acknowledgements that do not match the front of the queue, such as repeated ones or ones for
+     * messages that expired meanwhile, are ignored.
+     *
+     * @param userName The receiver of the batch.
+     * @param batch    The batch that was delivered.
+     * @return True if the messages were removed.
+     */
+    public boolean acknowledge(String userName, Batch batch) throws IOException {
+        lock.lock();
+        try {
+            int slot = findSlot(keyFor(userName));
+            long position = slot < 0 ? NONE : index.getLong(slot + SLOT_HEAD);
+            int count = 0;
+            long bytes = 0;
+            while (position != NONE) {
+                ByteBuffer header = read(segments.get(segmentOf(position)), offsetOf(position), RECORD_HEADER);
+                count++;
+                bytes += RECORD_HEADER + header.getInt(0);
+                if (position == batch.last || (header.getLong(RECORD_TIME) & FLAG_MOVED) != 0
+                        && header.getInt(4) == batch.lastChecksum && (header.getLong(RECORD_TIME) & TIME_MASK) == batch.lastQueued) {
+                    dropHead(slot, header.getLong(RECORD_NEXT), count, bytes);
+                    return true;
+                }
+                position = header.getLong(RECORD_NEXT);
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One compaction pass. Expires messages older than the TTL, then finds out how many queued bytes each
+     * sealed segment still holds by walking every user's queue. Segments that hold none are deleted;
+     * the messages still queued in segments that are mostly dead are copied to the end of the journal
+     * first. The lock is only held for one user or one copied message at a time, so routing never waits
+     * for a whole pass.
+     */
+    public void compact() throws IOException {
+        long cutoff = expiryCutoff();
+        int generation;
+        int sealedBelow;
+        lock.lock();
+        try {
+            generation = indexGeneration;
+            sealedBelow = activeSegment;
+        } finally {
+            lock.unlock();
+        }
+
+        Map<Integer, Long> queuedBytes = new HashMap<>();
+        List<byte[]> usersInSealedSegments = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            byte[] key;
+            long head;
+            long tail;
+            lock.lock();
+            try {
+                if (indexGeneration != generation) {
+                    return; // The index was rehashed and its slots moved, the next pass starts over.
+                }
+                if (i >= slotCount) {
+                    break;
+                }
+                int slot = INDEX_HEADER + i * SLOT_SIZE;
+                int length = index.getInt(slot + SLOT_KEY_LENGTH);
+                if (length <= 0) {
+                    continue;
+                }
+                if (expire(slot, cutoff) == EXPIRE_CHUNK) {
+                    i--; // More to expire for this user, after letting routing in.
+                    continue;
+                }
+                head = index.getLong(slot + SLOT_HEAD);
+                tail = index.getLong(slot + SLOT_TAIL);
+                if (head == NONE) {
+                    continue;
+                }
+                key = new byte[length];
+                index.get(slot + SLOT_KEY, key);
+            } finally {
+                lock.unlock();
+            }
+            // Only this thread deletes segments or rewrites links before the tail, so the queue can be walked
+            // without the lock. Messages dropped meanwhile are merely counted as still queued.
+            boolean inSealedSegment = false;
+            long position = head;
+            while (position != NONE) {
+                ByteBuffer header = read(segments.get(segmentOf(position)), offsetOf(position), RECORD_HEADER);
+                queuedBytes.merge(segmentOf(position), (long) RECORD_HEADER + header.getInt(0), Long::sum);
+                inSealedSegment |= segmentOf(position) < sealedBelow;
+                position = position == tail ? NONE : header.getLong(RECORD_NEXT);
+            }
+            if (inSealedSegment) {
+                usersInSealedSegments.add(key);
+            }
+        }
+
+        Set<Integer> mostlyDead = new HashSet<>();
+        for (Map.Entry<Integer, FileChannel> entry : segments.headMap(sealedBelow).entrySet()) {
+            long queued = queuedBytes.getOrDefault(entry.getKey(), 0L);
+            if (queued == 0) {
+                deleteSegment(entry.getKey());
+            } else if (queued <= entry.getValue().size() * COMPACT_LIVE_RATIO) {
+                mostlyDead.add(entry.getKey());
+            }
+        }
+        if (!mostlyDead.isEmpty()) {
+            for (byte[] key : usersInSealedSegments) {
+                moveQueuedRecords(key, mostlyDead);
+            }
+            for (int segment : mostlyDead) {
+                deleteSegment(segment);
+            }
+        }
+    }
+
+    /**
+     * @return The number of messages dropped because they outlived the TTL.
+     */
+    public long getExpiredMessages() {
+        return expiredMessages.get();
+    }
+
+    /**
+     * @return The number of messages refused because a quota was reached.
+     */
+    public long getRejectedMessages() {
+        return rejectedMessages.get();
+    }
+
+    /**
+     * @return The number of queued messages compaction copied out of mostly dead segments.
+     */
+    public long getCompactedMessages() {
+        return compactedMessages.get();
+    }
+
+    /**
+     * @return The number of journal bytes compaction deleted.
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /**
+     * @return The number of bytes currently queued for all users.
+     */
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return index.getLong(HEADER_QUEUED_BYTES);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of messages currently queued for all users.
+     */
+    public long getQueuedMessages() {
+        lock.lock();
+        try {
+            return index.getLong(HEADER_QUEUED_MESSAGES);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long expiryCutoff() {
+        return ttlMillis > 0 ? System.currentTimeMillis() - ttlMillis : Long.MIN_VALUE;
+    }
+
+    /**
+     * Drops up to {@link #EXPIRE_CHUNK} messages older than the cutoff from the front of a user's queue.
+     * Must be called with the lock held.
+     *
+     * @return The number of messages dropped.
+     */
+    private int expire(int slot, long cutoff) throws IOException {
+        long position = index.getLong(slot + SLOT_HEAD);
+        int count = 0;
+        long bytes = 0;
+        while (position != NONE && count < EXPIRE_CHUNK) {
+            ByteBuffer header = read(segments.get(segmentOf(position)), offsetOf(position), RECORD_HEADER);
+            if ((header.getLong(RECORD_TIME) & TIME_MASK) >= cutoff) {
+                break;
+            }
+            count++;
+            bytes += RECORD_HEADER + header.getInt(0);
+            position = header.getLong(RECORD_NEXT);
+        }
+        if (count > 0) {
+            dropHead(slot, position, count, bytes);
+            expiredMessages.addAndGet(count);
+        }
+        return count;
+    }
+
+    /**
+     * Copies the messages a user still has queued in the given segments to the end of the journal and links
+     * the copies in place of the originals, one message per lock acquisition. When the front of the queue
+     * moves in between, the walk starts over from the new front.
+     */
+    private void moveQueuedRecords(byte[] key, Set<Integer> from) throws IOException {
+        long head = NONE;
+        long previous = NONE;
+        long position = NONE;
+        boolean restart = true;
+        while (true) {
+            lock.lock();
+            try {
+                int slot = findSlot(key);
+                if (slot < 0) {
+                    return;
+                }
+                if (restart || index.getLong(slot + SLOT_HEAD) != head) {
+                    head = index.getLong(slot + SLOT_HEAD);
+                    previous = NONE;
+                    position = head;
+                    restart = false;
+                }
+                if (position == NONE) {
+                    return;
+                }
+                FileChannel segment = segments.get(segmentOf(position));
+                ByteBuffer header = read(segment, offsetOf(position), RECORD_HEADER);
+                long next = header.getLong(RECORD_NEXT);
+                if (from.contains(segmentOf(position))) {
+                    int length = header.getInt(0);
+                    ByteBuffer copy = ByteBuffer.allocate(RECORD_HEADER + length);
+                    copy.put(header.array()).putLong(RECORD_TIME, header.getLong(RECORD_TIME) | FLAG_MOVED);
+                    copy.put(read(segment, offsetOf(position) + RECORD_HEADER, length)).flip();
+                    long moved = appendRecord(copy);
+                    if (previous == NONE) {
+                        index.putLong(slot + SLOT_HEAD, moved);
+                        head = moved;
+                    } else {
+                        writeNext(previous, moved);
+                    }
+                    if (index.getLong(slot + SLOT_TAIL) == position) {
+                        index.putLong(slot + SLOT_TAIL, moved);
+                    }
+                    markIndexed();
+                    compactedMessages.incrementAndGet();
+                    position = moved;
+                }
+                previous = position;
+                position = next;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void deleteSegment(int id) throws IOException {
+        FileChannel channel;
+        lock.lock();
+        try {
+            channel = segments.remove(id);
+        } finally {
+            lock.unlock();
+        }
+        if (channel != null) {
+            reclaimedBytes.addAndGet(channel.size());
+            channel.close();
+            Files.deleteIfExists(segmentPath(id));
+        }
+    }
+
+    /**
+     * Writes a record at the end of the journal, moving on to a new segment when the active one is full.
+     * The caller links it and then calls {@link #markIndexed()}, so a crash in between leaves the record to
+     * recovery. Must be called with the lock held.
+     *
+     * @return The position of the record.
+     */
+    private long appendRecord(ByteBuffer record) throws IOException {
+        if (activeSize > 0 && activeSize + record.remaining() > segmentBytes) {
+            activeSegment++;
+            activeSize = 0;
+            segments.put(activeSegment, openSegment(activeSegment));
+        }
+        long position = position(activeSegment, activeSize);
+        writeFully(segments.get(activeSegment), record, activeSize);
+        activeSize += record.capacity();
+        return position;
+    }
+
+    /**
+     * Records that the index reflects the whole journal. Must be called with the lock held, once the records
+     * written since the last call are linked.
+     */
+    private void markIndexed() {
+        index.putLong(HEADER_INDEXED_UP_TO, position(activeSegment, activeSize));
+    }
+
+    private void writeNext(long position, long next) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8).putLong(0, next);
+        writeFully(segments.get(segmentOf(position)), buffer, offsetOf(position) + RECORD_NEXT);
+    }
+
+    /**
+     * Removes messages from the front of a user's queue, freeing the user's slot once the queue is empty.
+     * Must be called with the lock held.
+     */
+    private void dropHead(int slot, long newHead, int count, long bytes) {
+        index.putLong(slot + SLOT_HEAD, newHead);
+        if (newHead == NONE) {
+            index.putLong(slot + SLOT_TAIL, NONE);
+        }
+        index.putLong(slot + SLOT_BYTES, index.getLong(slot + SLOT_BYTES) - bytes);
+        index.putInt(slot + SLOT_COUNT, index.getInt(slot + SLOT_COUNT) - count);
+        index.putLong(HEADER_QUEUED_BYTES, index.getLong(HEADER_QUEUED_BYTES) - bytes);
+        index.putLong(HEADER_QUEUED_MESSAGES, index.getLong(HEADER_QUEUED_MESSAGES) - count);
+        if (newHead == NONE) {
+            index.putInt(slot + SLOT_KEY_LENGTH, FREED_SLOT);
+            index.putInt(HEADER_USED_SLOTS, index.getInt(HEADER_USED_SLOTS) - 1);
+            index.putInt(HEADER_FREED_SLOTS, index.getInt(HEADER_FREED_SLOTS) + 1);
+        }
+    }
+
+    private Message decode(byte[] payload) throws IOException {
+        ByteArrayInputStream bis = new ByteArrayInputStream(payload);
+        new DataInputStream(bis).readUTF();
+        int offset = payload.length - bis.available();
+        return (Message) codec.decode(payload, offset, payload.length - offset);
+    }
+
+    /**
+     * Appends a record to its receiver's chain. Records that are already linked are skipped, which makes
+     * replaying the end of the journal during recovery safe.
+     */
+    private void link(byte[] key, long position, int size) throws IOException {
+        int slot = claimSlot(key);
+        long tail = index.getLong(slot + SLOT_TAIL);
+        if (tail != NONE && tail >= position) {
+            return;
+        }
+        if (tail == NONE) {
+            index.putLong(slot + SLOT_HEAD, position);
+        } else {
+            writeNext(tail, position);
+        }
+        index.putLong(slot + SLOT_TAIL, position);
+        index.putLong(slot + SLOT_BYTES, index.getLong(slot + SLOT_BYTES) + size);
+        index.putInt(slot + SLOT_COUNT, index.getInt(slot + SLOT_COUNT) + 1);
+        index.putLong(HEADER_QUEUED_BYTES, index.getLong(HEADER_QUEUED_BYTES) + size);
+        index.putLong(HEADER_QUEUED_MESSAGES, index.getLong(HEADER_QUEUED_MESSAGES) + 1);
+    }
+
+    /**
+     * Reads and links the records the index does not know about yet, cutting off a torn record at the end.
+     * Copies made by compaction are only linked when rebuilding: otherwise they were either linked already
+     * or left unused by a pass that was cut short.
+     *
+     * @param rebuilding Whether the index was just created and the whole journal is read.
+     * @return The number of records linked.
+     */
+    private int recover(boolean rebuilding) throws IOException {
+        long indexedUpTo = index.getLong(HEADER_INDEXED_UP_TO);
+        int recovered = 0;
+        for (Map.Entry<Integer, FileChannel> entry : segments.tailMap(segmentOf(indexedUpTo), true).entrySet()) {
+            int segment = entry.getKey();
+            FileChannel channel = entry.getValue();
+            long offset = segment == segmentOf(indexedUpTo) ? offsetOf(indexedUpTo) : 0;
+            long size = channel.size();
+            while (offset < size) {
+                ByteBuffer record = readRecord(channel, offset, size);
+                if (record == null) {
+                    System.out.println("Truncating torn offline record in segment " + segment + " at " + offset);
+                    channel.truncate(offset);
+                    break;
+                }
+                if (rebuilding || (record.getLong(RECORD_TIME) & FLAG_MOVED) == 0) {
+                    if (record.getLong(RECORD_NEXT) != NONE) {
+                        writeNext(position(segment, offset), NONE); // A copy still points past the original.
+                    }
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array(), RECORD_HEADER, record.capacity() - RECORD_HEADER));
+                    link(keyFor(in.readUTF()), position(segment, offset), record.capacity());
+                    recovered++;
+                }
+                offset += record.capacity();
+                index.putLong(HEADER_INDEXED_UP_TO, position(segment, offset));
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * @return The whole record at the offset, or null if it is incomplete or corrupt.
+     */
+    private static ByteBuffer readRecord(FileChannel channel, long offset, long size) throws IOException {
+        if (offset + RECORD_HEADER > size) {
+            return null;
+        }
+        int length = read(channel, offset, 4).getInt(0);
+        if (length <= 0 || offset + RECORD_HEADER + length > size) {
+            return null;
+        }
+        ByteBuffer record = read(channel, offset, RECORD_HEADER + length);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER, length);
+        return (int) crc.getValue() == record.getInt(4) ? record : null;
+    }
+
+    private void openSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".seg")) {
+                    int id = Integer.parseInt(name.substring(0, name.length() - 4));
+                    segments.put(id, openSegment(id));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0, openSegment(0));
+        }
+    }
+
+    private FileChannel openSegment(int id) throws IOException {
+        return FileChannel.open(segmentPath(id), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(String.format("%010d.seg", id));
+    }
+
+    /**
+     * Maps the index, or creates an empty one that makes recovery read the whole journal.
+     *
+     * @return True if the index was created.
+     */
+    private boolean openIndex() throws IOException {
+        Path path = directory.resolve("index.dat");
+        if (Files.exists(path) && Files.size(path) >= INDEX_HEADER) {
+            indexChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+            if (index.getInt(0) == INDEX_MAGIC && index.getInt(4) == INDEX_VERSION
+                    && indexChannel.size() == INDEX_HEADER + (long) index.getInt(HEADER_SLOT_COUNT) * SLOT_SIZE) {
+                slotCount = index.getInt(HEADER_SLOT_COUNT);
+                return false;
+            }
+            System.out.println(index.getInt(0) == INDEX_MAGIC && index.getInt(4) != INDEX_VERSION
+                    ? "Offline index is of version " + index.getInt(4) + ", rebuilding it from the journal."
+                    : "Offline index is unreadable, rebuilding it from the journal.");
+            indexChannel.close();
+        }
+        indexChannel = createIndex(path, INITIAL_SLOTS);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+        slotCount = INITIAL_SLOTS;
+        index.putLong(HEADER_INDEXED_UP_TO, position(segments.firstKey(), 0));
+        return true;
+    }
+
+    private static FileChannel createIndex(Path path, int slots) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) slots * SLOT_SIZE);
+        buffer.putInt(0, INDEX_MAGIC);
+        buffer.putInt(4, INDEX_VERSION);
+        buffer.putInt(HEADER_SLOT_COUNT, slots);
+        return channel;
+    }
+
+    /**
+     * @param key The index key of the user.
+     * @return The offset of the user's slot in the index, or -1 if the user has none.
+     */
+    private int findSlot(byte[] key) {
+        int slot = probe(key);
+        return index.getInt(slot + SLOT_KEY_LENGTH) <= 0 ? -1 : slot;
+    }
+
+    /**
+     * @param key The index key of the user.
+     * @return The offset of the user's slot in the index, claimed first if the user has none.
+     */
+    private int claimSlot(byte[] key) throws IOException {
+        int slot = probe(key);
+        int length = index.getInt(slot + SLOT_KEY_LENGTH);
+        if (length > 0) {
+            return slot;
+        }
+        int used = index.getInt(HEADER_USED_SLOTS);
+        int freed = index.getInt(HEADER_FREED_SLOTS);
+        if (length == FREED_SLOT) {
+            index.putInt(HEADER_FREED_SLOTS, freed - 1);
+        } else if ((used + freed + 1) * 4L > slotCount * 3L) {
+            rehashIndex();
+            slot = probe(key);
+        }
+        writeKey(index, slot, key);
+        index.putInt(HEADER_USED_SLOTS, used + 1);
+        return slot;
+    }
+
+    /**
+     * Linear probing from the key's home slot. Freed slots are probed past, since the key may have been
+     * placed beyond them before they were freed.
+     *
+     * @return The offset of the slot holding the key, or of the first free or freed slot where it would go.
+     */
+    private int probe(byte[] key) {
+        int mask = slotCount - 1;
+        int freed = -1;
+        for (int i = spread(key) & mask; ; i = (i + 1) & mask) {
+            int slot = INDEX_HEADER + i * SLOT_SIZE;
+            int length = index.getInt(slot + SLOT_KEY_LENGTH);
+            if (length == 0) {
+                return freed < 0 ? slot : freed;
+            }
+            if (length == FREED_SLOT) {
+                if (freed < 0) {
+                    freed = slot;
+                }
+            } else if (length == key.length && keyEquals(slot, key)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Rehashes the used slots into a new file and swaps it in, leaving the freed slots behind. The index
+     * doubles if the used slots fill half of it or more, and otherwise keeps its size.
+     */
+    private void rehashIndex() throws IOException {
+        int rehashedSlots = index.getInt(HEADER_USED_SLOTS) * 2L >= slotCount ? slotCount * 2 : slotCount;
+        Path path = directory.resolve("index.dat");
+        Path rehashedPath = directory.resolve("index.tmp");
+        FileChannel rehashedChannel = createIndex(rehashedPath, rehashedSlots);
+        MappedByteBuffer rehashed = rehashedChannel.map(FileChannel.MapMode.READ_WRITE, 0, rehashedChannel.size());
+        rehashed.putInt(HEADER_USED_SLOTS, index.getInt(HEADER_USED_SLOTS));
+        rehashed.putLong(HEADER_INDEXED_UP_TO, index.getLong(HEADER_INDEXED_UP_TO));
+        rehashed.putLong(HEADER_QUEUED_BYTES, index.getLong(HEADER_QUEUED_BYTES));
+        rehashed.putLong(HEADER_QUEUED_MESSAGES, index.getLong(HEADER_QUEUED_MESSAGES));
+        int mask = rehashedSlots - 1;
+        for (int i = 0; i < slotCount; i++) {
+            int slot = INDEX_HEADER + i * SLOT_SIZE;
+            int length = index.getInt(slot + SLOT_KEY_LENGTH);
+            if (length <= 0) {
+                continue;
+            }
+            byte[] key = new byte[length];
+            index.get(slot + SLOT_KEY, key);
+            int target = spread(key) & mask;
+            while (rehashed.getInt(INDEX_HEADER + target * SLOT_SIZE + SLOT_KEY_LENGTH) != 0) {
+                target = (target + 1) & mask;
+            }
+            byte[] contents = new byte[SLOT_SIZE];
+            index.get(slot, contents);
+            rehashed.put(INDEX_HEADER + target * SLOT_SIZE, contents);
+        }
+        rehashed.force();
+        indexChannel.close();
+        Files.move(rehashedPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexChannel = rehashedChannel;
+        index = rehashed;
+        slotCount = rehashedSlots;
+        indexGeneration++;
+    }
+
+    private static void writeKey(MappedByteBuffer index, int slot, byte[] key) {
+        index.put(slot + SLOT_KEY, key);
+        index.putLong(slot + SLOT_HEAD, NONE);
+        index.putLong(slot + SLOT_TAIL, NONE);
+        index.putLong(slot + SLOT_BYTES, 0);
+        index.putInt(slot + SLOT_COUNT, 0);
+        index.putInt(slot + SLOT_KEY_LENGTH, key.length);
+    }
+
+    private boolean keyEquals(int slot, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (index.get(slot + SLOT_KEY + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(byte[] key) {
+        int hash = Arrays.hashCode(key) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return The user name in UTF-8, or for names that do not fit a slot, its start followed by its SHA-256.
+     */
+    private static byte[] keyFor(String userName) {
+        byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+        if (name.length <= KEY_BYTES) {
+            return name;
+        }
+        try {
+            byte[] key = Arrays.copyOf(name, KEY_BYTES);
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(name);
+            System.arraycopy(digest, 0, key, KEY_PREFIX_BYTES, digest.length);
+            return key;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+        }
+    }
+
+    private static long position(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static long offsetOf(long position) {
+        return position & 0xFFFFFFFFL;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Offline journal ended inside a record.");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * The oldest messages queued for a user, and the position, checksum and time queued of the last one,
+     * which acknowledge them.
+     */
+    public static final class Batch {
+        final List<Message> messages;
+        final long last;
+        final int lastChecksum;
+        final long lastQueued;
+
+        Batch(List<Message> messages, long last, int lastChecksum, long lastQueued) {
+            this.messages = messages;
+            this.last = last;
+            this.lastChecksum = lastChecksum;
+            this.lastQueued = lastQueued;
+        }
+
+        public List<Message> getMessages() {
+            return messages;
+        }
+
+        public long getLast() {
+            return last;
+        }
+    }
+}
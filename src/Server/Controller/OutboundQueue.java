@@ -0,0 +1,223 @@
+package Server.Controller;
+
+import Shared.PresenceUpdate;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of objects waiting to be written to one client. Routing threads only ever enqueue,
+ * the connection's own writer drains the queue, so a slow receiver no longer holds up the thread
+ * of whoever is messaging it.
+ *
+ * What happens when the queue is full is decided by the {@link OverflowPolicy}. Whenever an offer
+ * is refused the caller is expected to disconnect the client. Threads that must never wait, such as
+ * selector threads, use {@link #offerWithoutWaiting(Object)}, which refuses instead of blocking.
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do when a client does not keep up with the objects sent to it.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for space up to the configured timeout, then give up on the client. Offers that must not wait
+         * give up at once, like {@link #DISCONNECT}.
+         */
+        BLOCK,
+        /**
+         * Make space by dropping the oldest queued presence update, or the new one if it is a presence update
+         * itself, and otherwise block like {@link #BLOCK}. Clients notice the gap and ask for a resync.
+         */
+        DROP_PRESENCE,
+        /** Give up on the client as soon as its queue is full. */
+        DISCONNECT
+    }
+
+    private final ArrayDeque<Object> items = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long timeoutNanos;
+    private boolean closed;
+
+    private volatile int depth;
+    private volatile int maxDepth;
+    private volatile long enqueued;
+    private volatile long dropped;
+
+    /**
+     * @param capacity      The maximum number of queued objects.
+     * @param policy        What to do when the queue is full.
+     * @param timeoutMillis How long a blocking offer waits for space.
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, long timeoutMillis) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Enqueues an object for the writer. Offers to a closed queue are silently discarded.
+     *
+     * @param obj The object to send.
+     * @return False if the client is too slow and should be disconnected.
+     */
+    public boolean offer(Object obj) {
+        return offer(obj, timeoutNanos);
+    }
+
+    /**
+     * Enqueues an object for the writer without ever waiting for space: a full queue that the policy
+     * cannot make room in refuses the object at once.
+     *
+     * @param obj The object to send.
+     * @return False if the client is too slow and should be disconnected.
+     */
+    public boolean offerWithoutWaiting(Object obj) {
+        return offer(obj, 0);
+    }
+
+    private boolean offer(Object obj, long timeoutNanos) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (items.size() >= capacity && policy == OverflowPolicy.DISCONNECT) {
+                return false;
+            }
+            if (items.size() >= capacity && policy == OverflowPolicy.DROP_PRESENCE) {
+                if (obj instanceof PresenceUpdate) {
+                    dropped++;
+                    return true;
+                }
+                dropOldestPresenceUpdate();
+            }
+            long nanos = timeoutNanos;
+            while (items.size() >= capacity && !closed) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            if (closed) {
+                return true;
+            }
+            items.addLast(obj);
+            enqueued++;
+            updateDepth();
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next object to write.
+     *
+     * @return The next object, or null once the queue has been closed.
+     */
+    public Object take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return closed ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The next object to write, or null if there is none right now.
+     */
+    public Object poll() {
+        lock.lock();
+        try {
+            return items.isEmpty() ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards everything queued and wakes up writers and blocked offers.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            items.clear();
+            updateDepth();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of objects waiting to be written.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return The highest depth the queue has reached.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return The number of objects accepted into the queue.
+     */
+    public long getEnqueued() {
+        return enqueued;
+    }
+
+    /**
+     * @return The number of presence updates dropped to make space.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    private Object removeFirst() {
+        Object obj = items.removeFirst();
+        updateDepth();
+        notFull.signal();
+        return obj;
+    }
+
+    private void dropOldestPresenceUpdate() {
+        Iterator<Object> iterator = items.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() instanceof PresenceUpdate) {
+                iterator.remove();
+                dropped++;
+                updateDepth();
+                return;
+            }
+        }
+    }
+
+    private void updateDepth() {
+        depth = items.size();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package Server.Controller;
+
+/**
+ * Startup settings of the server. Defaults match the original behaviour: port 9999 and one
+ * platform thread per connected client.
+ */
+public class ServerConfig {
+
+    /**
+     * The way accepted connections are served.
+     */
+    public enum Engine {
+        /**
+         * One blocking ConnectionHandler thread per client, plus a thread writing its outbound queue. Writes to a
+         * client that stops reading block only that client's writer, at the cost of two platform threads and their
+         * stacks per connection; {@link #NIO} serves large numbers of clients on a fixed set of threads instead.
+         */
+        BLOCKING,
+        /** Like {@link #BLOCKING}, but on virtual threads, so the second thread per client costs little. Needs Java 21 or later. */
+        VIRTUAL,
+        /** A small fixed pool of selector threads multiplexing non-blocking channels. */
+        NIO
+    }
+
+    private int port = 9999;
+    private Engine engine = Engine.BLOCKING;
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int workerThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private int outboundCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_PRESENCE;
+    private long overflowTimeoutMillis = 5000;
+    private String blobDirectory = "src/Server/Blobs";
+    private int streamResetInterval = 64;
+    private String offlineDirectory = "src/Server/Offline";
+    private int offlineSegmentMegabytes = 64;
+    private int inboxBatchBytes = 64 * 1024;
+    private long offlineUserQuotaMegabytes = 64;
+    private long offlineQuotaMegabytes = 4096;
+    private long offlineTtlHours = 24 * 30;
+    private long offlineCompactIntervalSeconds = 60;
+    private String logDirectory = "src/Server/Logs";
+    private int logBufferEvents = 64 * 1024;
+    private LogManager.FsyncPolicy logFsyncPolicy = LogManager.FsyncPolicy.INTERVAL;
+    private long logFsyncIntervalMillis = 1000;
+    private int logSegmentMegabytes = 64;
+    private String metricsFile = "src/Server/Logs/metrics.txt";
+    private long metricsIntervalSeconds = 10;
+    private String captureFile = "";
+    private long captureMinutes = 60;
+    private boolean adminUi = displayAvailable();
+
+    /**
+     * Reads settings from command line arguments of the form {@code --name=value}. Unknown
+     * arguments are reported and ignored.
+     *
+     * @param args The arguments passed to MainServer.
+     * @return The resulting configuration.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            String name = split < 0 ? arg : arg.substring(0, split);
+            String value = split < 0 ? "" : arg.substring(split + 1);
+            switch (name) {
+                case "--port":
+                    config.setPort(Integer.parseInt(value));
+                    break;
+                case "--engine":
+                    config.setEngine(Engine.valueOf(value.toUpperCase()));
+                    if (config.getEngine() == Engine.VIRTUAL && !virtualThreadsAvailable()) {
+                        throw new IllegalArgumentException("--engine=virtual needs Java 21 or later, this is Java "
+                                + Runtime.version().feature() + ". Use --engine=blocking or --engine=nio.");
+                    }
+                    break;
+                case "--io-threads":
+                    config.setIoThreads(Integer.parseInt(value));
+                    break;
+                case "--worker-threads":
+                    config.setWorkerThreads(Integer.parseInt(value));
+                    break;
+                case "--outbound-capacity":
+                    config.setOutboundCapacity(Integer.parseInt(value));
+                    break;
+                case "--overflow-policy":
+                    config.setOverflowPolicy(OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase()));
+                    break;
+                case "--overflow-timeout-ms":
+                    config.setOverflowTimeoutMillis(Long.parseLong(value));
+                    break;
+                case "--blob-dir":
+                    config.setBlobDirectory(value);
+                    break;
+                case "--stream-reset-interval":
+                    config.setStreamResetInterval(Integer.parseInt(value));
+                    break;
+                case "--offline-dir":
+                    config.setOfflineDirectory(value);
+                    break;
+                case "--offline-segment-mb":
+                    config.setOfflineSegmentMegabytes(Integer.parseInt(value));
+                    break;
+                case "--inbox-batch-kb":
+                    config.setInboxBatchBytes(Integer.parseInt(value) * 1024);
+                    break;
+                case "--offline-user-quota-mb":
+                    config.setOfflineUserQuotaMegabytes(Long.parseLong(value));
+                    break;
+                case "--offline-quota-mb":
+                    config.setOfflineQuotaMegabytes(Long.parseLong(value));
+                    break;
+                case "--offline-ttl-hours":
+                    config.setOfflineTtlHours(Long.parseLong(value));
+                    break;
+                case "--offline-compact-interval-s":
+                    config.setOfflineCompactIntervalSeconds(Long.parseLong(value));
+                    break;
+                case "--log-dir":
+                    config.setLogDirectory(value);
+                    break;
+                case "--log-buffer-events":
+                    config.setLogBufferEvents(Integer.parseInt(value));
+                    break;
+                case "--log-fsync":
+                    config.setLogFsyncPolicy(LogManager.FsyncPolicy.valueOf(value.toUpperCase()));
+                    break;
+                case "--log-fsync-interval-ms":
+                    config.setLogFsyncIntervalMillis(Long.parseLong(value));
+                    break;
+                case "--log-segment-mb":
+                    config.setLogSegmentMegabytes(Integer.parseInt(value));
+                    break;
+                case "--metrics-file":
+                    config.setMetricsFile(value);
+                    break;
+                case "--metrics-interval-s":
+                    config.setMetricsIntervalSeconds(Long.parseLong(value));
+                    break;
+                case "--capture-file":
+                    config.setCaptureFile(value);
+                    break;
+                case "--capture-minutes":
+                    config.setCaptureMinutes(Long.parseLong(value));
+                    break;
+                case "--admin-ui":
+                    config.setAdminUi(value.isEmpty() || Boolean.parseBoolean(value));
+                    break;
+                default:
+                    System.out.println("Ignoring unknown argument " + arg);
+            }
+        }
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = Math.max(1, ioThreads);
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = Math.max(1, workerThreads);
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public void setOutboundCapacity(int outboundCapacity) {
+        this.outboundCapacity = outboundCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OutboundQueue.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getOverflowTimeoutMillis() {
+        return overflowTimeoutMillis;
+    }
+
+    public void setOverflowTimeoutMillis(long overflowTimeoutMillis) {
+        this.overflowTimeoutMillis = overflowTimeoutMillis;
+    }
+
+    public String getBlobDirectory() {
+        return blobDirectory;
+    }
+
+    public void setBlobDirectory(String blobDirectory) {
+        this.blobDirectory = blobDirectory;
+    }
+
+    public int getStreamResetInterval() {
+        return streamResetInterval;
+    }
+
+    public void setStreamResetInterval(int streamResetInterval) {
+        this.streamResetInterval = Math.max(0, streamResetInterval);
+    }
+
+    public String getOfflineDirectory() {
+        return offlineDirectory;
+    }
+
+    public void setOfflineDirectory(String offlineDirectory) {
+        this.offlineDirectory = offlineDirectory;
+    }
+
+    public int getOfflineSegmentMegabytes() {
+        return offlineSegmentMegabytes;
+    }
+
+    public void setOfflineSegmentMegabytes(int offlineSegmentMegabytes) {
+        this.offlineSegmentMegabytes = Math.max(1, Math.min(2047, offlineSegmentMegabytes));
+    }
+
+    public int getInboxBatchBytes() {
+        return inboxBatchBytes;
+    }
+
+    public void setInboxBatchBytes(int inboxBatchBytes) {
+        this.inboxBatchBytes = Math.max(1, inboxBatchBytes);
+    }
+
+    public long getOfflineUserQuotaMegabytes() {
+        return offlineUserQuotaMegabytes;
+    }
+
+    public void setOfflineUserQuotaMegabytes(long offlineUserQuotaMegabytes) {
+        this.offlineUserQuotaMegabytes = Math.max(1, offlineUserQuotaMegabytes);
+    }
+
+    public long getOfflineQuotaMegabytes() {
+        return offlineQuotaMegabytes;
+    }
+
+    public void setOfflineQuotaMegabytes(long offlineQuotaMegabytes) {
+        this.offlineQuotaMegabytes = Math.max(1, offlineQuotaMegabytes);
+    }
+
+    public long getOfflineTtlHours() {
+        return offlineTtlHours;
+    }
+
+    public void setOfflineTtlHours(long offlineTtlHours) {
+        this.offlineTtlHours = Math.max(0, offlineTtlHours);
+    }
+
+    public long getOfflineCompactIntervalSeconds() {
+        return offlineCompactIntervalSeconds;
+    }
+
+    public void setOfflineCompactIntervalSeconds(long offlineCompactIntervalSeconds) {
+        this.offlineCompactIntervalSeconds = Math.max(1, offlineCompactIntervalSeconds);
+    }
+
+    public String getLogDirectory() {
+        return logDirectory;
+    }
+
+    public void setLogDirectory(String logDirectory) {
+        this.logDirectory = logDirectory;
+    }
+
+    public int getLogBufferEvents() {
+        return logBufferEvents;
+    }
+
+    public void setLogBufferEvents(int logBufferEvents) {
+        this.logBufferEvents = Math.max(2, Math.min(1 << 24, logBufferEvents));
+    }
+
+    public LogManager.FsyncPolicy getLogFsyncPolicy() {
+        return logFsyncPolicy;
+    }
+
+    public void setLogFsyncPolicy(LogManager.FsyncPolicy logFsyncPolicy) {
+        this.logFsyncPolicy = logFsyncPolicy;
+    }
+
+    public long getLogFsyncIntervalMillis() {
+        return logFsyncIntervalMillis;
+    }
+
+    public void setLogFsyncIntervalMillis(long logFsyncIntervalMillis) {
+        this.logFsyncIntervalMillis = Math.max(0, logFsyncIntervalMillis);
+    }
+
+    public int getLogSegmentMegabytes() {
+        return logSegmentMegabytes;
+    }
+
+    public void setLogSegmentMegabytes(int logSegmentMegabytes) {
+        this.logSegmentMegabytes = Math.max(1, logSegmentMegabytes);
+    }
+
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    public void setMetricsFile(String metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    public long getMetricsIntervalSeconds() {
+        return metricsIntervalSeconds;
+    }
+
+    public void setMetricsIntervalSeconds(long metricsIntervalSeconds) {
+        this.metricsIntervalSeconds = Math.max(1, metricsIntervalSeconds);
+    }
+
+    public String getCaptureFile() {
+        return captureFile;
+    }
+
+    public void setCaptureFile(String captureFile) {
+        this.captureFile = captureFile;
+    }
+
+    public long getCaptureMinutes() {
+        return captureMinutes;
+    }
+
+    public void setCaptureMinutes(long captureMinutes) {
+        this.captureMinutes = Math.max(0, captureMinutes);
+    }
+
+    public boolean isAdminUi() {
+        return adminUi;
+    }
+
+    public void setAdminUi(boolean adminUi) {
+        this.adminUi = adminUi;
+    }
+
+    /**
+     * @return True if this Java version can start virtual threads.
+     */
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decides whether a window could be shown the way AWT does, without loading AWT: never with
+     * {@code java.awt.headless=true}, always on Windows and macOS, elsewhere only if a display is set.
+     */
+    private static boolean displayAvailable() {
+        if (Boolean.getBoolean("java.awt.headless")) {
+            return false;
+        }
+        String os = System.getProperty("os.name", "");
+        if (os.startsWith("Windows") || os.startsWith("Mac")) {
+            return true;
+        }
+        return System.getenv("DISPLAY") != null || System.getenv("WAYLAND_DISPLAY") != null;
+    }
+}
@@ -1,51 +1,194 @@
 package Server.Controller;
 
+import Server.View.LogUI;
 import Shared.*;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The ServerManager class is responsible for managing the server-side operations
  * of a chat application. It listens for incoming client connections, manages active connections,
- * updates online user lists, and handles messages intended for offline users. Each connected
- * client is associated with a ConnectionHandler thread which manages its communication.
+ * updates online user lists, and handles messages intended for offline users. Depending on the
+ * configured engine each connected client is either served by its own ConnectionHandler, running
+ * on a platform or a virtual thread, or multiplexed onto the selector threads of a {@link NioServer}.
+ *
+ * Shared state is guarded by ReentrantLocks rather than synchronized so that a virtual thread
+ * blocked in a socket write while holding a lock does not pin its carrier thread.
  */
 public class ServerManager {
+    private static final int PARALLEL_FAN_OUT_THRESHOLD = 64;
+    private static final int FAN_OUT_CHUNK = 32;
+
     private ConnectionHandler connectionHandler;
     private Socket client;
-    private List<ConnectionHandler> connections;
+    private ConnectionRegistry connections;
+    private final ReentrantLock connectionsLock = new ReentrantLock();
+    private long presenceVersion;
     private LogManager logger;
-    private LinkedHashMap<String, List<Message>> savedMessagesForOfflineUsers;
-    private int PORT = 9999;
+    private BlobStore blobStore;
+    private OfflineStore offlineStore;
+    private final Map<Connection, OfflineStore.Batch> inboxBatchesInFlight = new ConcurrentHashMap<>();
+    private final ServerConfig config;
+    private Executor handlerThreads;
+    private final ForkJoinPool fanOutPool;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private TrafficCapture capture;
 
     /**
-     * Constructor for the ServerManager class. Initializes necessary fields and establishes the server connection.
+     * Constructor for the ServerManager class using the default configuration.
      */
     public ServerManager() {
-        connections = new ArrayList<>();
-        savedMessagesForOfflineUsers = new LinkedHashMap<>();
-        logger = new LogManager();
-        connect();
+        this(new ServerConfig());
+    }
+
+    /**
+     * Constructor for the ServerManager class. Initializes necessary fields and establishes the server connection.
+     *
+     * @param config The startup settings, including which engine serves the connections.
+     */
+    public ServerManager(ServerConfig config) {
+        this.config = config;
+        fanOutPool = new ForkJoinPool(config.getIoThreads());
+        connections = new ConnectionRegistry();
+        logger = new LogManager(config);
+        if (config.isAdminUi()) {
+            new LogUI(logger);
+        }
+        try {
+            blobStore = new BlobStore(Paths.get(config.getBlobDirectory()));
+            offlineStore = new OfflineStore(Paths.get(config.getOfflineDirectory()),
+                    config.getOfflineSegmentMegabytes() * 1024L * 1024L,
+                    config.getOfflineUserQuotaMegabytes() * 1024L * 1024L,
+                    config.getOfflineQuotaMegabytes() * 1024L * 1024L,
+                    TimeUnit.HOURS.toMillis(config.getOfflineTtlHours()));
+            if (!config.getCaptureFile().isEmpty()) {
+                capture = new TrafficCapture(Paths.get(config.getCaptureFile()), config.getCaptureMinutes());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        startOfflineCompaction();
+        startMetrics();
         logger.registerServerStartUp();
+        connect();
     }
 
     /**
-     * Establishes a server connection and listens for incoming client connections.
-     * When a client connects, it spawns a new ConnectionHandler thread to manage that client's communication.
+     * Compacts the offline store periodically on a background thread of its own, so delivered and expired
+     * messages give their disk space back without holding up routing.
+     */
+    private void startOfflineCompaction() {
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "offline-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = config.getOfflineCompactIntervalSeconds();
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                long expired = offlineStore.getExpiredMessages();
+                long compacted = offlineStore.getCompactedMessages();
+                long reclaimed = offlineStore.getReclaimedBytes();
+                offlineStore.compact();
+                if (offlineStore.getReclaimedBytes() > reclaimed || offlineStore.getExpiredMessages() > expired) {
+                    System.out.println("Offline compaction: " + (offlineStore.getExpiredMessages() - expired) + " expired, "
+                            + (offlineStore.getCompactedMessages() - compacted) + " moved, "
+                            + (offlineStore.getReclaimedBytes() - reclaimed) + " bytes reclaimed, "
+                            + offlineStore.getRejectedMessages() + " rejected so far");
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds the queue depths and log pipeline figures to the metrics and starts taking snapshots.
+     */
+    private void startMetrics() {
+        metrics.gauge("connections.loggedIn", connections::size);
+        metrics.gauge("outbound.depth", () -> {
+            long depth = 0;
+            for (Connection connection : connections.connections()) {
+                depth += connection.getOutboundQueue().getDepth();
+            }
+            return depth;
+        });
+        metrics.gauge("outbound.maxDepth", () -> {
+            long max = 0;
+            for (Connection connection : connections.connections()) {
+                max = Math.max(max, connection.getOutboundQueue().getDepth());
+            }
+            return max;
+        });
+        metrics.gauge("offline.queuedMessages", offlineStore::getQueuedMessages);
+        metrics.gauge("offline.queuedBytes", offlineStore::getQueuedBytes);
+        metrics.gauge("offline.rejectedMessages", offlineStore::getRejectedMessages);
+        metrics.gauge("offline.expiredMessages", offlineStore::getExpiredMessages);
+        metrics.gauge("log.pendingEvents", logger::getPendingEvents);
+        metrics.gauge("log.lagMillis", logger::getLagMillis);
+        metrics.gauge("log.droppedEvents", logger::getDroppedEvents);
+        metrics.start(config.getMetricsFile().isEmpty() ? null : Paths.get(config.getMetricsFile()),
+                config.getMetricsIntervalSeconds());
+    }
+
+    /**
+     * @return The metrics the engines record into.
+     */
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Establishes a server connection with the configured engine and serves clients until the process exits.
      */
     private void connect() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        if (config.getEngine() == ServerConfig.Engine.NIO) {
+            try {
+                new NioServer(this, config).run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            acceptBlocking();
+        }
+    }
+
+    /**
+     * Listens for incoming client connections.
+     * When a client connects, it starts a new ConnectionHandler on a thread of its own to manage that
+     * client's communication.
+     */
+    private void acceptBlocking() {
+        handlerThreads = handlerThreads();
+        try (ServerSocket serverSocket = new ServerSocket(config.getPort())) {
             while(true) {
                 try {
                     client = serverSocket.accept();
+                    metrics.connectionAccepted();
+                    MessageEvents.ConnectionAccepted accepted = new MessageEvents.ConnectionAccepted();
+                    if (accepted.shouldCommit()) {
+                        accepted.remoteAddress = String.valueOf(client.getRemoteSocketAddress());
+                        accepted.commit();
+                    }
                     System.out.println("Connection Successful!");
 
                     connectionHandler = new ConnectionHandler(client);
 
-                    connectionHandler.start();
+                    handlerThreads.execute(connectionHandler);
                     System.out.println(connections.size());
 
                 } catch(IOException e) {
@@ -58,51 +201,399 @@ public class ServerManager {
     }
 
     /**
-     * Adds a new ConnectionHandler to the list of active connections and updates the list of online users.
+     * Picks the threads ConnectionHandlers run on. Virtual threads are looked up reflectively so the
+     * server still builds for Java versions without them; asking for them there is an error.
      *
-     * @param connectionHandler The ConnectionHandler to be added.
+     * @return An executor that starts one thread per submitted handler.
      */
-    private synchronized void addConnection(ConnectionHandler connectionHandler) {
-        connections.add(connectionHandler);
-        updateOnlineUsers();
+    private Executor handlerThreads() {
+        if (config.getEngine() == ServerConfig.Engine.VIRTUAL) {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("The virtual engine needs Java 21 or later, this is Java "
+                        + Runtime.version().feature() + ".", e);
+            }
+        }
+        return handler -> new Thread(handler).start();
+    }
+
+    /**
+     * @return An empty outbound queue with the configured capacity and overflow policy.
+     */
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.getOutboundCapacity(), config.getOverflowPolicy(), config.getOverflowTimeoutMillis());
+    }
+
+    /**
+     * Adds a new connection to the registry of active connections. The new client gets a full snapshot of the
+     * online users, everyone else only a small update saying that the user joined.
+     * A user who logs in again takes over from their older connection, which is closed without announcing that
+     * the user left, so it can no longer acknowledge saved messages the new connection is being sent.
+     * The lock keeps the presence sequence numbers in the same order as the updates are queued. Nothing waits
+     * for a full queue while holding it: clients whose queue is full get the update after it is released.
+     *
+     * @param connection The connection to be added.
+     */
+    private void addConnection(Connection connection) {
+        MessageEvents.PresenceBroadcast event = new MessageEvents.PresenceBroadcast();
+        event.begin();
+        PresenceUpdate joined;
+        OnlineUsersList snapshot;
+        List<Connection> full;
+        int told;
+        Connection displaced;
+        connectionsLock.lock();
+        try {
+            displaced = connections.add(connection);
+            joined = new PresenceUpdate(++presenceVersion, connection.getUser(), true);
+            full = queuePresence(joined, connection);
+            told = connections.size() - 1;
+            snapshot = new OnlineUsersList(connections.onlineUsers(), presenceVersion);
+            if (!connection.sendMessageWithoutWaiting(snapshot)) {
+                full.add(connection);
+            }
+        } finally {
+            connectionsLock.unlock();
+        }
+        if (displaced != null) {
+            System.out.println(connection.getUser().getUserName() + " logged in again, closing the older connection.");
+            inboxBatchesInFlight.remove(displaced);
+            displaced.shutdown();
+        }
+        for (Connection other : full) {
+            other.sendMessage(other == connection ? snapshot : joined);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.sender = connection.getUser().getUserName();
+            event.receivers = told;
+            event.joined = true;
+            event.commit();
+        }
         System.out.println("Connection added successfully!");
     }
 
     /**
-     * Removes a ConnectionHandler from the list of active connections and updates the list of online users.
+     * Removes a connection from the registry of active connections and tells the remaining clients that the
+     * user left.
+     *
+     * @param connection The connection to be removed.
+     */
+    private void removeConnection(Connection connection) {
+        MessageEvents.PresenceBroadcast event = new MessageEvents.PresenceBroadcast();
+        event.begin();
+        PresenceUpdate left;
+        List<Connection> full;
+        int told;
+        connectionsLock.lock();
+        try {
+            if (!connections.remove(connection)) {
+                return;
+            }
+            left = new PresenceUpdate(++presenceVersion, new User(connection.getUser().getUserName(), null), false);
+            full = queuePresence(left, null);
+            told = connections.size();
+        } finally {
+            connectionsLock.unlock();
+        }
+        for (Connection other : full) {
+            other.sendMessage(left);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.sender = left.getUser().getUserName();
+            event.receivers = told;
+            event.commit();
+        }
+    }
+
+    /**
+     * Queues a presence update for every logged in client but one, without waiting on any of them. Must be
+     * called holding connectionsLock, so every client gets the updates in the order of their versions.
+     *
+     * @param update The update to queue.
+     * @param except The connection to leave out, or null.
+     * @return The connections whose queue was full, to send the update to once the lock is released.
+     */
+    private List<Connection> queuePresence(PresenceUpdate update, Connection except) {
+        List<Connection> full = new ArrayList<>();
+        for (Connection other : connections.connections()) {
+            if (other != except && !other.sendMessageWithoutWaiting(update)) {
+                full.add(other);
+            }
+        }
+        return full;
+    }
+
+    /**
+     * Sends a full snapshot of the online users to a client that noticed a gap in its presence updates.
+     *
+     * @param connection The connection asking for the snapshot.
+     */
+    private void resyncOnlineUsers(Connection connection) {
+        OnlineUsersList snapshot;
+        connectionsLock.lock();
+        try {
+            snapshot = new OnlineUsersList(connections.onlineUsers(), presenceVersion);
+            if (connection.sendMessageWithoutWaiting(snapshot)) {
+                return;
+            }
+        } finally {
+            connectionsLock.unlock();
+        }
+        connection.sendMessage(snapshot);
+    }
+
+    /**
+     * Handles an object a client sent: a message to route, a request for a presence resync, an attachment
+     * or avatar blob being uploaded or requested, or the acknowledgement of a batch of saved messages. Only blobs are expected before the client logged in.
      *
-     * @param connectionHandler The ConnectionHandler to be removed.
+     * @param connection The connection the object was read from.
+     * @param obj        The object read from the client.
      */
-    private synchronized void removeConnection(ConnectionHandler connectionHandler) {
-        connections.remove(connectionHandler);
-        updateOnlineUsers();
+    void handleClientObject(Connection connection, Object obj) {
+        if (obj instanceof PresenceResync) {
+            resyncOnlineUsers(connection);
+        } else if (obj instanceof Blob) {
+            storeBlob((Blob) obj);
+        } else if (obj instanceof BlobRequest) {
+            sendBlob(connection, ((BlobRequest) obj).getHash());
+        } else if (obj instanceof InboxAck) {
+            acknowledgeInboxBatch(connection, ((InboxAck) obj).getCursor());
+        } else if (obj instanceof Message && isRoutable((Message) obj)) {
+            routeMessage((Message) obj);
+        } else {
+            System.out.println("Ignoring unexpected " + (obj == null ? "null" : obj.getClass().getSimpleName())
+                    + " from " + nameOf(connection));
+        }
     }
 
     /**
-     * Updates and broadcasts the list of online users to all connected clients.
+     * @param connection A connection, logged in or not.
+     * @return The name of the connection's user, for messages about the connection.
      */
-    private void updateOnlineUsers() {
-        List<User> onlineUsers = new ArrayList<>();
-        for(ConnectionHandler connection : connections){
-            onlineUsers.add(connection.user);
+    static String nameOf(Connection connection) {
+        return connection.getUser() == null ? "a client that has not logged in" : connection.getUser().getUserName();
+    }
+
+    /**
+     * @param message A message read from a client.
+     * @return True if the message names a sender and a receiver, or a group without gaps, so it can be routed.
+     */
+    private static boolean isRoutable(Message message) {
+        if (!isNamed(message.getSender())) {
+            return false;
+        }
+        if (message.getGroupOfReceivers() == null) {
+            return isNamed(message.getReceiver());
         }
-        for(ConnectionHandler connection : connections){
-            connection.sendMessage(new OnlineUsersList(onlineUsers));
+        for (User member : message.getGroupOfReceivers()) {
+            if (!isNamed(member)) {
+                return false;
+            }
         }
+        return true;
     }
 
+    private static boolean isNamed(User user) {
+        return user != null && user.getUserName() != null;
+    }
 
     /**
-     * The ConnectionHandler class represents a thread dedicated to handle communication for a
-     * specific client. It manages message routing, checking for saved messages, and gracefully
-     * shutting down a client connection. Each instance of this class is tied to a specific client.
+     * Checks the message a client logs in with.
+     *
+     * @param login The first message read from the client.
+     * @return The user the client logs in as.
+     * @throws StreamCorruptedException If the message does not name a user.
      */
-    public class ConnectionHandler extends Thread {
+    static User loginUser(Message login) throws StreamCorruptedException {
+        if (!isNamed(login.getSender())) {
+            throw new StreamCorruptedException("Login message without a user name.");
+        }
+        return login.getSender();
+    }
+
+    /**
+     * Stores an uploaded attachment or avatar blob. Blobs are stored once per content, however often they are uploaded.
+     *
+     * @param blob The uploaded blob.
+     */
+    private void storeBlob(Blob blob) {
+        try {
+            if (!blobStore.put(blob.getHash(), blob.getData())) {
+                System.out.println("Refused blob whose content does not match hash " + blob.getHash());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Answers a blob request, with null data if the blob is unknown.
+     *
+     * @param connection The connection that asked for the blob.
+     * @param hash       The content hash of the requested blob.
+     */
+    private void sendBlob(Connection connection, String hash) {
+        byte[] data = null;
+        try {
+            data = blobStore.get(hash);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        connection.sendMessage(new Blob(hash, data));
+    }
+
+    /**
+     * Registers a connection whose login message has been read, then starts delivering the messages that were
+     * saved for the user while they were offline.
+     *
+     * @param connection The connection that just logged in.
+     */
+    void clientLoggedIn(Connection connection) {
+        MessageEvents.Login event = new MessageEvents.Login();
+        event.begin();
+        User user = connection.getUser();
+        System.out.println("read object for client " + user.getUserName() + " successfully!");
+        addConnection(connection);
+        sendInboxBatch(connection);
+        logger.registerUserLogIn(user);
+        if (capture != null) {
+            capture.login(user);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.sender = user.getUserName();
+            event.receivers = connections.size() - 1;
+            event.commit();
+        }
+    }
+
+    /**
+     * Removes a closed connection and logs the user out.
+     *
+     * @param connection The connection that was closed.
+     */
+    void clientLoggedOut(Connection connection) {
+        inboxBatchesInFlight.remove(connection);
+        removeConnection(connection);
+        System.out.println("closed connection removed!");
+        logger.registerUserLogOut(connection.getUser());
+        if (capture != null) {
+            capture.logout(connection.getUser());
+        }
+    }
+
+    /**
+     * Routes a message to its receiver, or to every member of its group, saving it for receivers that are offline.
+     * A group message is never modified: its body is shared by all members and only the receiver differs,
+     * and large groups are delivered in parallel.
+     *
+     * @param message The message read from a client.
+     */
+    private void routeMessage(Message message) {
+        MessageEvents.MessageRouted event = new MessageEvents.MessageRouted();
+        event.begin();
+        long started = System.nanoTime();
+        if (capture != null) {
+            capture.message(message);
+        }
+        if (message.getGroupOfReceivers() == null) {
+            Connection connection = connections.get(message.getReceiver().getUserName());
+
+            if (connection != null) {
+                connection.sendMessage(message);
+                logger.registerSentMessage(message);
+            } else if (saveOfflineMessage(message)) {
+                logger.registerSavedMessage(message);
+            }
+        } else {
+            Message template = message.withReceiver(null);
+            template.setGroupOfReceivers(null);
+            MessageBody body = new MessageBody(template);
+            List<User> members = message.getGroupOfReceivers();
+            if (members.size() >= PARALLEL_FAN_OUT_THRESHOLD) {
+                fanOutPool.invoke(new FanOut(members, 0, members.size(), body));
+            } else {
+                deliverToMembers(members, 0, members.size(), body);
+            }
+        }
+        metrics.record(ServerMetrics.Stage.ROUTE, System.nanoTime() - started);
+        metrics.messageRouted();
+        event.end();
+        if (event.shouldCommit()) {
+            event.describe(message);
+            event.bytes = MessageEvents.LifecycleEvent.contentBytes(message);
+            event.commit();
+        }
+    }
+
+    /**
+     * Delivers a group message to a range of its members. Online members get an envelope sharing the encoded
+     * body, offline members get a copy of the message saved for later.
+     *
+     * @param members The members of the group.
+     * @param from    Index of the first member to deliver to.
+     * @param to      Index after the last member to deliver to.
+     * @param body    The shared body of the message.
+     */
+    private void deliverToMembers(List<User> members, int from, int to, MessageBody body) {
+        for (int i = from; i < to; i++) {
+            User groupMember = members.get(i);
+            Connection connection = connections.get(groupMember.getUserName());
+            Message copy = body.getMessage().withReceiver(groupMember);
+            if (connection != null) {
+                connection.sendMessage(new Envelope(groupMember, body));
+                logger.registerSentMessage(copy);
+            } else if (saveOfflineMessage(copy)) {  // Save the message for each offline user in the group
+                logger.registerSavedMessage(copy);  // Log that the message was saved
+            }
+        }
+    }
+
+    /**
+     * Splits the delivery of a large group message into chunks that run in parallel on the fan-out pool.
+     */
+    private class FanOut extends RecursiveAction {
+        private final List<User> members;
+        private final int from;
+        private final int to;
+        private final MessageBody body;
+
+        FanOut(List<User> members, int from, int to, MessageBody body) {
+            this.members = members;
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FAN_OUT_CHUNK) {
+                deliverToMembers(members, from, to, body);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new FanOut(members, from, middle, body), new FanOut(members, middle, to, body));
+            }
+        }
+    }
+
+
+    /**
+     * The ConnectionHandler class is the task run by the thread dedicated to handle communication for a
+     * specific client. It performs the handshake, reads the client's messages and hands them to
+     * the ServerManager for routing, and gracefully shuts down the client connection. Outgoing objects
+     * are queued and written by a second thread of the same kind, so senders never wait on this client's socket.
+     * Each instance of this class is tied to a specific client.
+     */
+    public class ConnectionHandler implements Runnable, Connection {
+        private final OutboundQueue outbound = newOutboundQueue();
+        private final AtomicBoolean closed = new AtomicBoolean();
         private Socket client;
         private Message message;
         private User user;
-        private ObjectOutputStream oos;
-        private ObjectInputStream ois;
+        private Transport transport;
 
         /**
          * Constructor for the ConnectionHandler class.
@@ -111,164 +602,252 @@ public class ServerManager {
          */
         public ConnectionHandler(Socket client) {
             this.client = client;
-            try {
-                oos = new ObjectOutputStream(client.getOutputStream());
-                ois = new ObjectInputStream(client.getInputStream());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
 
         /**
-         * The main run method of the ConnectionHandler thread. Handles incoming messages and routes them accordingly.
+         * The main run method of the ConnectionHandler. Handles incoming messages and routes them accordingly.
          */
         public void run() {
-            saveClient();
             try {
+                transport = openTransport();
+                handlerThreads.execute(this::writeQueued);
+                saveClient();
                 while (true) {
-                    message = (Message) ois.readObject();
-                    if (message.getGroupOfReceivers() == null) {
-                        boolean receiverOnline = false;
-
-                        for (ConnectionHandler connection : connections) {
-                            if (message.getReceiver().getUserName().equals(connection.user.getUserName())) {
-                                connection.sendMessage(message);
-                                logger.registerSentMessage(message);
-                                receiverOnline = true;
-                                break;
-                            }
-                        }
-
-                        if (!receiverOnline) {
-                            saveOfflineMessage(message);
-                            logger.registerSavedMessage(message);
-                        }
-                    } else {
-                        List<User> offlineReceivers = new ArrayList<>();
-
-                        for (User groupMember : message.getGroupOfReceivers()) {
-                            boolean isOnline = false;
-                            for (ConnectionHandler connection : connections) {
-                                if (groupMember.getUserName().equals(connection.user.getUserName())) {
-                                    message.setReceiver(groupMember);
-                                    connection.sendMessage(message);
-                                    logger.registerSentMessage(message);
-                                    isOnline = true;
-                                    break;
-                                }
-                            }
-
-                            if (!isOnline) {
-                                offlineReceivers.add(groupMember);
-                            }
-                        }
-
-                        if (!offlineReceivers.isEmpty()) {
-                            for(User user : offlineReceivers){
-                                message.setReceiver(user);
-                                saveOfflineMessage(message);  // Save the message for each offline user in the group
-                                logger.registerSavedMessage(message);  // Log that the message was saved
-                            }
-                        }
-                    }
+                    handleClientObject(this, receive());
                 }
             } catch (IOException | ClassNotFoundException e) {
+                // The client went away or sent something that could not be read.
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
                 shutdown();
             }
         }
 
         /**
-         * Saves client's details, retrieves and sends any saved messages for the client.
+         * Performs the handshake. Clients that open with a Java serialization stream header instead of the
+         * protocol hello are served with plain object streams.
+         *
+         * @return The transport to talk to the client with.
          */
-        private void saveClient() {
+        private Transport openTransport() throws IOException {
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
+            in.mark(2);
+            int first = in.read();
+            int second = in.read();
+            in.reset();
+            if (Protocol.isLegacyStream(first, second)) {
+                return new ObjectStreamTransport(in, out, config.getStreamResetInterval());
+            }
+            return FramedTransport.accept(in, out);
+        }
+
+        /**
+         * Writer loop: sends queued objects until the queue is closed or the socket fails. It runs on a thread of
+         * its own rather than on a shared pool, because a socket write blocks for as long as the client does not
+         * read, and a slow client would hold a pool thread and delay everyone queued behind it.
+         */
+        private void writeQueued() {
             try {
-                message = (Message) ois.readObject();
-                user = message.getSender();
-                System.out.println("read object for client " + user.getUserName() + " successfully!");
-                addConnection(this);
-
-                List<Message> missedMessages = checkForSavedMessages(user.getUserName());
-                Iterator<Message> iterator = missedMessages.iterator();
-                while (iterator.hasNext()) {
-                    Message missedMessage = iterator.next();
-                    System.out.println("There are " + missedMessages.size() + " unsent messages for " + missedMessage.getReceiver());
-                    sendMessage(missedMessage);
-                    iterator.remove();  // Safely remove the current message from the list
+                Object obj;
+                while ((obj = outbound.take()) != null) {
+                    MessageEvents.MessageWritten event = new MessageEvents.MessageWritten();
+                    event.begin();
+                    transport.send(obj);
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.describe(obj);
+                        event.receivers = 1;
+                        event.receiver = user == null ? null : user.getUserName();
+                        event.objects = 1;
+                        event.bytes = Math.max(0, transport.getSentBytes());
+                        event.commit();
+                    }
+                    if (transport.getEncodeNanos() >= 0) {
+                        metrics.record(ServerMetrics.Stage.SERIALIZE, transport.getEncodeNanos());
+                    }
+                    if (transport.getWriteNanos() >= 0) {
+                        metrics.record(ServerMetrics.Stage.WRITE, transport.getWriteNanos());
+                    }
                 }
-                removeSavedMessages(user.getUserName());
+            } catch (IOException | InterruptedException e) {
+                disconnect();
+            }
+        }
 
-                logger.registerUserLogIn(user);
-            } catch (IOException | ClassNotFoundException e) {
+        /**
+         * Closes the socket, which makes the reading thread fail and shut the connection down.
+         */
+        private void disconnect() {
+            try {
+                client.close();
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
+        /**
+         * Reads the login message, then registers the client and delivers its saved messages. Blobs the client
+         * uploads before logging in, such as its avatar, are handled as usual.
+         */
+        private void saveClient() throws IOException, ClassNotFoundException {
+            Object obj;
+            while (!((obj = receive()) instanceof Message)) {
+                handleClientObject(this, obj);
+            }
+            message = (Message) obj;
+            user = loginUser(message);
+            if (transport instanceof FramedTransport) {
+                ((FramedTransport) transport).setMaxFrameLength(Protocol.MAX_FRAME_LENGTH);
+            }
+            clientLoggedIn(this);
+        }
+
+        /**
+         * Reads the next object and records how long reading it took once it started arriving.
+         */
+        private Object receive() throws IOException, ClassNotFoundException {
+            Object obj = transport.receive();
+            if (transport.getReceiveNanos() >= 0) {
+                metrics.record(ServerMetrics.Stage.READ, transport.getReceiveNanos());
+            }
+            MessageEvents.MessageRead event = new MessageEvents.MessageRead();
+            if (event.shouldCommit()) {
+                event.describe(obj);
+                event.bytes = Math.max(0, transport.getReceivedBytes());
+                event.commit();
+            }
+            return obj;
+        }
+
         /**
          * Shuts down the client connection and cleans up resources.
          */
         public void shutdown(){
-            System.out.println(user.getUserName() + " has logged out.");
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            metrics.connectionClosed();
+            outbound.close();
             try {
-                ois.close();
-                oos.close();
                 if(!client.isClosed())
                     client.close();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            removeConnection(this);
-            System.out.println("closed connection removed!");
-            logger.registerUserLogOut(user);
+            if (user != null) {
+                System.out.println(user.getUserName() + " has logged out.");
+                clientLoggedOut(this);
+            }
+        }
+
+        @Override
+        public boolean sendMessageWithoutWaiting(Object obj) {
+            return outbound.offerWithoutWaiting(obj);
         }
 
         /**
-         * Sends a message object to the client associated with this ConnectionHandler.
+         * Queues a message object for the client associated with this ConnectionHandler. A client that cannot
+         * keep up is disconnected according to the overflow policy.
          *
          * @param obj The message object to be sent.
          */
-        public synchronized void sendMessage(Object obj) {
-            try {
-                oos.writeObject(obj);
-                oos.flush();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        public void sendMessage(Object obj) {
+            if (!outbound.offer(obj)) {
+                outbound.close();
+                System.out.println(nameOf(this) + " is not keeping up, disconnecting.");
+                disconnect();
             }
         }
 
+        @Override
+        public User getUser() {
+            return user;
+        }
 
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outbound;
+        }
     }
 
     /**
-     * Removes saved messages for a specific user from the saved messages map.
+     * Sends the oldest messages saved for a user, if there are any. Only one batch per connection is in flight,
+     * so a large backlog is delivered in small pieces in between the user's live traffic.
      *
-     * @param userName The username of the user whose messages are to be removed.
+     * @param connection The connection of the user whose saved messages are delivered.
      */
-    private void removeSavedMessages(String userName) {
-        savedMessagesForOfflineUsers.remove(userName);
+    private void sendInboxBatch(Connection connection) {
+        String userName = connection.getUser().getUserName();
+        try {
+            OfflineStore.Batch batch = offlineStore.readBatch(userName, config.getInboxBatchBytes());
+            if (batch == null) {
+                inboxBatchesInFlight.remove(connection);
+                return;
+            }
+            System.out.println("Delivering " + batch.messages.size() + " saved messages to " + userName);
+            inboxBatchesInFlight.put(connection, batch);
+            connection.sendMessage(new InboxBatch(batch.messages, batch.last));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Checks for saved messages associated with a specific receiver.
+     * Removes an acknowledged batch from the offline store and sends the next one. If the batch was no
+     * longer at the front of the queue, because its messages expired meanwhile, the next batch is read
+     * from the front again. A connection whose user has since logged in again no longer acknowledges anything.
      *
-     * @param receiver The username of the user whose messages are to be retrieved.
-     * @return A list of messages saved for the specified receiver.
+     * @param connection The connection the acknowledgement was read from.
+     * @param cursor     The cursor of the acknowledged batch.
      */
-    private List<Message> checkForSavedMessages(String receiver) {
-        List<Message> output = new ArrayList<>();
-        savedMessagesForOfflineUsers.forEach((username,messages) -> {
-            if (receiver.equals(username)) {
-                output.addAll(messages);
+    private void acknowledgeInboxBatch(Connection connection, long cursor) {
+        OfflineStore.Batch inFlight = inboxBatchesInFlight.get(connection);
+        if (inFlight == null || inFlight.last != cursor
+                || connections.get(connection.getUser().getUserName()) != connection) {
+            return;
+        }
+        try {
+            if (!offlineStore.acknowledge(connection.getUser().getUserName(), inFlight)) {
+                System.out.println("Saved messages acknowledged by " + connection.getUser().getUserName()
+                        + " had expired, continuing with the oldest message still queued.");
             }
-        });
-        return output;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        sendInboxBatch(connection);
     }
 
     /**
-     * Saves a message intended for an offline user.
+     * Saves a message intended for an offline user in the offline store, unless a quota is full.
      *
      * @param message The message to be saved.
+     * @return True if the message was saved.
      */
-    private void saveOfflineMessage(Message message) {
-        savedMessagesForOfflineUsers.computeIfAbsent(message.getReceiver().getUserName(), k -> new ArrayList<>()).add(message);
+    private boolean saveOfflineMessage(Message message) {
+        MessageEvents.MessageQueuedOffline event = new MessageEvents.MessageQueuedOffline();
+        event.begin();
+        try {
+            boolean accepted = offlineStore.append(message);
+            event.end();
+            if (event.shouldCommit()) {
+                event.describe(message);
+                event.receivers = 1;
+                event.receiver = message.getReceiver().getUserName();
+                event.bytes = MessageEvents.LifecycleEvent.contentBytes(message);
+                event.accepted = accepted;
+                event.commit();
+            }
+            if (accepted) {
+                return true;
+            }
+            System.out.println("Offline queue of " + message.getReceiver().getUserName() + " is full, dropping message from "
+                    + message.getSender().getUserName());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
     }
 }
\ No newline at end of file
@@ -0,0 +1,255 @@
+package Server.Controller;
+
+import javax.management.*;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms of the running server. The engines and the routing code
+ * record into striped counters and {@link LatencyHistogram}s, which never lock, so recording costs a
+ * few atomic increments. Gauges such as queue depths are only read when a snapshot is taken.
+ *
+ * A snapshot is taken every interval: counters as totals and as rates over the interval, latencies as
+ * count, p50, p99, p999 and maximum over the interval in microseconds, and the current gauge values.
+ * The latest snapshot is written to a file and served as the attributes of a JMX MBean named
+ * {@code Server.Controller:type=ServerMetrics}.
+ */
+public class ServerMetrics {
+
+    /**
+     * The stages of handling a message whose latency is measured.
+     */
+    public enum Stage {
+        /** Reading a frame whose first bytes have arrived and decoding it. */
+        READ,
+        /** Routing a message: delivering it to queues or saving it for offline receivers. */
+        ROUTE,
+        /** Encoding an object to be written. */
+        SERIALIZE,
+        /** Writing encoded bytes to a socket. */
+        WRITE
+    }
+
+    private static final String OBJECT_NAME = "Server.Controller:type=ServerMetrics";
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder routed = new LongAdder();
+    private final Map<Stage, LatencyHistogram> latencies = new EnumMap<>(Stage.class);
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<Stage, LatencyHistogram.Snapshot> previousLatencies = new EnumMap<>(Stage.class);
+    private long previousAccepted;
+    private long previousRouted;
+    private long previousNanos = System.nanoTime();
+    private volatile Map<String, Number> latest = Collections.emptyMap();
+
+    public ServerMetrics() {
+        for (Stage stage : Stage.values()) {
+            latencies.put(stage, new LatencyHistogram());
+            previousLatencies.put(stage, latencies.get(stage).snapshot());
+        }
+    }
+
+    /**
+     * Starts taking a snapshot every interval on a daemon thread, writing each to a file, and registers the
+     * MBean from that thread.
+     *
+     * @param file            The file the latest snapshot is written to, or null to keep it in memory only.
+     * @param intervalSeconds The time between snapshots.
+     */
+    public void start(Path file, long intervalSeconds) {
+        ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Starting the platform MBean server takes about as long as the rest of the server's startup, so it
+        // is done on the snapshot thread instead of delaying the moment the server accepts connections.
+        snapshots.execute(() -> {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                System.out.println("Could not register the metrics MBean: " + e.getMessage());
+            }
+        });
+        snapshots.scheduleAtFixedRate(() -> {
+            Map<String, Number> snapshot = snapshot();
+            if (file != null) {
+                try {
+                    write(file, snapshot);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void connectionAccepted() {
+        accepted.increment();
+    }
+
+    public void connectionClosed() {
+        closed.increment();
+    }
+
+    public void messageRouted() {
+        routed.increment();
+    }
+
+    /**
+     * @param stage The stage that was measured.
+     * @param nanos How long it took.
+     */
+    public void record(Stage stage, long nanos) {
+        latencies.get(stage).record(nanos);
+    }
+
+    /**
+     * Adds a value that is read whenever a snapshot is taken.
+     *
+     * @param name  The name of the value in snapshots.
+     * @param value Reads the current value; called from the snapshot thread.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return The latest snapshot, empty before the first interval has passed.
+     */
+    public Map<String, Number> getLatest() {
+        return latest;
+    }
+
+    /**
+     * Takes a snapshot covering the time since the previous one. Called from the snapshot thread only.
+     *
+     * @return The values by name, in a stable order.
+     */
+    Map<String, Number> snapshot() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - previousNanos) / 1e9);
+        Map<String, Number> values = new LinkedHashMap<>();
+        long acceptedNow = accepted.sum();
+        long routedNow = routed.sum();
+        values.put("connections.accepted", acceptedNow);
+        values.put("connections.acceptedPerSecond", Math.round((acceptedNow - previousAccepted) / seconds));
+        values.put("connections.active", acceptedNow - closed.sum());
+        values.put("messages.routed", routedNow);
+        values.put("messages.routedPerSecond", Math.round((routedNow - previousRouted) / seconds));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram.Snapshot total = latencies.get(stage).snapshot();
+            LatencyHistogram.Snapshot interval = total.since(previousLatencies.get(stage));
+            previousLatencies.put(stage, total);
+            String prefix = "latency." + stage.name().toLowerCase() + ".";
+            values.put(prefix + "count", interval.getCount());
+            values.put(prefix + "p50Micros", micros(interval.valueAt(0.5)));
+            values.put(prefix + "p99Micros", micros(interval.valueAt(0.99)));
+            values.put(prefix + "p999Micros", micros(interval.valueAt(0.999)));
+            values.put(prefix + "maxMicros", micros(interval.getMax()));
+        }
+        new TreeMap<>(gauges).forEach((name, gauge) -> {
+            try {
+                values.put(name, gauge.getAsLong());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        });
+        previousAccepted = acceptedNow;
+        previousRouted = routedNow;
+        previousNanos = now;
+        latest = Collections.unmodifiableMap(values);
+        return latest;
+    }
+
+    private static double micros(long nanos) {
+        return Math.round(nanos / 100.0) / 10.0;
+    }
+
+    /**
+     * Replaces the file with the snapshot, one {@code name=value} line per value, so readers never see a
+     * half-written file.
+     */
+    private static void write(Path file, Map<String, Number> snapshot) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            out.write("# Server metrics at " + LocalDateTime.now().withNano(0));
+            out.newLine();
+            for (Map.Entry<String, Number> value : snapshot.entrySet()) {
+                out.write(value.getKey() + "=" + value.getValue());
+                out.newLine();
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Serves the latest snapshot as read-only attributes, one per value.
+     */
+    private final class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = latest.get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            Map<String, Number> snapshot = latest;
+            for (String attribute : attributes) {
+                if (snapshot.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, snapshot.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Server metrics are read-only.");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        /**
+         * Lists the values of the latest snapshot; there are none until the first interval has passed.
+         */
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> snapshot = latest;
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Number> value : snapshot.entrySet()) {
+                attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                        value.getKey(), true, false, false));
+            }
+            return new MBeanInfo(ServerMetrics.class.getName(), "Counters, gauges and latency percentiles of the chat server.",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package Server.Controller;
+
+import Shared.Message;
+import Shared.User;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records the shape of the inbound traffic so it can be replayed against a test server later: when
+ * users log in and out and when they send messages, to whom and how large. Nothing that identifies a
+ * user or a conversation is written. User names become numbers in the order users first appear, the
+ * mapping is only kept in memory, and of a message's content only its length is kept.
+ *
+ * The file starts with {@link #MAGIC}, a version byte and the wall-clock time the capture started, then
+ * holds one record per event:
+ * <pre>
+ * byte type, varlong nanoseconds since the start, varint user
+ * MESSAGE: varint receiver, varint content length, byte attachment
+ * GROUP:   varint content length, byte attachment, varint members, members × varint user
+ * </pre>
+ * Recording stops after the configured number of minutes, when the server shuts down, or at the first
+ * write error. A capture cut short by a crash reads up to its last complete record.
+ */
+public class TrafficCapture {
+    public static final int MAGIC = 0x43434150;
+    public static final byte VERSION = 1;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * The kinds of events in a capture.
+     */
+    public enum Type {
+        LOGIN, LOGOUT, MESSAGE, GROUP
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final DataOutputStream out;
+    private final long startNanos;
+    private final long durationNanos;
+    private long records;
+    private boolean open = true;
+
+    /**
+     * Starts a capture, replacing an earlier one in the same file.
+     *
+     * @param file    The capture file.
+     * @param minutes How long to record for, or 0 to record until the server stops.
+     */
+    public TrafficCapture(Path file, long minutes) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_BYTES));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        startNanos = System.nanoTime();
+        durationNanos = TimeUnit.MINUTES.toNanos(minutes);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "traffic-capture-shutdown"));
+        System.out.println("Capturing traffic to " + file + (minutes == 0 ? "" : " for " + minutes + " minutes") + ".");
+    }
+
+    public void login(User user) {
+        record(Type.LOGIN, user.getUserName(), null);
+    }
+
+    public void logout(User user) {
+        record(Type.LOGOUT, user.getUserName(), null);
+    }
+
+    /**
+     * Records a message as it was read from its sender, before routing.
+     */
+    public void message(Message message) {
+        record(message.getGroupOfReceivers() == null ? Type.MESSAGE : Type.GROUP, message.getSender().getUserName(), message);
+    }
+
+    /**
+     * Writes what is buffered and ends the capture.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (!open) {
+                return;
+            }
+            open = false;
+            out.close();
+            System.out.println("Captured " + records + " traffic events.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(Type type, String user, Message message) {
+        lock.lock();
+        try {
+            if (!open) {
+                return;
+            }
+            long offset = System.nanoTime() - startNanos;
+            if (durationNanos > 0 && offset >= durationNanos) {
+                close();
+                return;
+            }
+            out.writeByte(type.ordinal());
+            writeVarLong(offset);
+            writeVarLong(idOf(user));
+            if (message != null) {
+                int length = message.getContent() == null ? 0 : message.getContent().length();
+                boolean attachment = message.getAttachmentHash() != null || message.getAttachment() != null;
+                if (type == Type.MESSAGE) {
+                    writeVarLong(idOf(message.getReceiver().getUserName()));
+                }
+                writeVarLong(length);
+                out.writeByte(attachment ? 1 : 0);
+                if (type == Type.GROUP) {
+                    List<User> members = message.getGroupOfReceivers();
+                    writeVarLong(members.size());
+                    for (User member : members) {
+                        writeVarLong(idOf(member.getUserName()));
+                    }
+                }
+            }
+            records++;
+        } catch (IOException e) {
+            System.out.println("Traffic capture stopped: " + e.getMessage());
+            open = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int idOf(String userName) {
+        return ids.computeIfAbsent(userName, name -> ids.size());
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a whole capture. A truncated last record is left out.
+     *
+     * @param file The capture file.
+     * @return The events in the order they were recorded.
+     */
+    public static List<Event> read(Path file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_BYTES))) {
+            if (in.readInt() != MAGIC) {
+                throw new StreamCorruptedException(file + " is not a traffic capture.");
+            }
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new StreamCorruptedException("Unsupported traffic capture version " + version + ".");
+            }
+            in.readLong();
+            Type[] types = Type.values();
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                if (type >= types.length) {
+                    throw new StreamCorruptedException("Unknown traffic capture record type " + type + ".");
+                }
+                Event event = new Event(types[type], readVarLong(in), (int) readVarLong(in));
+                if (event.type == Type.MESSAGE) {
+                    event.receiver = (int) readVarLong(in);
+                }
+                if (event.type == Type.MESSAGE || event.type == Type.GROUP) {
+                    event.contentLength = (int) readVarLong(in);
+                    event.attachment = in.readByte() != 0;
+                }
+                if (event.type == Type.GROUP) {
+                    int[] members = new int[(int) readVarLong(in)];
+                    for (int i = 0; i < members.length; i++) {
+                        members[i] = (int) readVarLong(in);
+                    }
+                    event.members = members;
+                }
+                events.add(event);
+            }
+        } catch (EOFException e) {
+            // Cut short by a crash; keep the complete records.
+        }
+        return events;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed number in traffic capture.");
+    }
+
+    /**
+     * One recorded event. Users are the numbers the capture gave them.
+     */
+    public static final class Event {
+        private final Type type;
+        private final long offsetNanos;
+        private final int user;
+        private int receiver = -1;
+        private int contentLength;
+        private boolean attachment;
+        private int[] members;
+
+        private Event(Type type, long offsetNanos, int user) {
+            this.type = type;
+            this.offsetNanos = offsetNanos;
+            this.user = user;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return The time of the event, in nanoseconds since the capture started.
+         */
+        public long getOffsetNanos() {
+            return offsetNanos;
+        }
+
+        /**
+         * @return The user who logged in or out, or the sender of a message.
+         */
+        public int getUser() {
+            return user;
+        }
+
+        /**
+         * @return The receiver of a private message, or -1.
+         */
+        public int getReceiver() {
+            return receiver;
+        }
+
+        public int getContentLength() {
+            return contentLength;
+        }
+
+        public boolean hasAttachment() {
+            return attachment;
+        }
+
+        /**
+         * @return The members of a group message, or null.
+         */
+        public int[] getMembers() {
+            return members;
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package Server.Controller;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Traffic counters kept up to date as the log is written, so charts and rankings never rescan the log.
+ *
+ * Every day has a memory-mapped file of fixed-size records, one per minute followed by one per hour,
+ * each holding the number of messages sent, messages saved for offline users, logins, logouts and
+ * message bytes. Counts per user are kept per day in a small file of their own, rewritten from memory
+ * every few seconds while the day is being written to. A series over months therefore reads a few
+ * kilobytes per day.
+ *
+ * The counters can always be rebuilt from the log. The directory is marked complete when the server
+ * shuts down cleanly, and the mark is removed on start. If it is missing, because the server crashed and
+ * lost the per-user counts since the last write, or on the first start with an existing log, the
+ * directory is cleared and filled from the log in the background while new events are counted as usual.
+ */
+public class TrafficRollups {
+
+    /**
+     * The width of the buckets of a series.
+     */
+    public enum Resolution {
+        MINUTE, HOUR, DAY
+    }
+
+    /**
+     * The counters of one bucket of a series.
+     */
+    public static final class Bucket {
+        private final LocalDateTime start;
+        private final long[] counts = new long[COUNTERS];
+
+        Bucket(LocalDateTime start) {
+            this.start = start;
+        }
+
+        public LocalDateTime getStart() {
+            return start;
+        }
+
+        public long getSent() {
+            return counts[SENT];
+        }
+
+        public long getSaved() {
+            return counts[SAVED];
+        }
+
+        public long getLogins() {
+            return counts[LOGINS];
+        }
+
+        public long getLogouts() {
+            return counts[LOGOUTS];
+        }
+
+        public long getBytes() {
+            return counts[BYTES];
+        }
+    }
+
+    /**
+     * What a user did over a range of days.
+     */
+    public static final class UserCount {
+        private final String user;
+        private final long[] counts = new long[USER_COUNTERS];
+
+        UserCount(String user) {
+            this.user = user;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * @return Messages the user sent, delivered right away or saved for later.
+         */
+        public long getSent() {
+            return counts[USER_SENT];
+        }
+
+        /**
+         * @return Messages delivered to the user while they were online.
+         */
+        public long getReceived() {
+            return counts[USER_RECEIVED];
+        }
+
+        /**
+         * @return Messages saved for the user while they were offline.
+         */
+        public long getSaved() {
+            return counts[USER_SAVED];
+        }
+
+        public long getLogins() {
+            return counts[USER_LOGINS];
+        }
+    }
+
+    private static final int SENT = 0;
+    private static final int SAVED = 1;
+    private static final int LOGINS = 2;
+    private static final int LOGOUTS = 3;
+    private static final int BYTES = 4;
+    private static final int COUNTERS = 5;
+
+    private static final int USER_SENT = 0;
+    private static final int USER_RECEIVED = 1;
+    private static final int USER_SAVED = 2;
+    private static final int USER_LOGINS = 3;
+    private static final int USER_COUNTERS = 4;
+
+    private static final int MAGIC = 0x524F4C4C;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int RECORD = COUNTERS * 8;
+    private static final int MINUTES = 24 * 60;
+    private static final int HOURS_OFFSET = HEADER + MINUTES * RECORD;
+    private static final int DAY_FILE_BYTES = HOURS_OFFSET + 24 * RECORD;
+    private static final int MAPPED_DAYS = 400;
+    private static final long USER_FLUSH_NANOS = 5_000_000_000L;
+    private static final String COMPLETE_MARKER = "complete";
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<LocalDate, MappedByteBuffer> days = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<LocalDate, Map<String, long[]>> userDays = new HashMap<>();
+    private final Set<LocalDate> dirtyUserDays = new HashSet<>();
+    private long lastUserFlush = System.nanoTime();
+    private volatile boolean complete;
+
+    /**
+     * @param directory The directory holding the rollups; created if missing.
+     */
+    public TrafficRollups(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * Fills the rollups from the log unless they were complete when the server last shut down. Runs in the
+     * background; entries from the given time on are left to {@link #record}.
+     *
+     * @param log    Supplies every line of the log.
+     * @param before The time from which on events are counted as they are written.
+     */
+    public void rebuildIfIncomplete(Supplier<Stream<String>> log, LocalDateTime before) throws IOException {
+        if (Files.deleteIfExists(directory.resolve(COMPLETE_MARKER))) {
+            complete = true;
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Thread rebuild = new Thread(() -> {
+            long started = System.nanoTime();
+            long counted = 0;
+            try (Stream<String> lines = log.get()) {
+                Iterator<String> iterator = lines.iterator();
+                while (iterator.hasNext()) {
+                    LogEntry entry = LogEntry.parse(iterator.next());
+                    if (entry != null && entry.getTime().isBefore(before)) {
+                        record(entry.getType(), entry.getTime(), entry.getUser(), entry.getOtherUser(), entry.getContent());
+                        counted++;
+                    }
+                }
+                flushUsers();
+                complete = true;
+                System.out.println("Built traffic rollups from " + counted + " log entries in "
+                        + (System.nanoTime() - started) / 1000000 + " ms.");
+            } catch (UncheckedIOException e) {
+                System.out.println("Could not build traffic rollups, retrying on the next start: " + e.getMessage());
+            }
+        }, "rollup-rebuild");
+        rebuild.setDaemon(true);
+        rebuild.start();
+    }
+
+    /**
+     * Counts an event.
+     *
+     * @param type      The type of the event.
+     * @param time      The time it was logged.
+     * @param user      The user who logged in or out, or the sender of a message.
+     * @param otherUser The receiver of a message.
+     * @param content   The content of a message.
+     */
+    public void record(LogEntry.Type type, LocalDateTime time, String user, String otherUser, String content) {
+        int counter;
+        switch (type) {
+            case SENT:
+                counter = SENT;
+                break;
+            case SAVED:
+                counter = SAVED;
+                break;
+            case LOGIN:
+                counter = LOGINS;
+                break;
+            case LOGOUT:
+                counter = LOGOUTS;
+                break;
+            default:
+                return;
+        }
+        LocalDate date = time.toLocalDate();
+        int minute = time.getHour() * 60 + time.getMinute();
+        long bytes = content == null ? 0 : utf8Length(content);
+        lock.lock();
+        try {
+            MappedByteBuffer day = day(date, true);
+            add(day, HEADER + minute * RECORD, counter, bytes);
+            add(day, HOURS_OFFSET + time.getHour() * RECORD, counter, bytes);
+            Map<String, long[]> users = users(date);
+            if (type == LogEntry.Type.LOGIN) {
+                userCounts(users, user)[USER_LOGINS]++;
+            } else if (type == LogEntry.Type.SENT || type == LogEntry.Type.SAVED) {
+                userCounts(users, user)[USER_SENT]++;
+                userCounts(users, otherUser)[type == LogEntry.Type.SENT ? USER_RECEIVED : USER_SAVED]++;
+            }
+            dirtyUserDays.add(date);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the per-user counts of the days that changed, if they were last written a while ago.
+     */
+    public void flushUsersIfDue() {
+        if (System.nanoTime() - lastUserFlush >= USER_FLUSH_NANOS) {
+            flushUsers();
+        }
+    }
+
+    /**
+     * Writes the per-user counts of the days that changed and forgets those of earlier days.
+     */
+    public void flushUsers() {
+        lock.lock();
+        try {
+            writeDirtyUsers();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the per-user counts and, unless a rebuild is still running, marks the rollups complete so the
+     * next start uses them as they are. Called on a clean shutdown, after the last event was recorded.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            writeDirtyUsers();
+            if (complete) {
+                Files.write(directory.resolve(COMPLETE_MARKER), new byte[0]);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void writeDirtyUsers() throws IOException {
+        for (LocalDate date : dirtyUserDays) {
+            writeUsers(date, userDays.get(date));
+        }
+        dirtyUserDays.clear();
+        LocalDate yesterday = LocalDate.now().minusDays(1);
+        userDays.keySet().removeIf(date -> date.isBefore(yesterday));
+        lastUserFlush = System.nanoTime();
+    }
+
+    /**
+     * Sums the counters over a time range in buckets of the given width.
+     *
+     * @param from       The start of the range, inclusive; rounded down to the resolution.
+     * @param to         The end of the range, exclusive.
+     * @param resolution The width of the buckets.
+     * @return One bucket per minute, hour or day of the range, empty ones included.
+     */
+    public List<Bucket> series(LocalDateTime from, LocalDateTime to, Resolution resolution) {
+        List<Bucket> buckets = new ArrayList<>();
+        LocalDateTime start = truncate(from, resolution);
+        for (LocalDateTime bucket = start; bucket.isBefore(to); bucket = next(bucket, resolution)) {
+            buckets.add(new Bucket(bucket));
+        }
+        lock.lock();
+        try {
+            for (LocalDate date = start.toLocalDate(); date.atStartOfDay().isBefore(to); date = date.plusDays(1)) {
+                MappedByteBuffer day = day(date, false);
+                if (day == null) {
+                    continue;
+                }
+                if (resolution == Resolution.MINUTE) {
+                    for (int minute = 0; minute < MINUTES; minute++) {
+                        LocalDateTime time = date.atStartOfDay().plusMinutes(minute);
+                        if (!time.isBefore(start) && time.isBefore(to)) {
+                            addTo(buckets.get((int) ChronoUnit.MINUTES.between(start, time)), day, HEADER + minute * RECORD);
+                        }
+                    }
+                } else {
+                    for (int hour = 0; hour < 24; hour++) {
+                        LocalDateTime time = date.atTime(hour, 0);
+                        if (!time.isBefore(start) && time.isBefore(to)) {
+                            int index = (int) (resolution == Resolution.HOUR
+                                    ? ChronoUnit.HOURS.between(start, time) : ChronoUnit.DAYS.between(start, time));
+                            addTo(buckets.get(index), day, HOURS_OFFSET + hour * RECORD);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        return buckets;
+    }
+
+    /**
+     * Ranks users by the messages they sent over whole days.
+     *
+     * @param from  The first day, inclusive.
+     * @param to    The last day, inclusive.
+     * @param limit How many users to return at most.
+     * @return The most active senders first.
+     */
+    public List<UserCount> topUsers(LocalDate from, LocalDate to, int limit) {
+        Map<String, UserCount> totals = new HashMap<>();
+        lock.lock();
+        try {
+            for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+                Map<String, long[]> users = userDays.containsKey(date) ? userDays.get(date) : readUsers(date);
+                for (Map.Entry<String, long[]> user : users.entrySet()) {
+                    long[] total = totals.computeIfAbsent(user.getKey(), UserCount::new).counts;
+                    for (int i = 0; i < USER_COUNTERS; i++) {
+                        total[i] += user.getValue()[i];
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        List<UserCount> ranking = new ArrayList<>(totals.values());
+        ranking.sort(Comparator.comparingLong(UserCount::getSent).reversed().thenComparing(UserCount::getUser));
+        return ranking.subList(0, Math.min(limit, ranking.size()));
+    }
+
+    /**
+     * @return The mapped file of a day, or null if it does not exist and is not to be created. Must be called
+     *         with the lock held.
+     */
+    private MappedByteBuffer day(LocalDate date, boolean create) throws IOException {
+        MappedByteBuffer day = days.get(date);
+        if (day != null) {
+            return day;
+        }
+        Path path = directory.resolve("minutes-" + date.format(DAY) + ".bin");
+        if (!create && !Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean fresh = channel.size() < DAY_FILE_BYTES;
+            day = channel.map(FileChannel.MapMode.READ_WRITE, 0, DAY_FILE_BYTES);
+            if (fresh) {
+                day.putInt(0, MAGIC);
+                day.putInt(4, VERSION);
+            } else if (day.getInt(0) != MAGIC || day.getInt(4) != VERSION) {
+                throw new IOException("Unexpected traffic rollup file " + path);
+            }
+        }
+        days.put(date, day);
+        if (days.size() > MAPPED_DAYS) {
+            Iterator<LocalDate> eldest = days.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return day;
+    }
+
+    private Map<String, long[]> users(LocalDate date) throws IOException {
+        Map<String, long[]> users = userDays.get(date);
+        if (users == null) {
+            users = readUsers(date);
+            userDays.put(date, users);
+        }
+        return users;
+    }
+
+    private Map<String, long[]> readUsers(LocalDate date) throws IOException {
+        Map<String, long[]> users = new HashMap<>();
+        Path path = usersPath(date);
+        if (!Files.exists(path)) {
+            return users;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String user = in.readUTF();
+                long[] counts = new long[USER_COUNTERS];
+                for (int j = 0; j < USER_COUNTERS; j++) {
+                    counts[j] = in.readLong();
+                }
+                users.put(user, counts);
+            }
+        }
+        return users;
+    }
+
+    private void writeUsers(LocalDate date, Map<String, long[]> users) throws IOException {
+        Path path = usersPath(date);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(users.size());
+            for (Map.Entry<String, long[]> user : users.entrySet()) {
+                out.writeUTF(user.getKey());
+                for (long count : user.getValue()) {
+                    out.writeLong(count);
+                }
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path usersPath(LocalDate date) {
+        return directory.resolve("users-" + date.format(DAY) + ".bin");
+    }
+
+    private static long[] userCounts(Map<String, long[]> users, String user) {
+        return users.computeIfAbsent(user == null ? "" : user, name -> new long[USER_COUNTERS]);
+    }
+
+    private static void add(MappedByteBuffer day, int record, int counter, long bytes) {
+        day.putLong(record + counter * 8, day.getLong(record + counter * 8) + 1);
+        day.putLong(record + BYTES * 8, day.getLong(record + BYTES * 8) + bytes);
+    }
+
+    private static void addTo(Bucket bucket, MappedByteBuffer day, int record) {
+        for (int i = 0; i < COUNTERS; i++) {
+            bucket.counts[i] += day.getLong(record + i * 8);
+        }
+    }
+
+    private static LocalDateTime truncate(LocalDateTime time, Resolution resolution) {
+        switch (resolution) {
+            case MINUTE:
+                return time.truncatedTo(ChronoUnit.MINUTES);
+            case HOUR:
+                return time.truncatedTo(ChronoUnit.HOURS);
+            default:
+                return time.truncatedTo(ChronoUnit.DAYS);
+        }
+    }
+
+    private static LocalDateTime next(LocalDateTime bucket, Resolution resolution) {
+        switch (resolution) {
+            case MINUTE:
+                return bucket.plusMinutes(1);
+            case HOUR:
+                return bucket.plusHours(1);
+            default:
+                return bucket.plusDays(1);
+        }
+    }
+
+    private static long utf8Length(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
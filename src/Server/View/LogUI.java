@@ -1,70 +1,429 @@
 package Server.View;
 
+import Server.Controller.LogEntry;
 import Server.Controller.LogManager;
+import Server.Controller.LogQuery;
 
 import javax.swing.*;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
-import java.time.LocalTime;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.*;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
 
-public class LogUI extends JFrame{
-    private JComboBox<String> fromComboBox;
-    private JComboBox<String> toComboBox;
-    private JButton submitButton;
-    private JTextArea logsTextArea;
+/**
+ * Server window for searching the traffic log. Searches run on SwingWorkers, so the window stays
+ * responsive, and results are shown a page at a time, so only one page of entries is held however
+ * large the result is. While a page is shown, a second worker counts all matches in the background.
+ * A second tab charts the traffic counters, see {@link TrafficPanel}.
+ */
+public class LogUI extends JFrame {
+    private static final int PAGE_SIZE = 1000;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private JSpinner fromSpinner;
+    private JSpinner toSpinner;
+    private JTextField userField;
+    private JTextField textField;
+    private final Map<LogEntry.Type, JCheckBox> typeBoxes = new EnumMap<>(LogEntry.Type.class);
+    private JButton searchButton;
+    private JButton cancelButton;
+    private JButton previousButton;
+    private JButton nextButton;
+    private JLabel statusLabel;
+    private final LogTableModel tableModel = new LogTableModel();
+    private final Timer statusTimer = new Timer(200, e -> updateStatus());
     private LogManager logManager;
 
+    private LogQuery query;
+    private int page;
+    private long matchesCounted;
+    private boolean counting;
+    private boolean cancelled;
+    private long startedAt;
+    private long finishedAt;
+    private PageWorker pageWorker;
+    private CountWorker countWorker;
+    private ResultCursor cursor;
+
     public LogUI(LogManager logM) {
         logManager = logM;
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setTitle("Server Log");
-        setSize(620, 560);
-        setLayout(new FlowLayout());
+        setSize(900, 620);
+        setLayout(new BorderLayout());
 
-        fromComboBox = new JComboBox<>(generateHourStrings());
-        toComboBox = new JComboBox<>(generateHourStrings());
-        submitButton = new JButton("Display Logs");
-        logsTextArea = new JTextArea(30, 50);
+        LocalDateTime startOfDay = LocalDate.now().atStartOfDay();
+        fromSpinner = dateTimeSpinner(startOfDay);
+        toSpinner = dateTimeSpinner(startOfDay.plusDays(1));
+        userField = new JTextField(10);
+        textField = new JTextField(14);
+        searchButton = new JButton("Search");
+        cancelButton = new JButton("Cancel");
+        previousButton = new JButton("< Previous");
+        nextButton = new JButton("Next >");
+        statusLabel = new JLabel(" ");
 
+        searchButton.addActionListener(e -> search());
+        cancelButton.addActionListener(e -> cancel());
+        previousButton.addActionListener(e -> showPage(page - 1));
+        nextButton.addActionListener(e -> showPage(page + 1));
 
-        submitButton.addActionListener(e -> {
-            saveLog();
-        });
+        JPanel range = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        range.add(new JLabel("From:"));
+        range.add(fromSpinner);
+        range.add(new JLabel("To:"));
+        range.add(toSpinner);
+        range.add(new JLabel("User:"));
+        range.add(userField);
+        range.add(new JLabel("Text:"));
+        range.add(textField);
+        JPanel types = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        for (LogEntry.Type type : LogEntry.Type.values()) {
+            JCheckBox box = new JCheckBox(type.name().charAt(0) + type.name().substring(1).toLowerCase().replace('_', ' '), true);
+            typeBoxes.put(type, box);
+            types.add(box);
+        }
+        types.add(searchButton);
+        types.add(cancelButton);
+        JPanel criteria = new JPanel(new GridLayout(2, 1));
+        criteria.add(range);
+        criteria.add(types);
 
-        add(new JLabel("From:"));
-        add(fromComboBox);
-        add(new JLabel("To:"));
-        add(toComboBox);
-        add(submitButton);
-        add(logsTextArea); // Add the text area
+        JTable table = new JTable(tableModel);
+        table.setFillsViewportHeight(true);
+        table.setAutoResizeMode(JTable.AUTO_RESIZE_LAST_COLUMN);
+        table.getColumnModel().getColumn(0).setPreferredWidth(140);
+        table.getColumnModel().getColumn(1).setPreferredWidth(80);
+        table.getColumnModel().getColumn(2).setPreferredWidth(90);
+        table.getColumnModel().getColumn(3).setPreferredWidth(90);
+        table.getColumnModel().getColumn(4).setPreferredWidth(480);
+
+        JPanel paging = new JPanel(new BorderLayout());
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        buttons.add(previousButton);
+        buttons.add(nextButton);
+        paging.add(buttons, BorderLayout.WEST);
+        paging.add(statusLabel, BorderLayout.CENTER);
+
+        JPanel searchPanel = new JPanel(new BorderLayout());
+        searchPanel.add(criteria, BorderLayout.NORTH);
+        searchPanel.add(new JScrollPane(table), BorderLayout.CENTER);
+        searchPanel.add(paging, BorderLayout.SOUTH);
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("Search", searchPanel);
+        tabs.addTab("Traffic", new TrafficPanel(logManager));
+        add(tabs, BorderLayout.CENTER);
+        updateControls();
 
         setVisible(true);
     }
 
-    private String[] generateHourStrings() {
-        String[] hours = new String[24];
-        DateTimeFormatter hourFormatter = DateTimeFormatter.ofPattern("HH:mm");
+    private static JSpinner dateTimeSpinner(LocalDateTime value) {
+        JSpinner spinner = new JSpinner(new SpinnerDateModel(Date.from(value.atZone(ZoneId.systemDefault()).toInstant()),
+                null, null, Calendar.HOUR_OF_DAY));
+        spinner.setEditor(new JSpinner.DateEditor(spinner, "yyyy-MM-dd HH:mm"));
+        return spinner;
+    }
+
+    private static LocalDateTime valueOf(JSpinner spinner) {
+        return LocalDateTime.ofInstant(((Date) spinner.getValue()).toInstant(), ZoneId.systemDefault());
+    }
+
+    /**
+     * Starts a new search from the criteria in the window: the first page is fetched and all matches are
+     * counted, each on a worker of its own.
+     */
+    private void search() {
+        stopWorkers();
+        Set<LogEntry.Type> types = EnumSet.noneOf(LogEntry.Type.class);
+        typeBoxes.forEach((type, box) -> {
+            if (box.isSelected()) {
+                types.add(type);
+            }
+        });
+        query = new LogQuery(valueOf(fromSpinner), valueOf(toSpinner))
+                .user(userField.getText().trim())
+                .types(types)
+                .text(textField.getText());
+        matchesCounted = 0;
+        counting = true;
+        cancelled = false;
+        startedAt = System.nanoTime();
+        countWorker = new CountWorker(query);
+        countWorker.execute();
+        statusTimer.start();
+        showPage(0);
+    }
+
+    /**
+     * Fetches a page of the current result in the background. Moving on to the next page continues the
+     * search where the shown page ended; any other page runs the search again and skips to it.
+     */
+    private void showPage(int number) {
+        if (query == null || number < 0) {
+            return;
+        }
+        if (pageWorker != null) {
+            pageWorker.cancel(true);
+        }
+        page = number;
+        tableModel.clear();
+        ResultCursor reusable = cursor;
+        cursor = null;
+        pageWorker = new PageWorker(query, number, reusable);
+        pageWorker.execute();
+        updateControls();
+    }
+
+    private void cancel() {
+        cancelled = pageWorker != null && !pageWorker.isDone() || countWorker != null && !countWorker.isDone();
+        stopWorkers();
+        updateControls();
+    }
+
+    private void stopWorkers() {
+        if (pageWorker != null) {
+            pageWorker.cancel(true);
+            pageWorker = null;
+        }
+        if (countWorker != null) {
+            countWorker.cancel(true);
+            countWorker = null;
+        }
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+        if (counting) {
+            counting = false;
+            finishedAt = System.nanoTime();
+        }
+    }
+
+    private void updateControls() {
+        boolean fetching = pageWorker != null && !pageWorker.isDone();
+        cancelButton.setEnabled(fetching || counting);
+        previousButton.setEnabled(query != null && page > 0);
+        nextButton.setEnabled(query != null && !fetching && tableModel.getRowCount() == PAGE_SIZE
+                && (counting || (long) (page + 1) * PAGE_SIZE < matchesCounted));
+        updateStatus();
+    }
+
+    private void updateStatus() {
+        if (query == null) {
+            statusLabel.setText(" ");
+            return;
+        }
+        long elapsed = (counting ? System.nanoTime() : finishedAt) - startedAt;
+        long first = (long) page * PAGE_SIZE;
+        String rows = tableModel.getRowCount() == 0 ? "no rows" : "rows " + (first + 1) + "-" + (first + tableModel.getRowCount());
+        String total = counting ? "counting... " + matchesCounted + " so far" : matchesCounted + " matches";
+        String state = cancelled ? " (cancelled)" : "";
+        statusLabel.setText(String.format("  Page %d, %s of %s, %.1f s%s", page + 1, rows, total, elapsed / 1e9, state));
+        if (!counting) {
+            statusTimer.stop();
+        }
+    }
+
+    /**
+     * A search stream left open after a page, positioned at the first entry of the next page.
+     */
+    private static final class ResultCursor {
+        final Stream<LogEntry> stream;
+        final Iterator<LogEntry> entries;
+        long position;
+
+        ResultCursor(Stream<LogEntry> stream) {
+            this.stream = stream;
+            this.entries = stream.iterator();
+        }
+
+        void close() {
+            stream.close();
+        }
+    }
+
+    /**
+     * Fetches one page, publishing rows as they are found so the table fills while the search runs.
+     */
+    private final class PageWorker extends SwingWorker<ResultCursor, LogEntry> {
+        private final LogQuery query;
+        private final int number;
+        private ResultCursor cursor;
+
+        PageWorker(LogQuery query, int number, ResultCursor cursor) {
+            this.query = query;
+            this.number = number;
+            this.cursor = cursor;
+        }
+
+        @Override
+        protected ResultCursor doInBackground() {
+            long first = (long) number * PAGE_SIZE;
+            if (cursor == null || cursor.position != first) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                cursor = new ResultCursor(logManager.search(query));
+            }
+            try {
+                while (cursor.position < first && cursor.entries.hasNext() && !isCancelled()) {
+                    cursor.entries.next();
+                    cursor.position++;
+                }
+                while (cursor.position < first + PAGE_SIZE && cursor.entries.hasNext() && !isCancelled()) {
+                    publish(cursor.entries.next());
+                    cursor.position++;
+                }
+            } finally {
+                if (isCancelled()) {
+                    cursor.close();
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        protected void process(List<LogEntry> rows) {
+            if (pageWorker == this && !isCancelled()) {
+                tableModel.add(rows);
+                updateStatus();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (pageWorker != this) {
+                closeQuietly();
+                return;
+            }
+            try {
+                LogUI.this.cursor = get();
+            } catch (CancellationException e) {
+                closeQuietly();
+            } catch (InterruptedException | ExecutionException e) {
+                closeQuietly();
+                statusLabel.setText("  Search failed: " + e.getMessage());
+                e.printStackTrace();
+                return;
+            }
+            updateControls();
+        }
+
+        private void closeQuietly() {
+            if (cursor != null && isDone()) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Counts every match of a search without keeping any of them.
+     */
+    private final class CountWorker extends SwingWorker<Long, Long> {
+        private final LogQuery query;
+
+        CountWorker(LogQuery query) {
+            this.query = query;
+        }
+
+        @Override
+        protected Long doInBackground() {
+            long count = 0;
+            long lastPublished = System.nanoTime();
+            try (Stream<LogEntry> matches = logManager.search(query)) {
+                Iterator<LogEntry> entries = matches.iterator();
+                while (entries.hasNext() && !isCancelled()) {
+                    entries.next();
+                    count++;
+                    if (System.nanoTime() - lastPublished > 100_000_000L) {
+                        publish(count);
+                        lastPublished = System.nanoTime();
+                    }
+                }
+            }
+            return count;
+        }
 
-        for (int hour = 0; hour < 24; hour++) {
-            hours[hour] = LocalTime.of(hour, 0).format(hourFormatter);
+        @Override
+        protected void process(List<Long> counts) {
+            if (countWorker == this) {
+                matchesCounted = counts.get(counts.size() - 1);
+            }
         }
 
-        return hours;
+        @Override
+        protected void done() {
+            if (countWorker != this || isCancelled()) {
+                return;
+            }
+            try {
+                matchesCounted = get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+            counting = false;
+            finishedAt = System.nanoTime();
+            updateControls();
+        }
     }
 
-    public void saveLog(){
-        logsTextArea.setText("");
-        String selectedFromHour = (String) fromComboBox.getSelectedItem();
-        String selectedToHour = (String) toComboBox.getSelectedItem();
+    /**
+     * Holds the rows of the page on screen. JTable only asks for the rows it paints.
+     */
+    private static final class LogTableModel extends AbstractTableModel {
+        private static final String[] COLUMNS = {"Time", "Event", "User", "To", "Text"};
+        private final List<LogEntry> rows = new ArrayList<>(PAGE_SIZE);
+
+        void add(List<LogEntry> entries) {
+            int first = rows.size();
+            rows.addAll(entries);
+            fireTableRowsInserted(first, rows.size() - 1);
+        }
+
+        void clear() {
+            rows.clear();
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
 
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm");
-        LocalTime localFrom = LocalTime.parse(selectedFromHour,formatter);
-        LocalTime localTo = LocalTime.parse(selectedToHour,formatter);
-        List<String> logs = logManager.retrievePeriodicalLogs(localFrom,localTo);
-        for (String line: logs) {
-            logsTextArea.append(line + "\n");
+        @Override
+        public Object getValueAt(int row, int column) {
+            LogEntry entry = rows.get(row);
+            switch (column) {
+                case 0:
+                    return entry.getTime().format(TIME);
+                case 1:
+                    return entry.getType();
+                case 2:
+                    return entry.getUser();
+                case 3:
+                    return entry.getOtherUser();
+                default:
+                    return entry.getContent() != null ? entry.getContent() : entry.getText();
+            }
         }
-        System.out.println("From: " + selectedFromHour + " To: " + selectedToHour);
     }
 }
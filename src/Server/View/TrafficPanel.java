@@ -0,0 +1,260 @@
+package Server.View;
+
+import Server.Controller.LogManager;
+import Server.Controller.TrafficRollups;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ToLongFunction;
+
+/**
+ * Charts the traffic counters of the {@link TrafficRollups} over a date-time range and ranks the users who
+ * sent the most messages in it. Neither reads the log, so months of data show in milliseconds.
+ */
+public class TrafficPanel extends JPanel {
+    private static final int TOP_USERS = 20;
+    private static final DateTimeFormatter MINUTE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    /**
+     * The counters that can be charted.
+     */
+    private enum Metric {
+        SENT("Messages sent", TrafficRollups.Bucket::getSent),
+        SAVED("Saved for offline users", TrafficRollups.Bucket::getSaved),
+        LOGINS("Logins", TrafficRollups.Bucket::getLogins),
+        LOGOUTS("Logouts", TrafficRollups.Bucket::getLogouts),
+        BYTES("Message bytes", TrafficRollups.Bucket::getBytes);
+
+        final String label;
+        final ToLongFunction<TrafficRollups.Bucket> value;
+
+        Metric(String label, ToLongFunction<TrafficRollups.Bucket> value) {
+            this.label = label;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final LogManager logManager;
+    private final JSpinner fromSpinner;
+    private final JSpinner toSpinner;
+    private final JComboBox<TrafficRollups.Resolution> resolutionBox = new JComboBox<>(TrafficRollups.Resolution.values());
+    private final JComboBox<Metric> metricBox = new JComboBox<>(Metric.values());
+    private final JLabel statusLabel = new JLabel(" ");
+    private final Chart chart = new Chart();
+    private final UserTableModel userModel = new UserTableModel();
+    private RollupWorker worker;
+
+    public TrafficPanel(LogManager logManager) {
+        super(new BorderLayout());
+        this.logManager = logManager;
+        LocalDateTime startOfDay = LocalDate.now().atStartOfDay();
+        fromSpinner = dateTimeSpinner(startOfDay.minusDays(6));
+        toSpinner = dateTimeSpinner(startOfDay.plusDays(1));
+        resolutionBox.setSelectedItem(TrafficRollups.Resolution.HOUR);
+        JButton showButton = new JButton("Show");
+        showButton.addActionListener(e -> refresh());
+        metricBox.addActionListener(e -> chart.repaint());
+
+        JPanel criteria = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        criteria.add(new JLabel("From:"));
+        criteria.add(fromSpinner);
+        criteria.add(new JLabel("To:"));
+        criteria.add(toSpinner);
+        criteria.add(new JLabel("Per:"));
+        criteria.add(resolutionBox);
+        criteria.add(metricBox);
+        criteria.add(showButton);
+
+        JTable users = new JTable(userModel);
+        users.setFillsViewportHeight(true);
+        JScrollPane userScroll = new JScrollPane(users);
+        userScroll.setPreferredSize(new Dimension(320, 0));
+
+        add(criteria, BorderLayout.NORTH);
+        add(chart, BorderLayout.CENTER);
+        add(userScroll, BorderLayout.EAST);
+        add(statusLabel, BorderLayout.SOUTH);
+    }
+
+    private static JSpinner dateTimeSpinner(LocalDateTime value) {
+        JSpinner spinner = new JSpinner(new SpinnerDateModel(Date.from(value.atZone(ZoneId.systemDefault()).toInstant()),
+                null, null, Calendar.DAY_OF_MONTH));
+        spinner.setEditor(new JSpinner.DateEditor(spinner, "yyyy-MM-dd HH:mm"));
+        return spinner;
+    }
+
+    private static LocalDateTime valueOf(JSpinner spinner) {
+        return LocalDateTime.ofInstant(((Date) spinner.getValue()).toInstant(), ZoneId.systemDefault());
+    }
+
+    /**
+     * Reads the series and the ranking of the range in the window, in the background.
+     */
+    private void refresh() {
+        if (worker != null) {
+            worker.cancel(true);
+        }
+        worker = new RollupWorker(valueOf(fromSpinner), valueOf(toSpinner), (TrafficRollups.Resolution) resolutionBox.getSelectedItem());
+        worker.execute();
+    }
+
+    /**
+     * The result of one refresh.
+     */
+    private static final class Rollup {
+        List<TrafficRollups.Bucket> series;
+        List<TrafficRollups.UserCount> users;
+        long nanos;
+    }
+
+    private final class RollupWorker extends SwingWorker<Rollup, Void> {
+        private final LocalDateTime from;
+        private final LocalDateTime to;
+        private final TrafficRollups.Resolution resolution;
+
+        RollupWorker(LocalDateTime from, LocalDateTime to, TrafficRollups.Resolution resolution) {
+            this.from = from;
+            this.to = to;
+            this.resolution = resolution;
+        }
+
+        @Override
+        protected Rollup doInBackground() {
+            long started = System.nanoTime();
+            TrafficRollups rollups = logManager.getTrafficRollups();
+            Rollup rollup = new Rollup();
+            rollup.series = rollups.series(from, to, resolution);
+            rollup.users = rollups.topUsers(from.toLocalDate(), to.minusNanos(1).toLocalDate(), TOP_USERS);
+            rollup.nanos = System.nanoTime() - started;
+            return rollup;
+        }
+
+        @Override
+        protected void done() {
+            if (worker != this || isCancelled()) {
+                return;
+            }
+            try {
+                Rollup rollup = get();
+                chart.setSeries(rollup.series);
+                userModel.setUsers(rollup.users);
+                statusLabel.setText(String.format("  %d buckets, %.1f ms. Users are ranked over whole days.",
+                        rollup.series.size(), rollup.nanos / 1e6));
+            } catch (InterruptedException | ExecutionException e) {
+                statusLabel.setText("  Could not read the traffic rollups: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A bar chart of the selected metric. When there are more buckets than pixels, each column shows the
+     * largest bucket it covers, so peaks stay visible.
+     */
+    private final class Chart extends JComponent {
+        private static final int MARGIN = 40;
+        private List<TrafficRollups.Bucket> series = new ArrayList<>();
+
+        Chart() {
+            setPreferredSize(new Dimension(560, 360));
+        }
+
+        void setSeries(List<TrafficRollups.Bucket> series) {
+            this.series = series;
+            repaint();
+        }
+
+        @Override
+        protected void paintComponent(Graphics graphics) {
+            Graphics2D g = (Graphics2D) graphics;
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, getWidth(), getHeight());
+            int width = getWidth() - 2 * MARGIN;
+            int height = getHeight() - 2 * MARGIN;
+            if (series.isEmpty() || width <= 0 || height <= 0) {
+                return;
+            }
+            Metric metric = (Metric) metricBox.getSelectedItem();
+            int columns = Math.min(width, series.size());
+            long[] values = new long[columns];
+            long max = 1;
+            for (int i = 0; i < series.size(); i++) {
+                int column = (int) ((long) i * columns / series.size());
+                values[column] = Math.max(values[column], metric.value.applyAsLong(series.get(i)));
+                max = Math.max(max, values[column]);
+            }
+            g.setColor(new Color(70, 120, 200));
+            for (int column = 0; column < columns; column++) {
+                int x = MARGIN + column * width / columns;
+                int barWidth = Math.max(1, MARGIN + (column + 1) * width / columns - x - (columns < width / 3 ? 1 : 0));
+                int barHeight = (int) (values[column] * height / max);
+                g.fillRect(x, MARGIN + height - barHeight, barWidth, barHeight);
+            }
+            g.setColor(Color.DARK_GRAY);
+            g.drawLine(MARGIN, MARGIN + height, MARGIN + width, MARGIN + height);
+            g.drawLine(MARGIN, MARGIN, MARGIN, MARGIN + height);
+            FontMetrics font = g.getFontMetrics();
+            g.drawString(metric.label + ", max " + max, MARGIN, MARGIN - font.getDescent() - 4);
+            g.drawString(series.get(0).getStart().format(MINUTE), MARGIN, MARGIN + height + font.getHeight());
+            String last = series.get(series.size() - 1).getStart().format(MINUTE);
+            g.drawString(last, MARGIN + width - font.stringWidth(last), MARGIN + height + font.getHeight());
+        }
+    }
+
+    private static final class UserTableModel extends AbstractTableModel {
+        private static final String[] COLUMNS = {"User", "Sent", "Received", "Saved", "Logins"};
+        private List<TrafficRollups.UserCount> users = new ArrayList<>();
+
+        void setUsers(List<TrafficRollups.UserCount> users) {
+            this.users = users;
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return users.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            TrafficRollups.UserCount user = users.get(row);
+            switch (column) {
+                case 0:
+                    return user.getUser();
+                case 1:
+                    return user.getSent();
+                case 2:
+                    return user.getReceived();
+                case 3:
+                    return user.getSaved();
+                default:
+                    return user.getLogins();
+            }
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package Shared;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact codec with an explicit field layout, written and read field by field without reflection.
+ *
+ * Every payload starts with a format version and a type tag. Integers are unsigned varints,
+ * strings are UTF-8, and attachments and avatars are referenced by content hash. Nullable strings
+ * and byte arrays store their length plus one, so zero means null.
+ *
+ * Users inside a message are written by name only, since receivers only need the name to route
+ * and display a message. The one exception is the login message, a message without receiver or
+ * group, whose sender is written with the avatar hash so the server can show it to others.
+ * Online user lists and join updates always carry the avatar hash.
+ *
+ * An addressed message is split in two: an envelope holding the header and the receiver, and a
+ * body holding the rest of the message, so a group message body is encoded once for all receivers.
+ *
+ * Counts and lengths read from a payload are checked against the bytes left in it before anything
+ * is allocated for them. The server's instance also refuses the payloads only a server sends.
+ */
+public class BinaryCodec implements Codec {
+    public static final byte FORMAT_VERSION = 1;
+
+    private static final byte TYPE_MESSAGE = 1;
+    private static final byte TYPE_ONLINE_USERS = 2;
+    private static final byte TYPE_PRESENCE_UPDATE = 3;
+    private static final byte TYPE_PRESENCE_RESYNC = 4;
+    private static final byte TYPE_ADDRESSED_MESSAGE = 5;
+    private static final byte TYPE_BLOB = 6;
+    private static final byte TYPE_BLOB_REQUEST = 7;
+    private static final byte TYPE_INBOX_BATCH = 8;
+    private static final byte TYPE_INBOX_ACK = 9;
+
+    private static final int FLAG_LEAVING = 1;
+    private static final int FLAG_RECEIVER = 1 << 1;
+    private static final int FLAG_GROUP = 1 << 2;
+
+    private final boolean fromClients;
+
+    public BinaryCodec() {
+        this(false);
+    }
+
+    /**
+     * @param fromClients True for a server's codec, which refuses online user lists, presence updates,
+     *                    addressed messages and inbox batches, since only a server sends those.
+     */
+    public BinaryCodec(boolean fromClients) {
+        this.fromClients = fromClients;
+    }
+
+    @Override
+    public byte id() {
+        return Protocol.CODEC_BINARY;
+    }
+
+    @Override
+    public byte[] encode(Object obj) throws IOException {
+        Writer out = new Writer();
+        out.writeByte(FORMAT_VERSION);
+        if (obj instanceof Message) {
+            out.writeByte(TYPE_MESSAGE);
+            Message message = (Message) obj;
+            writeMessage(out, message, message.receiver == null && message.groupOfReceivers == null);
+        } else if (obj instanceof OnlineUsersList) {
+            out.writeByte(TYPE_ONLINE_USERS);
+            OnlineUsersList list = (OnlineUsersList) obj;
+            out.writeVarLong(list.version);
+            out.writeVarInt(list.onlineUsers.size());
+            for (User user : list.onlineUsers) {
+                writeUser(out, user, true);
+            }
+        } else if (obj instanceof PresenceUpdate) {
+            out.writeByte(TYPE_PRESENCE_UPDATE);
+            PresenceUpdate update = (PresenceUpdate) obj;
+            out.writeVarLong(update.version);
+            out.writeByte(update.joined ? 1 : 0);
+            writeUser(out, update.user, update.joined);
+        } else if (obj instanceof PresenceResync) {
+            out.writeByte(TYPE_PRESENCE_RESYNC);
+        } else if (obj instanceof Blob) {
+            out.writeByte(TYPE_BLOB);
+            out.writeString(((Blob) obj).hash);
+            out.writeBytes(((Blob) obj).data);
+        } else if (obj instanceof BlobRequest) {
+            out.writeByte(TYPE_BLOB_REQUEST);
+            out.writeString(((BlobRequest) obj).hash);
+        } else if (obj instanceof InboxBatch) {
+            out.writeByte(TYPE_INBOX_BATCH);
+            InboxBatch batch = (InboxBatch) obj;
+            out.writeVarLong(batch.cursor);
+            out.writeVarInt(batch.messages.size());
+            for (Message message : batch.messages) {
+                writeMessage(out, message, false);
+            }
+        } else if (obj instanceof InboxAck) {
+            out.writeByte(TYPE_INBOX_ACK);
+            out.writeVarLong(((InboxAck) obj).cursor);
+        } else {
+            throw new NotSerializableException(obj == null ? "null" : obj.getClass().getName());
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] encodeBody(Message message) throws IOException {
+        Writer out = new Writer();
+        writeMessage(out, message, false);
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] encodeEnvelope(User receiver) {
+        Writer out = new Writer();
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(TYPE_ADDRESSED_MESSAGE);
+        out.writeString(receiver.getUserName());
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] buffer, int offset, int length) throws IOException {
+        Reader in = new Reader(buffer, offset, length);
+        byte version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new StreamCorruptedException("Unsupported binary format version " + version + ".");
+        }
+        byte type = in.readByte();
+        if (fromClients && isServerOnly(type)) {
+            throw new StreamCorruptedException("Payload type " + type + " is only sent by servers.");
+        }
+        switch (type) {
+            case TYPE_MESSAGE:
+                return readMessage(in, true);
+            case TYPE_ADDRESSED_MESSAGE:
+                User receiver = new User(in.readString(), null);
+                Message addressed = readMessage(in, false);
+                addressed.receiver = receiver;
+                return addressed;
+            case TYPE_ONLINE_USERS:
+                long snapshotVersion = in.readVarLong();
+                int count = in.readCount();
+                List<User> users = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    users.add(readUser(in, true));
+                }
+                return new OnlineUsersList(users, snapshotVersion);
+            case TYPE_PRESENCE_UPDATE:
+                long updateVersion = in.readVarLong();
+                boolean joined = in.readByte() != 0;
+                return new PresenceUpdate(updateVersion, readUser(in, joined), joined);
+            case TYPE_PRESENCE_RESYNC:
+                return new PresenceResync();
+            case TYPE_BLOB:
+                return new Blob(in.readString(), in.readBytes());
+            case TYPE_BLOB_REQUEST:
+                return new BlobRequest(in.readString());
+            case TYPE_INBOX_BATCH:
+                long cursor = in.readVarLong();
+                int size = in.readCount();
+                List<Message> messages = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    messages.add(readMessage(in, false));
+                }
+                return new InboxBatch(messages, cursor);
+            case TYPE_INBOX_ACK:
+                return new InboxAck(in.readVarLong());
+            default:
+                throw new StreamCorruptedException("Unknown payload type " + type + ".");
+        }
+    }
+
+    private static boolean isServerOnly(byte type) {
+        return type == TYPE_ONLINE_USERS || type == TYPE_PRESENCE_UPDATE || type == TYPE_ADDRESSED_MESSAGE
+                || type == TYPE_INBOX_BATCH;
+    }
+
+    private void writeMessage(Writer out, Message message, boolean senderAvatar) throws IOException {
+        int flags = 0;
+        if (message.userIsLeaving) {
+            flags |= FLAG_LEAVING;
+        }
+        if (message.receiver != null) {
+            flags |= FLAG_RECEIVER;
+        }
+        if (message.groupOfReceivers != null) {
+            flags |= FLAG_GROUP;
+        }
+        out.writeByte(flags);
+        out.writeString(message.content);
+        out.writeString(message.attachmentHash);
+        writeUser(out, message.sender, senderAvatar);
+        if (message.receiver != null) {
+            writeUser(out, message.receiver, false);
+        }
+        if (message.groupOfReceivers != null) {
+            out.writeVarInt(message.groupOfReceivers.size());
+            for (User member : message.groupOfReceivers) {
+                writeUser(out, member, false);
+            }
+        }
+    }
+
+    private Message readMessage(Reader in, boolean mayBeLogin) throws IOException {
+        int flags = in.readByte() & 0xFF;
+        boolean login = mayBeLogin && (flags & (FLAG_RECEIVER | FLAG_GROUP)) == 0;
+        String content = in.readString();
+        String attachmentHash = in.readString();
+        User sender = readUser(in, login);
+        Message message = new Message(content, null, sender);
+        message.attachmentHash = attachmentHash;
+        message.userIsLeaving = (flags & FLAG_LEAVING) != 0;
+        if ((flags & FLAG_RECEIVER) != 0) {
+            message.receiver = readUser(in, false);
+        }
+        if ((flags & FLAG_GROUP) != 0) {
+            int count = in.readCount();
+            List<User> group = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                group.add(readUser(in, false));
+            }
+            message.groupOfReceivers = group;
+        }
+        return message;
+    }
+
+    private void writeUser(Writer out, User user, boolean withAvatar) {
+        out.writeString(user == null ? null : user.getUserName());
+        if (withAvatar) {
+            out.writeString(user == null ? null : user.getAvatarHash());
+        }
+    }
+
+    private User readUser(Reader in, boolean withAvatar) throws IOException {
+        String userName = in.readString();
+        String avatarHash = withAvatar ? in.readString() : null;
+        if (userName == null) {
+            return null;
+        }
+        User user = new User(userName, null);
+        user.setAvatarHash(avatarHash);
+        return user;
+    }
+
+    /**
+     * Growable output buffer with the primitive encodings of the format.
+     */
+    private static final class Writer {
+        private byte[] buffer = new byte[64];
+        private int size;
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            if (bytes == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(bytes.length + 1);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeString(String value) {
+            writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+    }
+
+    /**
+     * Bounds-checked cursor over one payload.
+     */
+    private static final class Reader {
+        private final byte[] buffer;
+        private final int limit;
+        private int position;
+
+        Reader(byte[] buffer, int offset, int length) throws IOException {
+            if (offset < 0 || length < 0 || length > buffer.length - offset) {
+                throw new EOFException("Payload extends beyond its buffer.");
+            }
+            this.buffer = buffer;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        byte readByte() throws IOException {
+            require(1);
+            return buffer[position++];
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint.");
+        }
+
+        /**
+         * Reads the number of elements that follow. Every element takes at least one byte, so a count
+         * larger than what is left of the payload is corrupt.
+         */
+        int readCount() throws IOException {
+            int count = readVarInt();
+            if (count < 0 || count > remaining()) {
+                throw new StreamCorruptedException("Invalid element count " + count + ".");
+            }
+            return count;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint.");
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            require(length);
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        int remaining() {
+            return limit - position;
+        }
+
+        private void require(int bytes) throws IOException {
+            if (bytes < 0 || bytes > limit - position) {
+                throw new EOFException("Payload ended unexpectedly.");
+            }
+        }
+    }
+}
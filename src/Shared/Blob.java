@@ -0,0 +1,28 @@
+package Shared;
+
+import java.io.Serializable;
+
+/**
+ * The content of an attachment, named by its {@link ContentHash}. Clients upload a blob once and
+ * refer to it by hash from then on; the server answers a {@link BlobRequest} with the blob, or with
+ * null data if it does not have it.
+ */
+public class Blob implements Serializable {
+    private static final long serialVersionUID = 5668085329940867506L;
+
+    String hash;
+    byte[] data;
+
+    public Blob(String hash, byte[] data) {
+        this.hash = hash;
+        this.data = data;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,20 @@
+package Shared;
+
+import java.io.Serializable;
+
+/**
+ * Asks the server for the {@link Blob} with the given hash.
+ */
+public class BlobRequest implements Serializable {
+    private static final long serialVersionUID = 4927234161889168996L;
+
+    String hash;
+
+    public BlobRequest(String hash) {
+        this.hash = hash;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+}
@@ -0,0 +1,51 @@
+package Shared;
+
+import java.io.IOException;
+
+/**
+ * Turns the objects exchanged between client and server into frame payloads and back.
+ * A codec is picked once per connection during the handshake, see {@link Protocol}.
+ */
+public interface Codec {
+
+    /**
+     * @return The id the codec is announced with in the handshake.
+     */
+    byte id();
+
+    /**
+     * Encodes an object into a self-contained payload.
+     *
+     * @param obj The object to encode.
+     * @return The encoded payload.
+     */
+    byte[] encode(Object obj) throws IOException;
+
+    /**
+     * Encodes a message without its receiver, so a single body can be shared by every receiver of a group
+     * message. See {@link #encodeEnvelope(User)}.
+     *
+     * @param message A message without receiver.
+     * @return The encoded body.
+     */
+    byte[] encodeBody(Message message) throws IOException;
+
+    /**
+     * Encodes the part of a payload that names its receiver. The envelope followed by a body from
+     * {@link #encodeBody(Message)} forms a complete payload that decodes to the message with the receiver set.
+     *
+     * @param receiver The receiver of one copy of the message.
+     * @return The encoded envelope.
+     */
+    byte[] encodeEnvelope(User receiver) throws IOException;
+
+    /**
+     * Decodes one payload previously produced by {@link #encode(Object)}.
+     *
+     * @param buffer The buffer holding the payload.
+     * @param offset Where the payload starts.
+     * @param length The payload length in bytes.
+     * @return The decoded object.
+     */
+    Object decode(byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,29 @@
+package Shared;
+
+/**
+ * One receiver's copy of a group message: the receiver plus a shared {@link MessageBody}.
+ */
+public final class Envelope {
+    private final User receiver;
+    private final MessageBody body;
+
+    public Envelope(User receiver, MessageBody body) {
+        this.receiver = receiver;
+        this.body = body;
+    }
+
+    public User getReceiver() {
+        return receiver;
+    }
+
+    public MessageBody getBody() {
+        return body;
+    }
+
+    /**
+     * @return A standalone message for transports that cannot write a shared body.
+     */
+    public Message toMessage() {
+        return body.getMessage().withReceiver(receiver);
+    }
+}
@@ -0,0 +1,196 @@
+package Shared;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking transport that speaks the length-prefixed frame format described in {@link Protocol}.
+ * Sending is safe from several threads; receiving is meant for a single reader thread. A frame is
+ * read into a buffer that grows as its bytes arrive, so a peer cannot make the reader allocate more
+ * than it actually sent.
+ */
+public class FramedTransport implements Transport {
+    private static final byte[] EMPTY = new byte[0];
+    private static final int INITIAL_READ_BUFFER = 4 * 1024;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Codec codec;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private volatile int maxFrameLength = Protocol.MAX_FRAME_LENGTH;
+    private long receiveNanos = -1;
+    private long encodeNanos = -1;
+    private long writeNanos = -1;
+    private long receivedBytes = -1;
+    private long sentBytes = -1;
+
+    public FramedTransport(InputStream in, OutputStream out, Codec codec) {
+        this.in = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.codec = codec;
+    }
+
+    /**
+     * Client side of the handshake. Sends the hello and waits for the codec picked by the server.
+     *
+     * @param socket    A freshly connected socket.
+     * @param preferred The id of the codec the client would like to use.
+     * @return A transport using the negotiated codec.
+     */
+    public static FramedTransport connect(Socket socket, byte preferred) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(Protocol.hello(preferred));
+        out.flush();
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        int accepted = in.read();
+        if (accepted < 0) {
+            throw new EOFException("Server closed the connection during the handshake.");
+        }
+        Codec codec = Protocol.codecFor((byte) accepted);
+        if (codec == null) {
+            throw new StreamCorruptedException("Server picked unknown codec " + accepted + ".");
+        }
+        return new FramedTransport(in, out, codec);
+    }
+
+    /**
+     * Server side of the handshake. Reads the hello and answers with the codec to use.
+     *
+     * @param in  The input stream of the socket, positioned at the hello.
+     * @param out The output stream of the socket.
+     * @return A transport using the negotiated codec, accepting frames of up to
+     *         {@link Protocol#MAX_LOGIN_FRAME_LENGTH} until {@link #setMaxFrameLength} raises the limit.
+     */
+    public static FramedTransport accept(InputStream in, OutputStream out) throws IOException {
+        byte[] hello = new byte[Protocol.HELLO_LENGTH];
+        new DataInputStream(in).readFully(hello);
+        byte accepted = Protocol.negotiate(hello);
+        out.write(accepted);
+        out.flush();
+        FramedTransport transport = new FramedTransport(in, out, Protocol.serverCodecFor(accepted));
+        transport.setMaxFrameLength(Protocol.MAX_LOGIN_FRAME_LENGTH);
+        return transport;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @param maxFrameLength The largest frame {@link #receive()} accepts from now on.
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = Math.min(maxFrameLength, Protocol.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Writes an object as one frame. An {@link Envelope} is written as its encoded receiver followed by the
+     * shared body, which is encoded once no matter how many connections it is sent to.
+     */
+    @Override
+    public void send(Object obj) throws IOException {
+        long started = System.nanoTime();
+        byte[] header;
+        byte[] body;
+        if (obj instanceof Envelope) {
+            Envelope envelope = (Envelope) obj;
+            header = codec.encodeEnvelope(envelope.getReceiver());
+            body = envelope.getBody().encoded(codec);
+        } else {
+            header = codec.encode(obj);
+            body = EMPTY;
+        }
+        long encoded = System.nanoTime();
+        sendLock.lock();
+        try {
+            long writing = System.nanoTime();
+            out.writeInt(header.length + body.length);
+            out.write(header);
+            out.write(body);
+            out.flush();
+            encodeNanos = encoded - started;
+            sentBytes = Protocol.FRAME_HEADER_LENGTH + header.length + body.length;
+            writeNanos = System.nanoTime() - writing;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public Object receive() throws IOException {
+        int length = in.readInt();
+        long started = System.nanoTime();
+        if (length < 0 || length > maxFrameLength) {
+            throw new StreamCorruptedException("Invalid frame length " + length + ".");
+        }
+        byte[] payload = readPayload(length);
+        Object obj = codec.decode(payload, 0, length);
+        receiveNanos = System.nanoTime() - started;
+        receivedBytes = Protocol.FRAME_HEADER_LENGTH + length;
+        return obj;
+    }
+
+    /**
+     * Reads a payload into a buffer that starts small and doubles as the bytes arrive.
+     */
+    private byte[] readPayload(int length) throws IOException {
+        byte[] payload = new byte[Math.min(length, INITIAL_READ_BUFFER)];
+        int read = 0;
+        while (read < length) {
+            if (read == payload.length) {
+                payload = Arrays.copyOf(payload, (int) Math.min(length, payload.length * 2L));
+            }
+            int count = in.read(payload, read, payload.length - read);
+            if (count < 0) {
+                throw new EOFException("Connection closed in the middle of a frame.");
+            }
+            read += count;
+        }
+        return payload;
+    }
+
+    /**
+     * Measured from the moment the frame length has been read.
+     */
+    @Override
+    public long getReceiveNanos() {
+        return receiveNanos;
+    }
+
+    /**
+     * Only meaningful to the thread that sent last, such as the single writer thread of a server connection.
+     */
+    @Override
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    /**
+     * Only meaningful to the thread that sent last. Waiting for other senders is not included.
+     */
+    @Override
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    @Override
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * Only meaningful to the thread that sent last.
+     */
+    @Override
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+        out.close();
+    }
+}
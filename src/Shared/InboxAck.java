@@ -0,0 +1,20 @@
+package Shared;
+
+import java.io.Serializable;
+
+/**
+ * Confirms that every message of the {@link InboxBatch} with the given cursor has been received.
+ */
+public class InboxAck implements Serializable {
+    private static final long serialVersionUID = 5401162848125684312L;
+
+    long cursor;
+
+    public InboxAck(long cursor) {
+        this.cursor = cursor;
+    }
+
+    public long getCursor() {
+        return cursor;
+    }
+}
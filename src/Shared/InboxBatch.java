@@ -0,0 +1,30 @@
+package Shared;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A slice of the messages that were saved while the receiver was offline, oldest first. The client
+ * answers every batch with an {@link InboxAck} carrying the batch's cursor; only then does the server
+ * forget the messages and send the next batch, so a drain cut short by a disconnect resumes on the
+ * next login.
+ */
+public class InboxBatch implements Serializable {
+    private static final long serialVersionUID = 7668671299607753007L;
+
+    List<Message> messages;
+    long cursor;
+
+    public InboxBatch(List<Message> messages, long cursor) {
+        this.messages = messages;
+        this.cursor = cursor;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public long getCursor() {
+        return cursor;
+    }
+}
@@ -1,19 +1,33 @@
 package Shared;
 
-import javax.swing.*;
 import java.io.Serializable;
 import java.util.List;
 
+/**
+ * A chat message. Attachments travel as the {@link ContentHash} of a {@link Blob} that is uploaded
+ * and fetched separately; the image itself is only kept locally, as PNG bytes, and never sent along.
+ *
+ * The serialVersionUID is that of the first version, so messages it serialized still read; their
+ * attached image is skipped, since it is no longer a serialized field.
+ */
 public class Message implements Serializable {
+    private static final long serialVersionUID = -1856134764137317791L;
+
     String content;
-    ImageIcon attachment;
+    transient byte[] attachment;
+    String attachmentHash;
     User sender;
     User receiver;
     List<User> groupOfReceivers;
     boolean userIsLeaving;
 
 
-    public Message(String content, ImageIcon attachment, User sender){
+    /**
+     * @param content    The text of the message.
+     * @param attachment The attached image as PNG bytes, may be null.
+     * @param sender     The user who sends the message.
+     */
+    public Message(String content, byte[] attachment, User sender){
         this.content = content;
         this.attachment = attachment;
         this.sender = sender;
@@ -23,10 +37,22 @@ public class Message implements Serializable {
         return content;
     }
 
-    public ImageIcon getAttachment() {
+    public byte[] getAttachment() {
         return attachment;
     }
 
+    public void setAttachment(byte[] attachment) {
+        this.attachment = attachment;
+    }
+
+    public String getAttachmentHash() {
+        return attachmentHash;
+    }
+
+    public void setAttachmentHash(String attachmentHash) {
+        this.attachmentHash = attachmentHash;
+    }
+
     public User getSender() {
         return sender;
     }
@@ -46,4 +72,17 @@ public class Message implements Serializable {
     public void setReceiver(User receiver) {
         this.receiver = receiver;
     }
+
+    /**
+     * @param receiver The receiver of the copy.
+     * @return A shallow copy of this message addressed to another receiver.
+     */
+    public Message withReceiver(User receiver) {
+        Message copy = new Message(content, attachment, sender);
+        copy.attachmentHash = attachmentHash;
+        copy.receiver = receiver;
+        copy.groupOfReceivers = groupOfReceivers;
+        copy.userIsLeaving = userIsLeaving;
+        return copy;
+    }
 }
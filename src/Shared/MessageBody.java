@@ -0,0 +1,39 @@
+package Shared;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The receiver-independent part of a group message. It is encoded at most once per codec and the
+ * resulting bytes are shared, unchanged, by the {@link Envelope}s of every receiver.
+ */
+public final class MessageBody {
+    private final Message message;
+    private final AtomicReferenceArray<byte[]> encoded = new AtomicReferenceArray<>(Byte.MAX_VALUE + 1);
+
+    /**
+     * @param message A message without receiver or group that is not modified afterwards.
+     */
+    public MessageBody(Message message) {
+        this.message = message;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * @param codec The codec of the connection the body is written to.
+     * @return The encoded body. Callers must not modify the array.
+     */
+    public byte[] encoded(Codec codec) throws IOException {
+        byte[] bytes = encoded.get(codec.id());
+        if (bytes == null) {
+            bytes = codec.encodeBody(message);
+            if (!encoded.compareAndSet(codec.id(), null, bytes)) {
+                bytes = encoded.get(codec.id());
+            }
+        }
+        return bytes;
+    }
+}
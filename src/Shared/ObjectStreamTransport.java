@@ -0,0 +1,62 @@
+package Shared;
+
+import java.io.*;
+
+/**
+ * Transport for legacy clients that talk plain ObjectInput/OutputStreams without a handshake. The
+ * objects are those of the current version, so clients from before the handshake cannot use it.
+ *
+ * An object stream remembers every object it has written so it can refer back to it, which keeps
+ * everything ever sent on a long-lived connection reachable. The stream is therefore reset after a
+ * configurable number of objects, which also clears the table of the peer's input stream.
+ */
+public class ObjectStreamTransport implements Transport {
+    private final ObjectOutputStream oos;
+    private final ObjectInputStream ois;
+    private final int resetInterval;
+    private int writtenSinceReset;
+
+    /**
+     * Creates the object streams. The output stream is created first so its header is on the wire
+     * before we block reading the header of the peer.
+     *
+     * @param in            The raw input stream of the socket.
+     * @param out           The raw output stream of the socket.
+     * @param resetInterval The number of objects written between stream resets; 1 resets after every
+     *                      object and 0 never resets, which is only safe for short-lived connections.
+     */
+    public ObjectStreamTransport(InputStream in, OutputStream out, int resetInterval) throws IOException {
+        oos = new ObjectOutputStream(out);
+        oos.flush();
+        ois = new ObjectInputStream(in);
+        this.resetInterval = resetInterval;
+    }
+
+    /**
+     * Writes and flushes an object, resetting the stream when the interval is reached. Envelopes are
+     * turned into standalone messages, since an object stream cannot share pre-encoded bodies.
+     */
+    @Override
+    public void send(Object obj) throws IOException {
+        if (obj instanceof Envelope) {
+            obj = ((Envelope) obj).toMessage();
+        }
+        oos.writeObject(obj);
+        if (resetInterval > 0 && ++writtenSinceReset >= resetInterval) {
+            oos.reset();
+            writtenSinceReset = 0;
+        }
+        oos.flush();
+    }
+
+    @Override
+    public Object receive() throws IOException, ClassNotFoundException {
+        return ois.readObject();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ois.close();
+        oos.close();
+    }
+}
@@ -3,14 +3,34 @@ package Shared;
 import java.io.Serializable;
 import java.util.List;
 
+/**
+ * Full snapshot of the online users, sent when a client logs in or asks for a resync. The version
+ * is the presence sequence number the snapshot corresponds to; later {@link PresenceUpdate}s
+ * continue from it.
+ *
+ * The serialVersionUID is that of the first version, so peers that talk plain object streams still
+ * read the list; they skip the version, and lists they send read with version zero.
+ */
 public class OnlineUsersList implements Serializable {
+    private static final long serialVersionUID = -9218697660494081122L;
+
     List<User> onlineUsers;
+    long version;
 
     public OnlineUsersList(List<User> onlineUsers) {
+        this(onlineUsers, 0);
+    }
+
+    public OnlineUsersList(List<User> onlineUsers, long version) {
         this.onlineUsers = onlineUsers;
+        this.version = version;
     }
 
     public List<User> getOnlineUsers() {
         return onlineUsers;
     }
+
+    public long getVersion() {
+        return version;
+    }
 }
@@ -0,0 +1,11 @@
+package Shared;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a client that missed a presence update; the server answers with a full
+ * {@link OnlineUsersList}.
+ */
+public class PresenceResync implements Serializable {
+    private static final long serialVersionUID = -1537941099341030618L;
+}
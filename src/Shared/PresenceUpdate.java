@@ -0,0 +1,34 @@
+package Shared;
+
+import java.io.Serializable;
+
+/**
+ * A single user joining or leaving. Every update carries the next presence sequence number, so a
+ * client that sees a gap knows it missed one and asks for a fresh snapshot with
+ * {@link PresenceResync}.
+ */
+public class PresenceUpdate implements Serializable {
+    private static final long serialVersionUID = -9148043157425584650L;
+
+    long version;
+    User user;
+    boolean joined;
+
+    public PresenceUpdate(long version, User user, boolean joined) {
+        this.version = version;
+        this.user = user;
+        this.joined = joined;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public boolean isJoined() {
+        return joined;
+    }
+}
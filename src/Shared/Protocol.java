@@ -0,0 +1,107 @@
+package Shared;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+/**
+ * Wire constants and the connect-time handshake shared by the client and the server engines.
+ *
+ * A framed connection starts with a hello from the client: the magic bytes, the protocol version
+ * and the id of the codec it would like to use. The server answers with a single byte naming the
+ * codec it picked. From then on every object travels as a frame, a four byte big-endian length
+ * followed by the encoded payload. A connection that starts with the Java serialization stream
+ * header instead of the magic is a legacy client and is served with plain object streams. Such a
+ * client still has to use the current shared classes; clients from before the handshake are not served.
+ */
+public final class Protocol {
+    public static final byte[] MAGIC = {'C', 'H', 'A', 'T'};
+    public static final byte VERSION = 1;
+    public static final int HELLO_LENGTH = MAGIC.length + 2;
+    public static final int FRAME_HEADER_LENGTH = 4;
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    /** The largest frame a server accepts before the login message, enough for an avatar. */
+    public static final int MAX_LOGIN_FRAME_LENGTH = 64 * 1024;
+
+    public static final byte CODEC_SERIALIZATION = 0;
+    public static final byte CODEC_BINARY = 1;
+
+    private static final int LEGACY_STREAM_MAGIC = 0xACED;
+
+    private Protocol() {
+    }
+
+    /**
+     * Builds the hello a client sends right after connecting.
+     *
+     * @param codecId The codec the client would like to use.
+     * @return The hello bytes.
+     */
+    public static byte[] hello(byte codecId) {
+        byte[] hello = Arrays.copyOf(MAGIC, HELLO_LENGTH);
+        hello[MAGIC.length] = VERSION;
+        hello[MAGIC.length + 1] = codecId;
+        return hello;
+    }
+
+    /**
+     * Validates a hello and picks the codec the connection will use. Unknown codecs fall back to
+     * Java serialization, which every peer understands.
+     *
+     * @param hello The {@link #HELLO_LENGTH} bytes received from the client.
+     * @return The id of the codec to answer the client with.
+     */
+    public static byte negotiate(byte[] hello) throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (hello[i] != MAGIC[i]) {
+                throw new StreamCorruptedException("Not a chat protocol hello.");
+            }
+        }
+        if (hello[MAGIC.length] != VERSION) {
+            throw new StreamCorruptedException("Unsupported protocol version " + hello[MAGIC.length] + ".");
+        }
+        byte requested = hello[MAGIC.length + 1];
+        return codecFor(requested) != null ? requested : CODEC_SERIALIZATION;
+    }
+
+    /**
+     * @param codecId A codec id from the handshake.
+     * @return A codec for the id or null if it is not supported.
+     */
+    public static Codec codecFor(byte codecId) {
+        switch (codecId) {
+            case CODEC_SERIALIZATION:
+                return new SerializationCodec();
+            case CODEC_BINARY:
+                return new BinaryCodec();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param codecId A codec id the server picked in the handshake.
+     * @return A codec for the id that refuses what only a server sends, or null if it is not supported.
+     */
+    public static Codec serverCodecFor(byte codecId) {
+        switch (codecId) {
+            case CODEC_SERIALIZATION:
+                return new SerializationCodec(true);
+            case CODEC_BINARY:
+                return new BinaryCodec(true);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Checks whether the first two bytes of a connection are a Java serialization stream header.
+     *
+     * @param first  The first byte read from the connection.
+     * @param second The second byte read from the connection.
+     * @return True if the peer is a legacy object stream client.
+     */
+    public static boolean isLegacyStream(int first, int second) {
+        return ((first & 0xFF) << 8 | (second & 0xFF)) == LEGACY_STREAM_MAGIC;
+    }
+}
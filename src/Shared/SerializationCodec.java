@@ -0,0 +1,87 @@
+package Shared;
+
+import java.io.*;
+
+/**
+ * Codec backed by plain Java serialization. Every payload is written with a fresh
+ * ObjectOutputStream so frames never share handles and can be decoded independently.
+ *
+ * An addressed payload starts with a zero byte and the receiver's name in modified UTF-8, followed
+ * by the serialized message. A plain payload always starts with the serialization stream magic.
+ *
+ * Arrays and object graphs are limited to what fits in a frame, so a payload cannot make the reader
+ * allocate more than the frame could hold. The server's instance also refuses the objects only a
+ * server sends.
+ */
+public class SerializationCodec implements Codec {
+    private static final byte ADDRESSED = 0;
+    private static final ObjectInputFilter LIMITS = ObjectInputFilter.Config.createFilter(
+            "maxarray=" + Protocol.MAX_FRAME_LENGTH + ";maxdepth=32;maxrefs=" + Protocol.MAX_FRAME_LENGTH / 4);
+
+    private final boolean fromClients;
+
+    public SerializationCodec() {
+        this(false);
+    }
+
+    /**
+     * @param fromClients True for a server's codec, which refuses addressed payloads, online user lists,
+     *                    presence updates and inbox batches, since only a server sends those.
+     */
+    public SerializationCodec(boolean fromClients) {
+        this.fromClients = fromClients;
+    }
+
+    @Override
+    public byte id() {
+        return Protocol.CODEC_SERIALIZATION;
+    }
+
+    @Override
+    public byte[] encode(Object obj) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(obj);
+        }
+        return bos.toByteArray();
+    }
+
+    @Override
+    public byte[] encodeBody(Message message) throws IOException {
+        return encode(message);
+    }
+
+    @Override
+    public byte[] encodeEnvelope(User receiver) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(ADDRESSED);
+        out.writeUTF(receiver.getUserName());
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] buffer, int offset, int length) throws IOException {
+        if (length > 0 && buffer[offset] == ADDRESSED) {
+            if (fromClients) {
+                throw new StreamCorruptedException("Addressed payloads are only sent by servers.");
+            }
+            ByteArrayInputStream bis = new ByteArrayInputStream(buffer, offset + 1, length - 1);
+            String receiver = new DataInputStream(bis).readUTF();
+            int bodyOffset = offset + length - bis.available();
+            Message message = (Message) decode(buffer, bodyOffset, offset + length - bodyOffset);
+            message.setReceiver(new User(receiver, null));
+            return message;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buffer, offset, length))) {
+            ois.setObjectInputFilter(LIMITS);
+            Object obj = ois.readObject();
+            if (fromClients && (obj instanceof OnlineUsersList || obj instanceof PresenceUpdate || obj instanceof InboxBatch)) {
+                throw new StreamCorruptedException(obj.getClass().getSimpleName() + " is only sent by servers.");
+            }
+            return obj;
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        }
+    }
+}
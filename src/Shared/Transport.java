@@ -0,0 +1,62 @@
+package Shared;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A blocking, bidirectional object pipe over one socket.
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Writes an object and flushes it to the peer.
+     *
+     * @param obj The object to send.
+     */
+    void send(Object obj) throws IOException;
+
+    /**
+     * Blocks until the next object arrives from the peer.
+     *
+     * @return The received object.
+     */
+    Object receive() throws IOException, ClassNotFoundException;
+
+    /**
+     * @return The nanoseconds the last {@link #receive()} spent after the first bytes of the object had
+     *         arrived, reading the rest and decoding it, or -1 if the transport does not measure it.
+     */
+    default long getReceiveNanos() {
+        return -1;
+    }
+
+    /**
+     * @return The nanoseconds the last {@link #send(Object)} spent encoding the object, or -1 if the
+     *         transport does not measure it.
+     */
+    default long getEncodeNanos() {
+        return -1;
+    }
+
+    /**
+     * @return The nanoseconds the last {@link #send(Object)} spent writing and flushing the encoded
+     *         object, or -1 if the transport does not measure it.
+     */
+    default long getWriteNanos() {
+        return -1;
+    }
+
+    /**
+     * @return The bytes the last {@link #receive()} read, or -1 if the transport does not count them.
+     */
+    default long getReceivedBytes() {
+        return -1;
+    }
+
+    /**
+     * @return The bytes the last {@link #send(Object)} wrote, or -1 if the transport does not count them.
+     */
+    default long getSentBytes() {
+        return -1;
+    }
+}
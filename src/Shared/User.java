@@ -1,13 +1,27 @@
 package Shared;
 
-import javax.swing.*;
 import java.io.Serializable;
 
+/**
+ * A chat user. The profile picture is identified by the {@link ContentHash} of its PNG blob, which is all
+ * that travels with the user; the picture itself is fetched once per hash and only kept locally, as PNG
+ * bytes, so the model does not depend on Swing. The client converts them for the UI.
+ *
+ * The serialVersionUID is that of the first version, so contact lists saved by it still load; the
+ * picture they hold is skipped, since it is no longer a serialized field.
+ */
 public class User implements Serializable {
-    private String userName;
-    private ImageIcon profilePicture;
+    private static final long serialVersionUID = 4933855560033309134L;
 
-    public User(String username, ImageIcon profilePicture) {
+    private String userName;
+    private transient byte[] profilePicture;
+    private String avatarHash;
+
+    /**
+     * @param username       The unique name of the user.
+     * @param profilePicture The profile picture as PNG bytes, may be null.
+     */
+    public User(String username, byte[] profilePicture) {
         this.userName = username;
         this.profilePicture = profilePicture;
     }
@@ -26,9 +40,20 @@ public class User implements Serializable {
         return userName;
     }
 
-    public ImageIcon getProfilePicture() {
+    public byte[] getProfilePicture() {
         return profilePicture;
     }
 
-}
+    public void setProfilePicture(byte[] profilePicture) {
+        this.profilePicture = profilePicture;
+    }
 
+    public String getAvatarHash() {
+        return avatarHash;
+    }
+
+    public void setAvatarHash(String avatarHash) {
+        this.avatarHash = avatarHash;
+    }
+
+}
@@ -0,0 +1,346 @@
+package Tools;
+
+import Server.Controller.ServerConfig;
+import Shared.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Compares the server engines under many mostly idle connections. Starts MainServer with the requested
+ * engine in a JVM of its own, ramps up to each connection count and reports the server's heap after a
+ * full GC, resident memory and thread count, plus the delivery latency of private messages exchanged
+ * by a few probe clients while every other connection sits idle.
+ *
+ * Usage:
+ * {@code java Tools.EngineBenchmark --connections=1000,5000,10000 -- --engine=nio}
+ *
+ * Arguments after {@code --} are passed to the server, {@code --jvm=} options to its JVM. The server
+ * runs in an empty working directory, and its heap is read with {@code jcmd}, so the numbers are the
+ * server's alone and the clients' sockets do not count against the server's file limit.
+ */
+public class EngineBenchmark {
+    private static final Pattern HEAP_USED = Pattern.compile("total \\d+K, used (\\d+)K");
+
+    private final String classpath;
+    private final List<String> jvmOptions;
+    private final List<String> serverArgs;
+    private final ServerConfig config;
+    private final int probes;
+    private final int messagesPerProbe;
+    private final IdleClients idleClients = new IdleClients();
+    private final List<Transport> senders = new ArrayList<>();
+    private final List<User> senderUsers = new ArrayList<>();
+    private final List<User> receivers = new ArrayList<>();
+    private final Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+    private Process server;
+
+    public EngineBenchmark(String classpath, List<String> jvmOptions, List<String> serverArgs, int probes, int messagesPerProbe) {
+        this.classpath = classpath;
+        this.jvmOptions = jvmOptions;
+        this.serverArgs = serverArgs;
+        this.config = ServerConfig.fromArgs(serverArgs.toArray(new String[0]));
+        this.probes = probes;
+        this.messagesPerProbe = messagesPerProbe;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String classpath = System.getProperty("java.class.path");
+        List<String> jvmOptions = new ArrayList<>();
+        List<String> serverArgs = new ArrayList<>();
+        int[] connectionCounts = {1000, 5000, 10000};
+        int probes = 4;
+        int messages = 500;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--")) {
+                serverArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            } else if (arg.startsWith("--connections=")) {
+                connectionCounts = Arrays.stream(arg.substring(14).split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("--probes=")) {
+                probes = Integer.parseInt(arg.substring(9));
+            } else if (arg.startsWith("--messages=")) {
+                messages = Integer.parseInt(arg.substring(11));
+            } else if (arg.startsWith("--classpath=")) {
+                classpath = arg.substring(12);
+            } else if (arg.startsWith("--jvm=")) {
+                jvmOptions.add(arg.substring(6));
+            } else {
+                serverArgs.add(arg);
+            }
+        }
+        new EngineBenchmark(Paths.get(classpath).toAbsolutePath().toString(), jvmOptions, serverArgs, probes, messages)
+                .run(connectionCounts);
+        System.exit(0);
+    }
+
+    /**
+     * Starts the server and measures each connection count in increasing order.
+     *
+     * @param connectionCounts The total number of connections to measure at.
+     */
+    public void run(int[] connectionCounts) throws Exception {
+        Path directory = Files.createTempDirectory("engine-benchmark");
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-Djava.awt.headless=true");
+        command.add("-cp");
+        command.add(classpath);
+        command.add("MainServer");
+        command.addAll(serverArgs);
+        server = new ProcessBuilder(command).directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("server.out").toFile())
+                .start();
+        try {
+            LocalServer.await(config.getPort(), server, 60000);
+            idleClients.start();
+            openProbes();
+            // Warm up the routing and probe code so the first count is not measured in the interpreter.
+            measureLatency();
+
+            System.out.println("engine,connections,heap_mb,rss_mb,threads,p50_us,p99_us,max_us");
+            for (int target : connectionCounts) {
+                int idleTarget = Math.max(0, target - 2 * probes);
+                while (idleClients.size() < idleTarget) {
+                    idleClients.open("idle-" + idleClients.size());
+                }
+                TimeUnit.SECONDS.sleep(2);
+                long[] sample = measureLatency();
+                long heap = serverHeap();
+                System.out.printf("%s,%d,%.1f,%.1f,%d,%d,%d,%d%n",
+                        config.getEngine().name().toLowerCase(), target,
+                        heap / 1048576.0, serverStatus("VmRSS:") * 1024 / 1048576.0, serverStatus("Threads:"),
+                        percentile(sample, 0.50) / 1000, percentile(sample, 0.99) / 1000,
+                        sample.length == 0 ? 0 : sample[sample.length - 1] / 1000);
+            }
+        } finally {
+            server.destroy();
+            server.waitFor(10, TimeUnit.SECONDS);
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Runs a full GC in the server and reads how much heap is still in use.
+     *
+     * @return The server's used heap in bytes, or 0 if jcmd could not tell.
+     */
+    private long serverHeap() throws IOException, InterruptedException {
+        jcmd("GC.run");
+        Matcher used = HEAP_USED.matcher(jcmd("GC.heap_info"));
+        long kilobytes = 0;
+        while (used.find()) {
+            // One line per generation, or one for the whole heap with collectors that are not generational.
+            kilobytes += Long.parseLong(used.group(1));
+        }
+        return kilobytes * 1024;
+    }
+
+    private String jcmd(String command) throws IOException, InterruptedException {
+        Process jcmd = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "jcmd").toString(),
+                Long.toString(server.pid()), command).redirectErrorStream(true).start();
+        String output = new String(jcmd.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        jcmd.waitFor();
+        return output;
+    }
+
+    /**
+     * @param field A field of /proc/[pid]/status such as {@code VmRSS:} or {@code Threads:}.
+     * @return The field's number for the server process, or 0 where /proc is not available.
+     */
+    private long serverStatus(String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(server.pid()), "status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not on Linux.
+        }
+        return 0;
+    }
+
+    /**
+     * Logs in the probe pairs. Each receiver gets a reader thread that timestamps arriving messages.
+     */
+    private void openProbes() throws IOException {
+        for (int i = 0; i < probes; i++) {
+            User receiver = new User("probe-receiver-" + i, null);
+            Transport in = login(receiver);
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        Object obj = in.receive();
+                        if (obj instanceof Message) {
+                            long sentAt = Long.parseLong(((Message) obj).getContent());
+                            latencies.add(System.nanoTime() - sentAt);
+                        }
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    // Benchmark is over.
+                }
+            }, "probe-reader-" + i);
+            reader.setDaemon(true);
+            reader.start();
+            receivers.add(receiver);
+
+            User sender = new User("probe-sender-" + i, null);
+            Transport out = login(sender);
+            Thread drain = new Thread(() -> {
+                try {
+                    while (true) {
+                        out.receive();
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    // Benchmark is over.
+                }
+            }, "probe-drain-" + i);
+            drain.setDaemon(true);
+            drain.start();
+            senders.add(out);
+            senderUsers.add(sender);
+        }
+    }
+
+    private Transport login(User user) throws IOException {
+        Socket socket = new Socket(LocalServer.HOST, config.getPort());
+        socket.setTcpNoDelay(true);
+        Transport transport = FramedTransport.connect(socket, Protocol.CODEC_SERIALIZATION);
+        transport.send(new Message("", null, user));
+        return transport;
+    }
+
+    /**
+     * Sends messages from every probe sender to its receiver at a steady pace.
+     *
+     * @return The sorted delivery latencies in nanoseconds.
+     */
+    private long[] measureLatency() throws Exception {
+        latencies.clear();
+        int expected = probes * messagesPerProbe;
+        for (int m = 0; m < messagesPerProbe; m++) {
+            for (int i = 0; i < probes; i++) {
+                Message message = new Message(Long.toString(System.nanoTime()), null, senderUsers.get(i));
+                message.setReceiver(receivers.get(i));
+                senders.get(i).send(message);
+            }
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (latencies.size() < expected && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        long[] sample = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        if (sample.length < expected) {
+            System.out.println("Only " + sample.length + " of " + expected + " probe messages arrived.");
+        }
+        return sample;
+    }
+
+    static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted((a, b) -> b.compareTo(a))::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Logged in connections that only drain whatever the server sends them, all served by one
+     * selector thread so the benchmark itself does not need a thread per connection.
+     */
+    private class IdleClients implements Runnable {
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+        private final Codec codec = new SerializationCodec();
+        private Selector selector;
+        private int size;
+
+        void start() throws IOException {
+            selector = Selector.open();
+            Thread thread = new Thread(this, "idle-clients");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Connects, handshakes and logs in with blocking I/O, then hands the channel to the drain loop.
+         */
+        void open(String userName) throws IOException {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(LocalServer.HOST, config.getPort()));
+            channel.write(ByteBuffer.wrap(Protocol.hello(codec.id())));
+            ByteBuffer accepted = ByteBuffer.allocate(1);
+            while (accepted.hasRemaining()) {
+                if (channel.read(accepted) < 0) {
+                    throw new IOException("Server closed the connection during the handshake.");
+                }
+            }
+            byte[] login = codec.encode(new Message("", null, new User(userName, null)));
+            ByteBuffer frame = ByteBuffer.allocate(Protocol.FRAME_HEADER_LENGTH + login.length);
+            frame.putInt(login.length).put(login).flip();
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            channel.configureBlocking(false);
+            pending.add(channel);
+            selector.wakeup();
+            size++;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        sink.clear();
+                        if (((SocketChannel) key.channel()).read(sink) < 0) {
+                            key.cancel();
+                            key.channel().close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package Tools;
+
+import Server.Controller.LatencyHistogram;
+import Server.Controller.ServerConfig;
+import Server.Controller.ServerManager;
+import Shared.Message;
+import Shared.Protocol;
+import Shared.User;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load test with many synthetic clients. Starts a ServerManager in this JVM, logs in the clients, which
+ * speak the real protocol without any Swing, and drives a mix of private, group and offline messages at
+ * a fixed rate while users keep logging out and back in. Reports throughput and end-to-end delivery
+ * latency per interval and for the whole run after the warmup.
+ *
+ * Usage:
+ * {@code java -Djava.awt.headless=true Tools.LoadGenerator --clients=2000 --rate=1000 --mix=private:70,group:20,offline:10 --churn=5}
+ *
+ * Messages are sent on a fixed schedule and stamped with the time they were due, not the time they went
+ * out, so a server that makes the generator fall behind shows up in the latency instead of hiding in a
+ * lower rate. Offline messages go to users who are logged out; they are delivered in batches when the
+ * churn logs those users back in. Arguments the generator does not know are passed to the server.
+ */
+public class LoadGenerator {
+
+    private enum Kind {PRIVATE, GROUP, OFFLINE}
+
+    private final ServerConfig config;
+    private final int clients;
+    private final int offlineUsers;
+    private final int rate;
+    private final int[] mix;
+    private final int groupSize;
+    private final double churn;
+    private final int padding;
+    private final long warmupSeconds;
+    private final long seconds;
+    private final long reportSeconds;
+    private final byte codec;
+    private final int ioThreads;
+    private final Random random = new Random(42);
+    private final List<SyntheticClients.Client> online = new ArrayList<>();
+    private final List<User> offline = new ArrayList<>();
+    private final List<User> everyone = new ArrayList<>();
+    private final long[] sentByKind = new long[Kind.values().length];
+    private long sent;
+    private long logins;
+    private long logouts;
+
+    public LoadGenerator(ServerConfig config, int clients, int offlineUsers, int rate, int[] mix, int groupSize,
+                         double churn, int padding, long warmupSeconds, long seconds, long reportSeconds,
+                         byte codec, int ioThreads) {
+        this.config = config;
+        this.clients = clients;
+        this.offlineUsers = offlineUsers;
+        this.rate = rate;
+        this.mix = mix;
+        this.groupSize = groupSize;
+        this.churn = churn;
+        this.padding = padding;
+        this.warmupSeconds = warmupSeconds;
+        this.seconds = seconds;
+        this.reportSeconds = reportSeconds;
+        this.codec = codec;
+        this.ioThreads = ioThreads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> serverArgs = new ArrayList<>();
+        int clients = 1000;
+        int offlineUsers = -1;
+        int rate = 500;
+        int[] mix = {70, 20, 10};
+        int groupSize = 8;
+        double churn = 2;
+        int padding = 64;
+        long warmupSeconds = 10;
+        long seconds = 60;
+        long reportSeconds = 5;
+        byte codec = Protocol.CODEC_BINARY;
+        int ioThreads = 2;
+        for (String arg : args) {
+            if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--offline-users=")) {
+                offlineUsers = Integer.parseInt(arg.substring(16));
+            } else if (arg.startsWith("--rate=")) {
+                rate = Integer.parseInt(arg.substring(7));
+            } else if (arg.startsWith("--mix=")) {
+                mix = parseMix(arg.substring(6));
+            } else if (arg.startsWith("--group-size=")) {
+                groupSize = Integer.parseInt(arg.substring(13));
+            } else if (arg.startsWith("--churn=")) {
+                churn = Double.parseDouble(arg.substring(8));
+            } else if (arg.startsWith("--payload=")) {
+                padding = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--warmup-seconds=")) {
+                warmupSeconds = Long.parseLong(arg.substring(17));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Long.parseLong(arg.substring(10));
+            } else if (arg.startsWith("--report-seconds=")) {
+                reportSeconds = Long.parseLong(arg.substring(17));
+            } else if (arg.startsWith("--codec=")) {
+                codec = arg.substring(8).equalsIgnoreCase("serialization") ? Protocol.CODEC_SERIALIZATION : Protocol.CODEC_BINARY;
+            } else if (arg.startsWith("--client-io-threads=")) {
+                ioThreads = Integer.parseInt(arg.substring(20));
+            } else {
+                serverArgs.add(arg);
+            }
+        }
+        if (offlineUsers < 0) {
+            offlineUsers = clients / 10;
+        }
+        ServerConfig config = ServerConfig.fromArgs(serverArgs.toArray(new String[0]));
+        new LoadGenerator(config, clients, offlineUsers, rate, mix, groupSize, churn, padding,
+                warmupSeconds, seconds, reportSeconds, codec, ioThreads).run();
+        System.exit(0);
+    }
+
+    /**
+     * Parses weights such as {@code private:70,group:20,offline:10}; kinds left out get no traffic.
+     */
+    static int[] parseMix(String value) {
+        int[] weights = new int[Kind.values().length];
+        for (String part : value.split(",")) {
+            String[] pair = part.split(":");
+            weights[Kind.valueOf(pair[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(pair[1].trim());
+        }
+        return weights;
+    }
+
+    /**
+     * Starts the server, logs in the clients and drives traffic until the run is over.
+     */
+    public void run() throws Exception {
+        Thread serverThread = new Thread(() -> new ServerManager(config), "load-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        LocalServer.await(config.getPort(), 10000);
+
+        SyntheticClients synthetic = new SyntheticClients(LocalServer.HOST, config.getPort(), codec, ioThreads);
+        for (int i = 0; i < clients; i++) {
+            User user = new User("load-" + i, null);
+            everyone.add(user);
+            if (i < clients - offlineUsers) {
+                online.add(synthetic.login(user.getUserName()));
+            } else {
+                offline.add(user);
+            }
+        }
+        System.out.println("Logged in " + online.size() + " clients, " + offline.size() + " users offline.");
+
+        System.out.println("elapsed_s,online,sent,delivered,inbox_delivered,sent_per_s,delivered_per_s,p50_us,p99_us,p999_us,max_us");
+        long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long churnPeriod = churn > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / churn) : 0;
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        long nextSend = start;
+        long nextChurn = churn > 0 ? start + churnPeriod : Long.MAX_VALUE;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(reportSeconds);
+        Interval interval = new Interval(synthetic, start);
+        Interval measured = null;
+        while (true) {
+            long now = System.nanoTime();
+            if (measured == null && now >= measureFrom) {
+                measured = new Interval(synthetic, now);
+            }
+            if (now >= end) {
+                break;
+            }
+            if (now >= nextReport) {
+                interval.report(synthetic, now, start);
+                interval = new Interval(synthetic, now);
+                nextReport += TimeUnit.SECONDS.toNanos(reportSeconds);
+            }
+            if (now >= nextChurn) {
+                churn(synthetic);
+                nextChurn += churnPeriod;
+            } else if (now >= nextSend) {
+                send(nextSend);
+                nextSend += period;
+            } else {
+                LockSupport.parkNanos(Math.min(nextSend, nextChurn) - now);
+            }
+        }
+        TimeUnit.SECONDS.sleep(1);
+        measured.summarize(synthetic, end);
+    }
+
+    /**
+     * Sends one message of a kind picked by the mix, from a random online client.
+     *
+     * @param due The time the message was due, which its latency is measured from.
+     */
+    private void send(long due) {
+        if (online.isEmpty()) {
+            return;
+        }
+        SyntheticClients.Client sender = online.get(random.nextInt(online.size()));
+        Message message = new Message(SyntheticClients.stamp(due, padding), null, sender.getUser());
+        Kind kind = pickKind();
+        if (kind == Kind.OFFLINE && offline.isEmpty()) {
+            kind = Kind.PRIVATE;
+        }
+        switch (kind) {
+            case PRIVATE:
+                message.setReceiver(pickOther(sender.getUser()));
+                break;
+            case GROUP:
+                List<User> group = new ArrayList<>(groupSize);
+                while (group.size() < Math.min(groupSize, everyone.size() - 1)) {
+                    User member = everyone.get(random.nextInt(everyone.size()));
+                    if (member != sender.getUser() && !group.contains(member)) {
+                        group.add(member);
+                    }
+                }
+                message.setGroupOfReceivers(group);
+                break;
+            case OFFLINE:
+                message.setReceiver(offline.get(random.nextInt(offline.size())));
+                break;
+        }
+        if (sender.send(message)) {
+            sent++;
+            sentByKind[kind.ordinal()]++;
+        }
+    }
+
+    private Kind pickKind() {
+        int total = 0;
+        for (int weight : mix) {
+            total += weight;
+        }
+        int pick = random.nextInt(Math.max(1, total));
+        for (Kind kind : Kind.values()) {
+            pick -= mix[kind.ordinal()];
+            if (pick < 0) {
+                return kind;
+            }
+        }
+        return Kind.PRIVATE;
+    }
+
+    /**
+     * @return A random online user other than the given one, or the user itself if nobody else is online.
+     */
+    private User pickOther(User user) {
+        for (int attempt = 0; attempt < 8; attempt++) {
+            User other = online.get(random.nextInt(online.size())).getUser();
+            if (other != user) {
+                return other;
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Logs a random online client out and a random offline user in, who then gets the messages saved
+     * for them.
+     */
+    private void churn(SyntheticClients synthetic) throws IOException {
+        if (online.size() > 1) {
+            SyntheticClients.Client leaving = removeRandom(online);
+            leaving.logout();
+            offline.add(leaving.getUser());
+            logouts++;
+        }
+        if (!offline.isEmpty()) {
+            User returning = removeRandom(offline);
+            online.add(synthetic.login(returning.getUserName()));
+            logins++;
+        }
+    }
+
+    private <T> T removeRandom(List<T> list) {
+        int index = random.nextInt(list.size());
+        T picked = list.get(index);
+        list.set(index, list.get(list.size() - 1));
+        list.remove(list.size() - 1);
+        return picked;
+    }
+
+    /**
+     * The counters at the start of a reporting interval, or of the measured part of the run.
+     */
+    private class Interval {
+        private final long startedAt;
+        private final long sentBefore;
+        private final long[] sentByKindBefore;
+        private final long loginsBefore;
+        private final long logoutsBefore;
+        private final long deliveredBefore;
+        private final long inboxBefore;
+        private final LatencyHistogram.Snapshot latencyBefore;
+
+        Interval(SyntheticClients synthetic, long now) {
+            startedAt = now;
+            sentBefore = sent;
+            sentByKindBefore = sentByKind.clone();
+            loginsBefore = logins;
+            logoutsBefore = logouts;
+            deliveredBefore = synthetic.getDelivered();
+            inboxBefore = synthetic.getInboxDelivered();
+            latencyBefore = synthetic.getLatency().snapshot();
+        }
+
+        void report(SyntheticClients synthetic, long now, long runStart) {
+            double elapsed = (now - startedAt) / 1e9;
+            long delivered = synthetic.getDelivered() - deliveredBefore;
+            LatencyHistogram.Snapshot latency = synthetic.getLatency().snapshot().since(latencyBefore);
+            System.out.printf("%d,%d,%d,%d,%d,%.0f,%.0f,%d,%d,%d,%d%n",
+                    TimeUnit.NANOSECONDS.toSeconds(now - runStart), online.size(), sent - sentBefore, delivered,
+                    synthetic.getInboxDelivered() - inboxBefore, (sent - sentBefore) / elapsed, delivered / elapsed,
+                    latency.valueAt(0.50) / 1000, latency.valueAt(0.99) / 1000, latency.valueAt(0.999) / 1000,
+                    latency.getMax() / 1000);
+        }
+
+        void summarize(SyntheticClients synthetic, long now) {
+            double elapsed = (now - startedAt) / 1e9;
+            long delivered = synthetic.getDelivered() - deliveredBefore;
+            LatencyHistogram.Snapshot latency = synthetic.getLatency().snapshot().since(latencyBefore);
+            System.out.println();
+            System.out.printf("Measured %.0f s after %d s of warmup with %d clients (%d offline at a time).%n",
+                    elapsed, warmupSeconds, clients, offlineUsers);
+            System.out.printf("Sent:      %d messages, %.0f/s (private %d, group %d, offline %d)%n",
+                    sent - sentBefore, (sent - sentBefore) / elapsed,
+                    sentByKind[Kind.PRIVATE.ordinal()] - sentByKindBefore[Kind.PRIVATE.ordinal()],
+                    sentByKind[Kind.GROUP.ordinal()] - sentByKindBefore[Kind.GROUP.ordinal()],
+                    sentByKind[Kind.OFFLINE.ordinal()] - sentByKindBefore[Kind.OFFLINE.ordinal()]);
+            System.out.printf("Delivered: %d live, %.0f/s; %d saved messages after %d logins and %d logouts; %d sends failed%n",
+                    delivered, delivered / elapsed, synthetic.getInboxDelivered() - inboxBefore,
+                    logins - loginsBefore, logouts - logoutsBefore, synthetic.getFailedSends());
+            System.out.printf("Latency:   p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us%n",
+                    latency.valueAt(0.50) / 1000, latency.valueAt(0.90) / 1000, latency.valueAt(0.99) / 1000,
+                    latency.valueAt(0.999) / 1000, latency.getMax() / 1000);
+        }
+    }
+}
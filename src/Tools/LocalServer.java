@@ -0,0 +1,53 @@
+package Tools;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the tools find the server they start, and how they wait for it to accept connections.
+ */
+public final class LocalServer {
+    /** The address every tool starts its server on and connects its clients to. */
+    public static final String HOST = "127.0.0.1";
+
+    private static final long POLL_MILLIS = 5;
+
+    private LocalServer() {
+    }
+
+    /**
+     * Waits until a server in this JVM accepts connections.
+     *
+     * @param port The port it listens on.
+     * @param timeoutMillis How long to wait at most.
+     * @throws IllegalStateException If it did not accept a connection in time.
+     */
+    public static void await(int port, long timeoutMillis) throws InterruptedException {
+        await(port, null, timeoutMillis);
+    }
+
+    /**
+     * Waits until a server accepts connections, failing early if its process exits first.
+     *
+     * @param port The port it listens on.
+     * @param server The process running the server, or null if it runs in this JVM.
+     * @param timeoutMillis How long to wait at most.
+     * @throws IllegalStateException If the process exited or the server did not accept a connection in time.
+     */
+    public static void await(int port, Process server, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (System.nanoTime() < deadline) {
+            if (server != null && !server.isAlive()) {
+                throw new IllegalStateException("Server exited with " + server.exitValue() + " before it listened.");
+            }
+            try {
+                new Socket(HOST, port).close();
+                return;
+            } catch (IOException e) {
+                TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+}
@@ -0,0 +1,174 @@
+package Tools;
+
+import Server.Controller.ServerConfig;
+import Server.Controller.ServerManager;
+import Shared.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-running leak check. Starts a ServerManager in this JVM, logs in a fixed set of simulated
+ * clients that keep exchanging private messages for the whole run, and periodically reports the heap
+ * retained after a full collection, per connection and relative to the first sample. A connection
+ * that keeps every object it has seen shows up as steady growth; a bounded one levels off.
+ *
+ * Usage:
+ * {@code java -Djava.awt.headless=true Tools.SoakTest --clients=100 --minutes=240 --legacy}
+ *
+ * With {@code --legacy} the clients talk plain object streams, the path whose memory is bounded by
+ * {@code --stream-reset-interval}; the simulated clients reset their streams with the same interval.
+ * Without it they use framed transports with the codec given by {@code --codec=binary|serialization}.
+ */
+public class SoakTest {
+
+    private final ServerConfig config;
+    private final int clients;
+    private final long minutes;
+    private final long sampleSeconds;
+    private final int messagesPerSecond;
+    private final boolean legacy;
+    private final byte codec;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+
+    public SoakTest(ServerConfig config, int clients, long minutes, long sampleSeconds, int messagesPerSecond,
+                    boolean legacy, byte codec) {
+        this.config = config;
+        this.clients = clients;
+        this.minutes = minutes;
+        this.sampleSeconds = sampleSeconds;
+        this.messagesPerSecond = messagesPerSecond;
+        this.legacy = legacy;
+        this.codec = codec;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> serverArgs = new ArrayList<>();
+        int clients = 100;
+        long minutes = 60;
+        long sampleSeconds = 60;
+        int rate = 5;
+        boolean legacy = false;
+        byte codec = Protocol.CODEC_BINARY;
+        for (String arg : args) {
+            if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--minutes=")) {
+                minutes = Long.parseLong(arg.substring(10));
+            } else if (arg.startsWith("--sample-seconds=")) {
+                sampleSeconds = Long.parseLong(arg.substring(17));
+            } else if (arg.startsWith("--rate=")) {
+                rate = Integer.parseInt(arg.substring(7));
+            } else if (arg.equals("--legacy")) {
+                legacy = true;
+            } else if (arg.startsWith("--codec=")) {
+                codec = arg.substring(8).equalsIgnoreCase("serialization") ? Protocol.CODEC_SERIALIZATION : Protocol.CODEC_BINARY;
+            } else {
+                serverArgs.add(arg);
+            }
+        }
+        ServerConfig config = ServerConfig.fromArgs(serverArgs.toArray(new String[0]));
+        new SoakTest(config, clients, minutes, sampleSeconds, rate, legacy, codec).run();
+        System.exit(0);
+    }
+
+    /**
+     * Starts the server and the clients, then samples the heap until the run is over.
+     */
+    public void run() throws Exception {
+        Thread serverThread = new Thread(() -> new ServerManager(config), "soak-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        LocalServer.await(config.getPort(), 10000);
+
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            users.add(new User("soak-" + i, null));
+        }
+        for (int i = 0; i < clients; i++) {
+            startClient(users.get(i), users.get((i + 1) % clients));
+        }
+
+        System.out.println("elapsed_s,connections,sent,received,heap_mb,heap_per_connection_kb,growth_per_connection_kb");
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MINUTES.toNanos(minutes);
+        long baseline = -1;
+        long first = 0;
+        long last = 0;
+        while (System.nanoTime() < end) {
+            TimeUnit.SECONDS.sleep(sampleSeconds);
+            long heap = retainedHeap();
+            if (baseline < 0) {
+                baseline = heap;
+                first = heap;
+            }
+            last = heap;
+            System.out.printf("%d,%d,%d,%d,%.1f,%.1f,%.2f%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), clients, sent.get(), received.get(),
+                    heap / 1048576.0, heap / 1024.0 / clients, (heap - baseline) / 1024.0 / clients);
+        }
+        double hours = Math.max(1e-9, (minutes * 60.0 - sampleSeconds) / 3600);
+        System.out.printf("Heap growth: %.2f KB per connection per hour%n", (last - first) / 1024.0 / clients / hours);
+    }
+
+    /**
+     * Logs a client in and starts a thread that sends to its peer at the configured rate and one that
+     * reads everything the server sends it.
+     */
+    private void startClient(User user, User peer) throws IOException {
+        Socket socket = new Socket(LocalServer.HOST, config.getPort());
+        socket.setTcpNoDelay(true);
+        Transport transport = legacy
+                ? new ObjectStreamTransport(socket.getInputStream(), socket.getOutputStream(), config.getStreamResetInterval())
+                : FramedTransport.connect(socket, codec);
+        transport.send(new Message("", null, user));
+
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    if (transport.receive() instanceof Message) {
+                        received.incrementAndGet();
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // Run is over.
+            }
+        }, "soak-reader-" + user.getUserName());
+        reader.setDaemon(true);
+        reader.start();
+
+        long pauseMillis = Math.max(1, 1000 / Math.max(1, messagesPerSecond));
+        Thread writer = new Thread(() -> {
+            try {
+                for (long n = 0; ; n++) {
+                    Message message = new Message("soak message " + n, null, user);
+                    message.setReceiver(peer);
+                    transport.send(message);
+                    sent.incrementAndGet();
+                    TimeUnit.MILLISECONDS.sleep(pauseMillis);
+                }
+            } catch (IOException | InterruptedException e) {
+                // Run is over.
+            }
+        }, "soak-writer-" + user.getUserName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return The heap in use after a full collection, in bytes.
+     */
+    private static long retainedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,150 @@
+package Tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures what it costs to start a server: launches MainServer in a fresh JVM several times and reports
+ * how long it took until the port accepted connections, the resident memory once it settled, and how many
+ * classes were loaded, of which how many belong to AWT, Swing or ImageIO. Each run gets an empty working
+ * directory, so no log, journal or blob from an earlier run is read at startup.
+ *
+ * Usage:
+ * {@code java Tools.StartupBenchmark --classpath=out --runs=5 -- --engine=nio}
+ *
+ * Point {@code --classpath} at the build of another version to compare the two. Arguments after
+ * {@code --} are passed to the server, {@code --jvm=} options to its JVM.
+ */
+public class StartupBenchmark {
+    private static final long SETTLE_MILLIS = 2000;
+
+    private final String classpath;
+    private final int runs;
+    private final int port;
+    private final List<String> jvmOptions;
+    private final List<String> serverArgs;
+
+    public StartupBenchmark(String classpath, int runs, int port, List<String> jvmOptions, List<String> serverArgs) {
+        this.classpath = classpath;
+        this.runs = runs;
+        this.port = port;
+        this.jvmOptions = jvmOptions;
+        this.serverArgs = serverArgs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String classpath = System.getProperty("java.class.path");
+        int runs = 5;
+        int port = 9990;
+        List<String> jvmOptions = new ArrayList<>();
+        List<String> serverArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--")) {
+                serverArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            } else if (arg.startsWith("--classpath=")) {
+                classpath = arg.substring(12);
+            } else if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(arg.substring(7));
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring(7));
+            } else if (arg.startsWith("--jvm=")) {
+                jvmOptions.add(arg.substring(6));
+            } else {
+                System.out.println("Ignoring unknown argument " + arg);
+            }
+        }
+        new StartupBenchmark(Paths.get(classpath).toAbsolutePath().toString(), runs, port, jvmOptions, serverArgs).run();
+    }
+
+    /**
+     * Starts the server once per run and prints one line per run and the medians.
+     */
+    public void run() throws Exception {
+        long[] startup = new long[runs];
+        long[] rss = new long[runs];
+        long[] classes = new long[runs];
+        long[] uiClasses = new long[runs];
+        System.out.println("run,startup_ms,rss_mb,classes,awt_swing_classes");
+        for (int i = 0; i < runs; i++) {
+            Path directory = Files.createTempDirectory("startup-benchmark");
+            Path classLog = directory.resolve("classes.txt");
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(jvmOptions);
+            command.add("-Xlog:class+load=info:file=" + classLog);
+            command.add("-cp");
+            command.add(classpath);
+            command.add("MainServer");
+            command.add("--port=" + port);
+            command.addAll(serverArgs);
+
+            long started = System.nanoTime();
+            Process server = new ProcessBuilder(command).directory(directory.toFile())
+                    .redirectErrorStream(true)
+                    .redirectOutput(directory.resolve("server.out").toFile())
+                    .start();
+            try {
+                LocalServer.await(port, server, 30000);
+                startup[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+                rss[i] = residentMemory(server.pid());
+                try (Stream<String> lines = Files.lines(classLog)) {
+                    List<String> loaded = lines.collect(Collectors.toList());
+                    classes[i] = loaded.size();
+                    uiClasses[i] = loaded.stream().filter(StartupBenchmark::isUiClass).count();
+                }
+            } finally {
+                server.destroy();
+                server.waitFor(10, TimeUnit.SECONDS);
+                deleteRecursively(directory);
+            }
+            System.out.printf("%d,%d,%.1f,%d,%d%n", i + 1, startup[i], rss[i] / 1048576.0, classes[i], uiClasses[i]);
+        }
+        System.out.printf("median,%d,%.1f,%d,%d%n", median(startup), median(rss) / 1048576.0, median(classes), median(uiClasses));
+    }
+
+    private static boolean isUiClass(String line) {
+        return line.contains(" java.awt.") || line.contains(" javax.swing.") || line.contains(" sun.awt.")
+                || line.contains(" sun.java2d.") || line.contains(" javax.imageio.");
+    }
+
+    /**
+     * @return The resident set size of a process in bytes, or 0 where /proc is not available.
+     */
+    private static long residentMemory(long pid) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not on Linux.
+        }
+        return 0;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted((a, b) -> b.compareTo(a))::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
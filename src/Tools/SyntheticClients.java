@@ -0,0 +1,308 @@
+package Tools;
+
+import Server.Controller.LatencyHistogram;
+import Shared.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Headless chat clients for load tools. Each client speaks the real protocol, the handshake followed by
+ * length-prefixed frames, over its own socket, but all of them are read by a few selector threads, so
+ * thousands of clients do not need thousands of threads. Clients acknowledge the batches of saved
+ * messages delivered after login, like the real client, and ignore presence traffic.
+ *
+ * Messages whose content starts with a {@link System#nanoTime()} stamp, see {@link #stamp}, have their
+ * end-to-end latency recorded when a client receives them live. Saved messages delivered after login are
+ * only counted, since their latency is mostly the time the receiver was offline.
+ */
+public class SyntheticClients {
+    private static final long WRITE_RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final String host;
+    private final int port;
+    private final byte codecId;
+    private final ReadLoop[] readLoops;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong inboxDelivered = new AtomicLong();
+    private final AtomicLong failedSends = new AtomicLong();
+    private int nextLoop;
+
+    /**
+     * @param host      The host of the server.
+     * @param port      The port of the server.
+     * @param codecId   The codec the clients ask for in the handshake.
+     * @param ioThreads The number of selector threads reading for all clients.
+     */
+    public SyntheticClients(String host, int port, byte codecId, int ioThreads) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.codecId = codecId;
+        readLoops = new ReadLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < readLoops.length; i++) {
+            readLoops[i] = new ReadLoop();
+            Thread thread = new Thread(readLoops[i], "synthetic-clients-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Connects, handshakes and logs in with blocking I/O, then hands the client to a read loop.
+     *
+     * @param userName The name to log in with.
+     * @return The logged in client.
+     */
+    public Client login(String userName) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        channel.write(ByteBuffer.wrap(Protocol.hello(codecId)));
+        ByteBuffer accepted = ByteBuffer.allocate(1);
+        while (accepted.hasRemaining()) {
+            if (channel.read(accepted) < 0) {
+                channel.close();
+                throw new IOException("Server closed the connection during the handshake.");
+            }
+        }
+        Codec codec = Protocol.codecFor(accepted.get(0));
+        if (codec == null) {
+            channel.close();
+            throw new IOException("Server picked unknown codec " + accepted.get(0) + ".");
+        }
+        Client client = new Client(new User(userName, null), channel, codec);
+        client.write(codec.encode(new Message("", null, client.user)));
+        channel.configureBlocking(false);
+        ReadLoop loop = readLoops[nextLoop++ % readLoops.length];
+        loop.pending.add(client);
+        loop.selector.wakeup();
+        return client;
+    }
+
+    /**
+     * @param sentAt  The {@link System#nanoTime()} the latency of the message is measured from.
+     * @param padding The number of characters added after the stamp, to give messages a size.
+     * @return Message content carrying the stamp.
+     */
+    public static String stamp(long sentAt, int padding) {
+        StringBuilder content = new StringBuilder(20 + padding).append(sentAt).append(' ');
+        for (int i = 0; i < padding; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        return content.toString();
+    }
+
+    /**
+     * @return The end-to-end latencies of the messages delivered live so far.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return The number of messages delivered live, one per receiver.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return The number of saved messages delivered after a login.
+     */
+    public long getInboxDelivered() {
+        return inboxDelivered.get();
+    }
+
+    /**
+     * @return The number of sends that failed because the client's connection was closed.
+     */
+    public long getFailedSends() {
+        return failedSends.get();
+    }
+
+    /**
+     * A logged in client. Sending is safe from any thread.
+     */
+    public class Client {
+        private final User user;
+        private final SocketChannel channel;
+        private final Codec codec;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+
+        private Client(User user, SocketChannel channel, Codec codec) {
+            this.user = user;
+            this.channel = channel;
+            this.codec = codec;
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        /**
+         * Sends an object as one frame.
+         *
+         * @return False if the connection was closed.
+         */
+        public boolean send(Object obj) {
+            try {
+                write(codec.encode(obj));
+                return true;
+            } catch (IOException e) {
+                failedSends.incrementAndGet();
+                return false;
+            }
+        }
+
+        /**
+         * Closes the connection, which the server handles as a logout.
+         */
+        public void logout() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void write(byte[] payload) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(Protocol.FRAME_HEADER_LENGTH + payload.length);
+            frame.putInt(payload.length).put(payload).flip();
+            writeLock.lock();
+            try {
+                while (frame.hasRemaining()) {
+                    if (channel.write(frame) == 0) {
+                        // The socket buffer is full, which a non-blocking channel reports as zero bytes written.
+                        LockSupport.parkNanos(WRITE_RETRY_NANOS);
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Reads what the socket has and handles every complete frame.
+         *
+         * @return False once the server closed the connection.
+         */
+        private boolean read() throws IOException {
+            int read = channel.read(readBuffer);
+            readBuffer.flip();
+            while (readBuffer.remaining() >= Protocol.FRAME_HEADER_LENGTH) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < 0 || length > Protocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length + ".");
+                }
+                if (readBuffer.remaining() < Protocol.FRAME_HEADER_LENGTH + length) {
+                    break;
+                }
+                int start = readBuffer.position() + Protocol.FRAME_HEADER_LENGTH;
+                Object obj = codec.decode(readBuffer.array(), start, length);
+                readBuffer.position(start + length);
+                handle(obj);
+            }
+            readBuffer.compact();
+            if (readBuffer.position() >= Protocol.FRAME_HEADER_LENGTH) {
+                int needed = Protocol.FRAME_HEADER_LENGTH + readBuffer.getInt(0);
+                if (needed > readBuffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(needed);
+                    readBuffer.flip();
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                }
+            }
+            return read >= 0;
+        }
+
+        private void handle(Object obj) {
+            if (obj instanceof Message) {
+                delivered.incrementAndGet();
+                long sentAt = stampOf(((Message) obj).getContent());
+                if (sentAt != 0) {
+                    latency.record(System.nanoTime() - sentAt);
+                }
+            } else if (obj instanceof InboxBatch) {
+                InboxBatch batch = (InboxBatch) obj;
+                inboxDelivered.addAndGet(batch.getMessages().size());
+                send(new InboxAck(batch.getCursor()));
+            }
+        }
+    }
+
+    /**
+     * @return The stamp at the start of the content, or 0 if there is none.
+     */
+    private static long stampOf(String content) {
+        long value = 0;
+        int i = 0;
+        if (content == null) {
+            return 0;
+        }
+        for (; i < content.length() && i < 19; i++) {
+            char c = content.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return i > 0 && i < content.length() && content.charAt(i) == ' ' ? value : 0;
+    }
+
+    /**
+     * Reads for the clients registered with it until the JVM exits.
+     */
+    private static class ReadLoop implements Runnable {
+        private final Queue<Client> pending = new ConcurrentLinkedQueue<>();
+        private final Selector selector;
+
+        ReadLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Client client;
+                    while ((client = pending.poll()) != null) {
+                        if (client.channel.isOpen()) {
+                            client.channel.register(selector, SelectionKey.OP_READ, client);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Client ready = (Client) key.attachment();
+                        try {
+                            if (!ready.read()) {
+                                key.cancel();
+                                ready.channel.close();
+                            }
+                        } catch (IOException e) {
+                            // Closed by a logout while reading.
+                            key.cancel();
+                            ready.channel.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package Tools;
+
+import Server.Controller.LatencyHistogram;
+import Server.Controller.ServerConfig;
+import Server.Controller.ServerManager;
+import Server.Controller.TrafficCapture;
+import Shared.ContentHash;
+import Shared.Message;
+import Shared.Protocol;
+import Shared.User;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a capture recorded by a server started with {@code --capture-file} against a ServerManager in
+ * this JVM, with synthetic clients standing in for the captured users. Logins, logouts and messages
+ * happen in the captured order at the captured pace, sped up by a factor or as fast as possible, with
+ * the captured receivers, group members and content lengths. Reports throughput and end-to-end delivery
+ * latency per interval and for the whole replay.
+ *
+ * Usage:
+ * {@code java -Djava.awt.headless=true Tools.TrafficReplay --capture=peak.cap --speed=10 --engine=nio}
+ *
+ * {@code --speed} takes a factor such as 1 or 10, or {@code max}. On a schedule, messages are stamped
+ * with the time they were due, so a server that makes the replay fall behind shows up in the latency; at
+ * {@code max} they are stamped when they are sent. A capture does not say who was online when it started,
+ * so users whose first event is not a login are logged in before the replay starts. Arguments the tool
+ * does not know are passed to the server.
+ */
+public class TrafficReplay {
+    private static final String ATTACHMENT_HASH = ContentHash.of(new byte[0]);
+
+    private final ServerConfig config;
+    private final List<TrafficCapture.Event> events;
+    private final double speed;
+    private final long reportSeconds;
+    private final byte codec;
+    private final int ioThreads;
+    private SyntheticClients.Client[] clients;
+    private User[] users;
+    private long sent;
+    private long logins;
+    private long logouts;
+    private long maxBehindNanos;
+
+    /**
+     * @param speed The factor to speed the capture up by, or 0 to replay it as fast as possible.
+     */
+    public TrafficReplay(ServerConfig config, List<TrafficCapture.Event> events, double speed, long reportSeconds,
+                         byte codec, int ioThreads) {
+        this.config = config;
+        this.events = events;
+        this.speed = speed;
+        this.reportSeconds = reportSeconds;
+        this.codec = codec;
+        this.ioThreads = ioThreads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> serverArgs = new ArrayList<>();
+        String capture = null;
+        double speed = 1;
+        long reportSeconds = 5;
+        byte codec = Protocol.CODEC_BINARY;
+        int ioThreads = 2;
+        for (String arg : args) {
+            if (arg.startsWith("--capture=")) {
+                capture = arg.substring(10);
+            } else if (arg.startsWith("--speed=")) {
+                String value = arg.substring(8);
+                speed = value.equalsIgnoreCase("max") ? 0 : Double.parseDouble(value);
+            } else if (arg.startsWith("--report-seconds=")) {
+                reportSeconds = Long.parseLong(arg.substring(17));
+            } else if (arg.startsWith("--codec=")) {
+                codec = arg.substring(8).equalsIgnoreCase("serialization") ? Protocol.CODEC_SERIALIZATION : Protocol.CODEC_BINARY;
+            } else if (arg.startsWith("--client-io-threads=")) {
+                ioThreads = Integer.parseInt(arg.substring(20));
+            } else {
+                serverArgs.add(arg);
+            }
+        }
+        if (capture == null) {
+            System.out.println("Usage: TrafficReplay --capture=<file> [--speed=1|10|max] [server arguments]");
+            System.exit(1);
+        }
+        List<TrafficCapture.Event> events = TrafficCapture.read(Paths.get(capture));
+        ServerConfig config = ServerConfig.fromArgs(serverArgs.toArray(new String[0]));
+        new TrafficReplay(config, events, speed, reportSeconds, codec, ioThreads).run();
+        System.exit(0);
+    }
+
+    /**
+     * Starts the server, logs in the users who were online when the capture started and replays it.
+     */
+    public void run() throws Exception {
+        if (events.isEmpty()) {
+            System.out.println("The capture holds no events.");
+            return;
+        }
+        Thread serverThread = new Thread(() -> new ServerManager(config), "replay-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        LocalServer.await(config.getPort(), 10000);
+
+        SyntheticClients synthetic = new SyntheticClients(LocalServer.HOST, config.getPort(), codec, ioThreads);
+        boolean[] initiallyOnline = initiallyOnline();
+        clients = new SyntheticClients.Client[initiallyOnline.length];
+        users = new User[initiallyOnline.length];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = new User("replay-" + i, null);
+            if (initiallyOnline[i]) {
+                clients[i] = synthetic.login(users[i].getUserName());
+            }
+        }
+        long captured = events.get(events.size() - 1).getOffsetNanos() - events.get(0).getOffsetNanos();
+        System.out.printf("Replaying %d events from %d users, %.0f s captured, at %s.%n", events.size(), users.length,
+                captured / 1e9, speed == 0 ? "maximum speed" : speed + "x");
+
+        System.out.println("elapsed_s,online,sent,delivered,inbox_delivered,sent_per_s,delivered_per_s,p50_us,p99_us,p999_us,max_us");
+        long base = events.get(0).getOffsetNanos();
+        long start = System.nanoTime();
+        long nextReport = start + TimeUnit.SECONDS.toNanos(reportSeconds);
+        Counters interval = new Counters(synthetic, start);
+        Counters whole = interval;
+        for (TrafficCapture.Event event : events) {
+            long now = System.nanoTime();
+            long due = speed == 0 ? now : start + (long) ((event.getOffsetNanos() - base) / speed);
+            while (now < due) {
+                if (now >= nextReport) {
+                    interval = report(interval, synthetic, now, start, nextReport);
+                    nextReport += TimeUnit.SECONDS.toNanos(reportSeconds);
+                }
+                LockSupport.parkNanos(Math.min(due, nextReport) - now);
+                now = System.nanoTime();
+            }
+            maxBehindNanos = Math.max(maxBehindNanos, now - due);
+            replay(event, synthetic, due);
+            if (now >= nextReport) {
+                interval = report(interval, synthetic, now, start, nextReport);
+                nextReport += TimeUnit.SECONDS.toNanos(reportSeconds);
+            }
+        }
+        long end = System.nanoTime();
+        TimeUnit.SECONDS.sleep(1);
+        summarize(whole, synthetic, end, captured);
+    }
+
+    /**
+     * @return For each user, whether their first event, as actor or receiver, is something other than a login.
+     */
+    private boolean[] initiallyOnline() {
+        int count = 0;
+        for (TrafficCapture.Event event : events) {
+            count = Math.max(count, event.getUser() + 1);
+            count = Math.max(count, event.getReceiver() + 1);
+            if (event.getMembers() != null) {
+                for (int member : event.getMembers()) {
+                    count = Math.max(count, member + 1);
+                }
+            }
+        }
+        boolean[] online = new boolean[count];
+        boolean[] seen = new boolean[count];
+        for (TrafficCapture.Event event : events) {
+            if (!seen[event.getUser()]) {
+                seen[event.getUser()] = true;
+                online[event.getUser()] = event.getType() != TrafficCapture.Type.LOGIN;
+            }
+            if (event.getReceiver() >= 0 && !seen[event.getReceiver()]) {
+                seen[event.getReceiver()] = true;
+                online[event.getReceiver()] = true;
+            }
+            if (event.getMembers() != null) {
+                for (int member : event.getMembers()) {
+                    if (!seen[member]) {
+                        seen[member] = true;
+                        online[member] = true;
+                    }
+                }
+            }
+        }
+        return online;
+    }
+
+    /**
+     * Replays one event. A sender who is not logged in, because the capture lost track of them, is logged
+     * in first.
+     *
+     * @param due The time the event was due, which a message's latency is measured from.
+     */
+    private void replay(TrafficCapture.Event event, SyntheticClients synthetic, long due) throws IOException {
+        int user = event.getUser();
+        switch (event.getType()) {
+            case LOGIN:
+                if (clients[user] == null) {
+                    clients[user] = synthetic.login(users[user].getUserName());
+                    logins++;
+                }
+                return;
+            case LOGOUT:
+                if (clients[user] != null) {
+                    clients[user].logout();
+                    clients[user] = null;
+                    logouts++;
+                }
+                return;
+            default:
+                break;
+        }
+        if (clients[user] == null) {
+            clients[user] = synthetic.login(users[user].getUserName());
+            logins++;
+        }
+        String stamp = SyntheticClients.stamp(due, 0);
+        Message message = new Message(SyntheticClients.stamp(due, Math.max(0, event.getContentLength() - stamp.length())),
+                null, users[user]);
+        if (event.hasAttachment()) {
+            message.setAttachmentHash(ATTACHMENT_HASH);
+        }
+        if (event.getType() == TrafficCapture.Type.MESSAGE) {
+            message.setReceiver(users[event.getReceiver()]);
+        } else {
+            List<User> members = new ArrayList<>(event.getMembers().length);
+            for (int member : event.getMembers()) {
+                members.add(users[member]);
+            }
+            message.setGroupOfReceivers(members);
+        }
+        if (clients[user].send(message)) {
+            sent++;
+        }
+    }
+
+    private Counters report(Counters interval, SyntheticClients synthetic, long now, long start, long at) {
+        double elapsed = (now - interval.startedAt) / 1e9;
+        long delivered = synthetic.getDelivered() - interval.delivered;
+        LatencyHistogram.Snapshot latency = synthetic.getLatency().snapshot().since(interval.latency);
+        int online = 0;
+        for (SyntheticClients.Client client : clients) {
+            if (client != null) {
+                online++;
+            }
+        }
+        System.out.printf("%d,%d,%d,%d,%d,%.0f,%.0f,%d,%d,%d,%d%n",
+                TimeUnit.NANOSECONDS.toSeconds(at - start), online, sent - interval.sent, delivered,
+                synthetic.getInboxDelivered() - interval.inboxDelivered, (sent - interval.sent) / elapsed, delivered / elapsed,
+                latency.valueAt(0.50) / 1000, latency.valueAt(0.99) / 1000, latency.valueAt(0.999) / 1000,
+                latency.getMax() / 1000);
+        return new Counters(synthetic, now);
+    }
+
+    private void summarize(Counters whole, SyntheticClients synthetic, long end, long captured) {
+        double elapsed = (end - whole.startedAt) / 1e9;
+        long delivered = synthetic.getDelivered() - whole.delivered;
+        LatencyHistogram.Snapshot latency = synthetic.getLatency().snapshot().since(whole.latency);
+        System.out.println();
+        System.out.printf("Replayed %.1f s of capture in %.1f s (%.1fx); at most %d ms behind schedule.%n",
+                captured / 1e9, elapsed, captured / 1e9 / Math.max(1e-9, elapsed), maxBehindNanos / 1000000);
+        System.out.printf("Sent:      %d messages, %.0f/s; %d logins, %d logouts%n", sent, sent / elapsed, logins, logouts);
+        System.out.printf("Delivered: %d live, %.0f/s; %d saved messages after login; %d sends failed%n",
+                delivered, delivered / elapsed, synthetic.getInboxDelivered() - whole.inboxDelivered, synthetic.getFailedSends());
+        System.out.printf("Latency:   p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us%n",
+                latency.valueAt(0.50) / 1000, latency.valueAt(0.90) / 1000, latency.valueAt(0.99) / 1000,
+                latency.valueAt(0.999) / 1000, latency.getMax() / 1000);
+    }
+
+    /**
+     * The counters at the start of a reporting interval, or of the replay.
+     */
+    private class Counters {
+        private final long startedAt;
+        private final long sent;
+        private final long delivered;
+        private final long inboxDelivered;
+        private final LatencyHistogram.Snapshot latency;
+
+        Counters(SyntheticClients synthetic, long now) {
+            startedAt = now;
+            sent = TrafficReplay.this.sent;
+            delivered = synthetic.getDelivered();
+            inboxDelivered = synthetic.getInboxDelivered();
+            latency = synthetic.getLatency().snapshot();
+        }
+    }
+}
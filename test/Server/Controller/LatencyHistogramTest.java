@@ -0,0 +1,148 @@
+package Server.Controller;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    /** Recorded along with the value under test, so the maximum does not cap the value reported for it. */
+    private static final long LARGER = 1L << 40;
+
+    @Test
+    void reportsNothingBeforeAnythingIsRecorded() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.valueAt(0.99));
+    }
+
+    @Test
+    void keepsSmallValuesExact() {
+        for (long value = 0; value < 64; value++) {
+            assertEquals(value, lowestRecorded(value));
+        }
+    }
+
+    @Test
+    void roundsValuesUpToTheirBucketByLessThanThreePercent() {
+        for (int exponent = 6; exponent < 40; exponent++) {
+            long power = 1L << exponent;
+            long width = power >>> 5;
+            for (long value : new long[]{power - 1, power, power + 1, power + width - 1, power + width, 2 * power - 1}) {
+                long reported = lowestRecorded(value);
+                assertTrue(reported >= value && reported - value <= value / 32,
+                        value + " was reported as " + reported);
+            }
+        }
+    }
+
+    @Test
+    void sharesBucketsOnlyBetweenNeighbouringValues() {
+        assertEquals(65, lowestRecorded(64));
+        assertEquals(65, lowestRecorded(65));
+        assertEquals(67, lowestRecorded(66));
+        assertEquals(127, lowestRecorded(126));
+        assertEquals(131, lowestRecorded(128));
+        assertEquals(135, lowestRecorded(132));
+    }
+
+    @Test
+    void findsPercentilesOfAUniformSpread() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(10_000, snapshot.getCount());
+        assertEquals(10_000_000, snapshot.getMax());
+        assertWithinBucket(1000, snapshot.valueAt(0));
+        assertWithinBucket(5_000_000, snapshot.valueAt(0.5));
+        assertWithinBucket(9_900_000, snapshot.valueAt(0.99));
+        assertWithinBucket(9_990_000, snapshot.valueAt(0.999));
+        assertEquals(10_000_000, snapshot.valueAt(1));
+    }
+
+    @Test
+    void neverReportsMoreThanTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        assertEquals(1000, histogram.snapshot().valueAt(0.5));
+        assertEquals(1000, histogram.snapshot().valueAt(1));
+    }
+
+    @Test
+    void clampsValuesOutsideTheRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.snapshot().valueAt(1));
+
+        histogram.record(Long.MAX_VALUE);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals((1L << 42) - 1, snapshot.getMax());
+        assertEquals(snapshot.getMax(), snapshot.valueAt(1));
+    }
+
+    @Test
+    void reportsAnIntervalBetweenSnapshots() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5_000_000);
+        LatencyHistogram.Snapshot before = histogram.snapshot();
+        for (int i = 0; i < 10; i++) {
+            histogram.record(100_000);
+        }
+        LatencyHistogram.Snapshot interval = histogram.snapshot().since(before);
+
+        assertEquals(10, interval.getCount());
+        assertWithinBucket(100_000, interval.getMax());
+        assertWithinBucket(100_000, interval.valueAt(0.99));
+        assertEquals(0, histogram.snapshot().since(histogram.snapshot()).getCount());
+    }
+
+    @Test
+    void countsEveryValueRecordedConcurrently() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int threads = 4;
+        int perThread = 100_000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long offset = t;
+            running.add(pool.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    histogram.record(i * 10L + offset);
+                }
+            }));
+        }
+        for (Future<?> thread : running) {
+            thread.get();
+        }
+        pool.shutdown();
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals((long) threads * perThread, snapshot.getCount());
+        assertEquals((perThread - 1) * 10L + threads - 1, snapshot.getMax());
+    }
+
+    /**
+     * @return The value the histogram reports as the lowest when the given one is recorded.
+     */
+    private static long lowestRecorded(long value) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(value);
+        histogram.record(LARGER);
+        return histogram.snapshot().valueAt(0);
+    }
+
+    private static void assertWithinBucket(long expected, long reported) {
+        assertTrue(reported >= expected && reported - expected <= expected / 32,
+                expected + " was reported as " + reported);
+    }
+}
@@ -0,0 +1,102 @@
+package Server.Controller;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogRingBufferTest {
+
+    @Test
+    void roundsTheCapacityUpToAPowerOfTwo() {
+        assertEquals(2, new LogRingBuffer<>(1).capacity());
+        assertEquals(1024, new LogRingBuffer<>(1000).capacity());
+        assertEquals(1024, new LogRingBuffer<>(1024).capacity());
+    }
+
+    @Test
+    void refusesOffersWhileFull() {
+        LogRingBuffer<Integer> buffer = new LogRingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.published());
+
+        assertEquals(0, buffer.poll());
+        assertTrue(buffer.offer(4));
+        assertFalse(buffer.offer(5));
+    }
+
+    @Test
+    void pollsInOrderAcrossWrapAround() {
+        LogRingBuffer<Integer> buffer = new LogRingBuffer<>(8);
+        assertNull(buffer.poll());
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 5; i++) {
+                assertTrue(buffer.offer(round * 5 + i));
+            }
+            for (int i = 0; i < 5; i++) {
+                assertEquals(round * 5 + i, buffer.poll());
+            }
+            assertNull(buffer.poll());
+        }
+    }
+
+    @Test
+    void losesNoEventOfConcurrentProducers() throws Exception {
+        int producers = 4;
+        int perProducer = 100_000;
+        LogRingBuffer<long[]> buffer = new LogRingBuffer<>(256);
+        ExecutorService threads = Executors.newFixedThreadPool(producers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> running = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            long producer = p;
+            running.add(threads.submit(() -> {
+                start.await();
+                for (long i = 0; i < perProducer; i++) {
+                    long[] event = {producer, i};
+                    while (!buffer.offer(event)) {
+                        Thread.yield();
+                    }
+                }
+                return null;
+            }));
+        }
+
+        long[] next = new long[producers];
+        long received = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        start.countDown();
+        while (received < (long) producers * perProducer) {
+            long[] event = buffer.poll();
+            if (event == null) {
+                assertTrue(System.nanoTime() < deadline, "Only " + received + " events arrived.");
+                Thread.yield();
+                continue;
+            }
+            int producer = (int) event[0];
+            assertEquals(next[producer], event[1], "Events of producer " + producer + " out of order.");
+            next[producer]++;
+            received++;
+        }
+        for (Future<?> producer : running) {
+            producer.get();
+        }
+        threads.shutdown();
+
+        assertNull(buffer.poll());
+        assertEquals((long) producers * perProducer, buffer.published());
+        for (long count : next) {
+            assertEquals(perProducer, count);
+        }
+    }
+}
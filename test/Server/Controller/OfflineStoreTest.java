@@ -0,0 +1,227 @@
+package Server.Controller;
+
+import Shared.Message;
+import Shared.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OfflineStoreTest {
+    private static final long SEGMENT_BYTES = 4096;
+    private static final long NO_TTL = 0;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsMessagesInOrderAcrossSegments() throws IOException {
+        OfflineStore store = open(1 << 20, NO_TTL);
+        for (int i = 0; i < 200; i++) {
+            assertTrue(store.append(message("bob", i)));
+        }
+        assertTrue(segmentCount() > 1);
+        assertEquals(200, store.getQueuedMessages());
+
+        assertEquals(contents(0, 200), drain(store, "bob", 1000));
+        assertEquals(0, store.getQueuedMessages());
+        assertEquals(0, store.getQueuedBytes());
+        assertNull(store.readBatch("bob", 1000));
+    }
+
+    @Test
+    void keepsMessagesUntilTheyAreAcknowledged() throws IOException {
+        OfflineStore store = open(1 << 20, NO_TTL);
+        for (int i = 0; i < 10; i++) {
+            store.append(message("bob", i));
+        }
+        OfflineStore.Batch first = store.readBatch("bob", 200);
+        assertEquals(first.getMessages().get(0).getContent(), store.readBatch("bob", 200).getMessages().get(0).getContent());
+
+        assertTrue(store.acknowledge("bob", first));
+        assertFalse(store.acknowledge("bob", first));
+        assertEquals(10 - first.getMessages().size(), store.getQueuedMessages());
+    }
+
+    @Test
+    void recoversMessagesTheIndexDoesNotKnowAbout() throws IOException {
+        OfflineStore store = open(1 << 20, NO_TTL);
+        for (int i = 0; i < 5; i++) {
+            store.append(message("bob", i));
+        }
+        byte[] index = Files.readAllBytes(directory.resolve("index.dat"));
+        store.append(message("bob", 5));
+        Files.write(directory.resolve("index.dat"), index);
+
+        OfflineStore reopened = open(1 << 20, NO_TTL);
+        assertEquals(6, reopened.getQueuedMessages());
+        assertEquals(contents(0, 6), drain(reopened, "bob", 1000));
+    }
+
+    @Test
+    void cutsOffATornRecordAtTheEnd() throws IOException {
+        OfflineStore store = open(1 << 20, NO_TTL);
+        for (int i = 0; i < 5; i++) {
+            store.append(message("bob", i));
+        }
+        Path segment = lastSegment();
+        long intact = Files.size(segment);
+        byte[] index = Files.readAllBytes(directory.resolve("index.dat"));
+        store.append(message("bob", 5));
+        Files.write(directory.resolve("index.dat"), index);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(segment) - 3);
+        }
+
+        OfflineStore reopened = open(1 << 20, NO_TTL);
+        assertEquals(intact, Files.size(segment));
+        assertEquals(5, reopened.getQueuedMessages());
+        assertTrue(reopened.append(message("bob", 6)));
+        List<String> expected = contents(0, 5);
+        expected.add("message 6");
+        assertEquals(expected, drain(reopened, "bob", 1000));
+    }
+
+    @Test
+    void rejectsMessagesBeyondTheUserQuota() throws IOException {
+        OfflineStore store = open(1000, NO_TTL);
+        int accepted = 0;
+        while (store.append(message("bob", accepted))) {
+            accepted++;
+        }
+        assertTrue(accepted > 0);
+        assertEquals(1, store.getRejectedMessages());
+        assertTrue(store.getQueuedBytes() <= 1000);
+        assertTrue(store.append(message("carol", 0)));
+
+        store.acknowledge("bob", store.readBatch("bob", 200));
+        assertTrue(store.append(message("bob", accepted)));
+    }
+
+    @Test
+    void compactionExpiresMessagesAndDeletesTheirSegments() throws IOException, InterruptedException {
+        OfflineStore store = open(1 << 20, 300);
+        for (int i = 0; i < 200; i++) {
+            store.append(message("bob", i));
+        }
+        Thread.sleep(400);
+        store.append(message("carol", 0));
+
+        store.compact();
+        assertEquals(200, store.getExpiredMessages());
+        assertEquals(1, store.getQueuedMessages());
+        assertNull(store.readBatch("bob", 1000));
+        assertEquals(1, segmentCount());
+        assertTrue(store.getReclaimedBytes() > 0);
+        assertEquals(List.of("message 0"), drain(store, "carol", 1000));
+    }
+
+    @Test
+    void compactionMovesMessagesOutOfMostlyDeadSegments() throws IOException {
+        OfflineStore store = open(1 << 20, NO_TTL);
+        for (int i = 0; i < 200; i++) {
+            store.append(message(i % 20 == 0 ? "bob" : "carol", i));
+        }
+        drain(store, "carol", 1000);
+        int segments = segmentCount();
+
+        store.compact();
+        assertTrue(store.getCompactedMessages() > 0);
+        assertTrue(segmentCount() < segments);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i += 20) {
+            expected.add("message " + i);
+        }
+        assertEquals(expected, drain(store, "bob", 1000));
+    }
+
+    @Test
+    void acknowledgesABatchThatCompactionMoved() throws IOException {
+        OfflineStore store = open(1 << 20, NO_TTL);
+        for (int i = 0; i < 3; i++) {
+            store.append(message("bob", i));
+        }
+        for (int i = 0; i < 200; i++) {
+            store.append(message("carol", i));
+        }
+        for (int i = 3; i < 6; i++) {
+            store.append(message("bob", i));
+        }
+        drain(store, "carol", 1000);
+        OfflineStore.Batch batch = store.readBatch("bob", 150);
+        int delivered = batch.getMessages().size();
+        assertTrue(delivered > 0 && delivered < 6);
+
+        store.compact();
+        assertTrue(store.getCompactedMessages() > 0);
+        assertTrue(store.acknowledge("bob", batch));
+        assertEquals(contents(delivered, 6), drain(store, "bob", 1000));
+    }
+
+    @Test
+    void reusesTheIndexSlotsOfDrainedUsers() throws IOException {
+        OfflineStore store = open(1 << 20, NO_TTL);
+        long indexBytes = Files.size(directory.resolve("index.dat"));
+        store.append(message("bob", 0));
+        for (int i = 0; i < 5000; i++) {
+            store.append(message("user" + i, i));
+            drain(store, "user" + i, 1000);
+        }
+        assertEquals(indexBytes, Files.size(directory.resolve("index.dat")));
+        assertEquals(List.of("message 0"), drain(open(1 << 20, NO_TTL), "bob", 1000));
+    }
+
+    private OfflineStore open(long userQuotaBytes, long ttlMillis) throws IOException {
+        return new OfflineStore(directory, SEGMENT_BYTES, userQuotaBytes, 1 << 30, ttlMillis);
+    }
+
+    private static Message message(String receiver, int i) {
+        Message message = new Message("message " + i, null, new User("alice", null));
+        message.setReceiver(new User(receiver, null));
+        return message;
+    }
+
+    private static List<String> contents(int from, int to) {
+        List<String> contents = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            contents.add("message " + i);
+        }
+        return contents;
+    }
+
+    /**
+     * Reads and acknowledges batches until nothing is queued for the user.
+     */
+    private static List<String> drain(OfflineStore store, String userName, int batchBytes) throws IOException {
+        List<String> contents = new ArrayList<>();
+        OfflineStore.Batch batch;
+        while ((batch = store.readBatch(userName, batchBytes)) != null) {
+            for (Message message : batch.getMessages()) {
+                contents.add(message.getContent());
+            }
+            assertTrue(store.acknowledge(userName, batch));
+        }
+        return contents;
+    }
+
+    private int segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return (int) files.filter(file -> file.toString().endsWith(".seg")).count();
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".seg")).sorted().reduce((a, b) -> b).orElseThrow();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package Shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCodecTest {
+    /** The type tag of a blob request, which is followed by a single string. */
+    private static final byte TYPE_BLOB_REQUEST = 7;
+    /** The type tag of an online user list, which is followed by a version and a count of users. */
+    private static final byte TYPE_ONLINE_USERS = 2;
+
+    private final BinaryCodec server = new BinaryCodec(true);
+    private final BinaryCodec client = new BinaryCodec();
+
+    @Test
+    void roundTripsALoginMessageWithNullFields() throws IOException {
+        User sender = new User("alice", null);
+        Message login = new Message(null, null, sender);
+
+        Message decoded = (Message) roundTrip(server, login);
+        assertNull(decoded.getContent());
+        assertNull(decoded.getAttachmentHash());
+        assertNull(decoded.getReceiver());
+        assertNull(decoded.getGroupOfReceivers());
+        assertEquals("alice", decoded.getSender().getUserName());
+        assertNull(decoded.getSender().getAvatarHash());
+    }
+
+    @Test
+    void roundTripsTheAvatarOfTheLoginSenderOnly() throws IOException {
+        User sender = new User("alice", null);
+        sender.setAvatarHash("avatar");
+        Message login = new Message("", null, sender);
+        Message addressed = new Message("hi", null, sender);
+        addressed.setReceiver(new User("bob", null));
+
+        assertEquals("avatar", ((Message) roundTrip(server, login)).getSender().getAvatarHash());
+        assertNull(((Message) roundTrip(server, addressed)).getSender().getAvatarHash());
+    }
+
+    @Test
+    void roundTripsGroupMessages() throws IOException {
+        Message message = new Message("hi all", null, new User("alice", null));
+        message.setAttachmentHash("attachment");
+        message.setGroupOfReceivers(List.of(new User("bob", null), new User("carol", null)));
+
+        Message decoded = (Message) roundTrip(server, message);
+        assertEquals("hi all", decoded.getContent());
+        assertEquals("attachment", decoded.getAttachmentHash());
+        assertEquals(message.getGroupOfReceivers(), decoded.getGroupOfReceivers());
+    }
+
+    @Test
+    void joinsAnEnvelopeAndASharedBody() throws IOException {
+        Message message = new Message("hi all", null, new User("alice", null));
+        byte[] payload = concat(client.encodeEnvelope(new User("bob", null)), client.encodeBody(message));
+
+        Message decoded = (Message) client.decode(payload, 0, payload.length);
+        assertEquals("hi all", decoded.getContent());
+        assertEquals("bob", decoded.getReceiver().getUserName());
+        assertEquals("alice", decoded.getSender().getUserName());
+    }
+
+    @Test
+    void roundTripsNonAsciiText() throws IOException {
+        String content = "Hej på dig, ÅÄÖ! Привет 你好 😀";
+        Message message = new Message(content, null, new User("Åsa", null));
+        message.setReceiver(new User("Jürgen 山田", null));
+
+        Message decoded = (Message) roundTrip(server, message);
+        assertEquals(content, decoded.getContent());
+        assertEquals("Åsa", decoded.getSender().getUserName());
+        assertEquals("Jürgen 山田", decoded.getReceiver().getUserName());
+    }
+
+    @Test
+    void roundTripsVarintEdgeValues() throws IOException {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, 1L << 32, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        for (long value : values) {
+            assertEquals(value, ((InboxAck) roundTrip(server, new InboxAck(value))).getCursor());
+            OnlineUsersList list = new OnlineUsersList(List.of(), value);
+            assertEquals(value, ((OnlineUsersList) roundTrip(client, list)).getVersion());
+        }
+    }
+
+    @Test
+    void roundTripsLengthsAroundVarintBoundaries() throws IOException {
+        for (int length : new int[]{0, 126, 127, 128, 16382, 16383, 16384}) {
+            byte[] data = new byte[length];
+            Arrays.fill(data, (byte) 'x');
+            String hash = new String(data, StandardCharsets.US_ASCII);
+
+            Blob blob = (Blob) roundTrip(server, new Blob(hash, data));
+            assertEquals(hash, blob.getHash());
+            assertArrayEquals(data, blob.getData());
+        }
+    }
+
+    @Test
+    void roundTripsBlobsWithoutData() throws IOException {
+        Blob blob = (Blob) roundTrip(client, new Blob("missing", null));
+        assertEquals("missing", blob.getHash());
+        assertNull(blob.getData());
+    }
+
+    @Test
+    void roundTripsPresenceAndInboxPayloads() throws IOException {
+        User user = new User("bob", null);
+        user.setAvatarHash("avatar");
+
+        PresenceUpdate joined = (PresenceUpdate) roundTrip(client, new PresenceUpdate(7, user, true));
+        assertTrue(joined.isJoined());
+        assertEquals(7, joined.getVersion());
+        assertEquals("avatar", joined.getUser().getAvatarHash());
+
+        PresenceUpdate left = (PresenceUpdate) roundTrip(client, new PresenceUpdate(8, user, false));
+        assertFalse(left.isJoined());
+        assertNull(left.getUser().getAvatarHash());
+
+        OnlineUsersList list = (OnlineUsersList) roundTrip(client, new OnlineUsersList(List.of(user), 8));
+        assertEquals(List.of(user), list.getOnlineUsers());
+        assertEquals("avatar", list.getOnlineUsers().get(0).getAvatarHash());
+
+        Message saved = new Message("saved", null, new User("alice", null));
+        saved.setReceiver(user);
+        InboxBatch batch = (InboxBatch) roundTrip(client, new InboxBatch(List.of(saved), 42));
+        assertEquals(42, batch.getCursor());
+        assertEquals("saved", batch.getMessages().get(0).getContent());
+        assertEquals(user, batch.getMessages().get(0).getReceiver());
+
+        assertInstanceOf(PresenceResync.class, roundTrip(server, new PresenceResync()));
+        assertEquals("hash", ((BlobRequest) roundTrip(server, new BlobRequest("hash"))).getHash());
+    }
+
+    @Test
+    void decodesAPayloadInsideALargerBuffer() throws IOException {
+        byte[] payload = client.encode(new BlobRequest("hash"));
+        byte[] buffer = new byte[payload.length + 10];
+        System.arraycopy(payload, 0, buffer, 5, payload.length);
+
+        assertEquals("hash", ((BlobRequest) server.decode(buffer, 5, payload.length)).getHash());
+        assertThrows(EOFException.class, () -> server.decode(buffer, 5, payload.length - 1));
+        assertThrows(EOFException.class, () -> server.decode(buffer, 5, buffer.length));
+    }
+
+    @Test
+    void serverRefusesPayloadsOnlyServersSend() throws IOException {
+        User bob = new User("bob", null);
+        Message message = new Message("hi", null, new User("alice", null));
+        Object[] serverOnly = {new OnlineUsersList(List.of(bob), 1), new PresenceUpdate(1, bob, true), new InboxBatch(List.of(), 1)};
+
+        for (Object obj : serverOnly) {
+            byte[] payload = client.encode(obj);
+            assertThrows(StreamCorruptedException.class, () -> server.decode(payload, 0, payload.length));
+            assertNotNull(client.decode(payload, 0, payload.length));
+        }
+        byte[] addressed = concat(client.encodeEnvelope(bob), client.encodeBody(message));
+        assertThrows(StreamCorruptedException.class, () -> server.decode(addressed, 0, addressed.length));
+    }
+
+    @Test
+    void refusesLengthsBeyondThePayload() {
+        byte[] string = {BinaryCodec.FORMAT_VERSION, TYPE_BLOB_REQUEST, 101, 'a', 'b'};
+        assertThrows(EOFException.class, () -> server.decode(string, 0, string.length));
+
+        byte[] huge = {BinaryCodec.FORMAT_VERSION, TYPE_BLOB_REQUEST, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+        assertThrows(EOFException.class, () -> server.decode(huge, 0, huge.length));
+
+        byte[] count = {BinaryCodec.FORMAT_VERSION, TYPE_ONLINE_USERS, 0, (byte) 0xFF, (byte) 0xFF, 0x7F};
+        assertThrows(StreamCorruptedException.class, () -> client.decode(count, 0, count.length));
+
+        byte[] negativeCount = {BinaryCodec.FORMAT_VERSION, TYPE_ONLINE_USERS, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        assertThrows(StreamCorruptedException.class, () -> client.decode(negativeCount, 0, negativeCount.length));
+    }
+
+    @Test
+    void refusesMalformedPayloads() {
+        byte[] longVarint = {BinaryCodec.FORMAT_VERSION, TYPE_BLOB_REQUEST, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0};
+        assertThrows(StreamCorruptedException.class, () -> server.decode(longVarint, 0, longVarint.length));
+
+        byte[] version = {BinaryCodec.FORMAT_VERSION + 1, TYPE_BLOB_REQUEST, 0};
+        assertThrows(StreamCorruptedException.class, () -> server.decode(version, 0, version.length));
+
+        byte[] type = {BinaryCodec.FORMAT_VERSION, 99};
+        assertThrows(StreamCorruptedException.class, () -> server.decode(type, 0, type.length));
+
+        byte[] empty = {};
+        assertThrows(EOFException.class, () -> server.decode(empty, 0, 0));
+    }
+
+    @Test
+    void refusesToEncodeUnknownObjects() {
+        assertThrows(NotSerializableException.class, () -> client.encode("text"));
+        assertThrows(NotSerializableException.class, () -> client.encode(null));
+    }
+
+    /**
+     * Encodes an object and decodes it again with the given codec.
+     */
+    private Object roundTrip(BinaryCodec decoder, Object obj) throws IOException {
+        byte[] payload = client.encode(obj);
+        return decoder.decode(payload, 0, payload.length);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+}